@@ -19,6 +19,8 @@
  */
 package org.jboss.osgi.resolver;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
@@ -103,4 +105,52 @@ public interface ResolverMessages {
 
     @Message(id = 10919, value = "Cannot iterate over module resources for: %s")
     IllegalStateException illegalStateCannotIterateOverModuleResources(@Cause Throwable cause, Resource res);
+
+    @Message(id = 10920, value = "Cannot write attribute: %s=%s")
+    IllegalStateException illegalStateCannotWriteAttribute(String key, Object value);
+
+    @Message(id = 10921, value = "Invalid environment snapshot: %s")
+    IOException ioExceptionInvalidEnvironmentSnapshot(@Cause Throwable cause, File file);
+
+    @Message(id = 10922, value = "Resource not installed: %s")
+    IllegalStateException illegalStateResourceNotInstalled(Resource resource);
+
+    @Message(id = 10923, value = "Environment is not empty")
+    IllegalStateException illegalStateEnvironmentNotEmpty();
+
+    @Message(id = 10924, value = "Invalid resource stream")
+    IOException ioExceptionInvalidResourceStream(@Cause Throwable cause);
+
+    @Message(id = 10925, value = "Invalid cache size: %d")
+    IllegalArgumentException illegalArgumentInvalidCacheSize(int size);
+
+    @Message(id = 10926, value = "Resolver engine not found: %s")
+    IllegalStateException illegalStateResolverEngineNotFound(String engine);
+
+    @Message(id = 10927, value = "Unable to resolve %s: missing requirement %s")
+    String unableToResolveMissingRequirement(Resource res, Requirement req);
+
+    @Message(id = 10928, value = "Unable to resolve %s: no consistent wiring for %s")
+    String unableToResolveNoConsistentWiring(Resource res, List<Requirement> reqs);
+
+    @Message(id = 10929, value = "Invalid resource identifier: %d")
+    IllegalStateException illegalStateInvalidResourceIdentifier(long resid);
+
+    @Message(id = 10930, value = "Requirement not declared by its resource: %s")
+    IllegalStateException illegalStateRequirementNotDeclared(Requirement req);
+
+    @Message(id = 10931, value = "Capability not declared by its resource: %s")
+    IllegalStateException illegalStateCapabilityNotDeclared(Capability cap);
+
+    @Message(id = 10932, value = "Unable to resolve: conflict limit of %d reached")
+    String unableToResolveConflictLimit(long limit);
+
+    @Message(id = 10933, value = "Invalid conflict limit: %d")
+    IllegalArgumentException illegalArgumentInvalidConflictLimit(long limit);
+
+    @Message(id = 10934, value = "Negative value: %d")
+    IllegalArgumentException illegalArgumentNegativeValue(int value);
+
+    @Message(id = 10935, value = "Resource not wired: %s")
+    IllegalStateException illegalStateResourceNotWired(Resource resource);
 }
@@ -19,6 +19,8 @@
  */
 package org.jboss.osgi.resolver;
 
+import java.util.Collection;
+
 import org.osgi.framework.Filter;
 import org.osgi.resource.Capability;
 import org.osgi.resource.Requirement;
@@ -60,4 +62,12 @@ public interface XRequirement extends XElement, XAttributeSupport, XDirectiveSup
      * Matches this requirement against the given capability.
      */
     boolean matches(Capability cap);
+
+    /**
+     * Matches this requirement against each of the given capabilities and adds the matching ones to the result.
+     *
+     * This is equivalent to calling {@link #matches(Capability)} for each capability, but prepares the
+     * matching only once.
+     */
+    void matchAll(Collection<? extends Capability> caps, Collection<? super Capability> result);
 }
@@ -27,21 +27,22 @@ import static org.osgi.framework.namespace.IdentityNamespace.CAPABILITY_TYPE_ATT
 import static org.osgi.framework.namespace.IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE;
 import static org.osgi.framework.namespace.PackageNamespace.PACKAGE_NAMESPACE;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
-import org.jboss.osgi.resolver.XAttributeSupport;
 import org.jboss.osgi.resolver.XCapability;
-import org.jboss.osgi.resolver.XDirectiveSupport;
 import org.jboss.osgi.resolver.XHostCapability;
 import org.jboss.osgi.resolver.XIdentityCapability;
 import org.jboss.osgi.resolver.XPackageCapability;
 import org.jboss.osgi.resolver.XProvidedCapability;
 import org.jboss.osgi.resolver.XResource;
 import org.jboss.osgi.resolver.XResourceCapability;
+import org.osgi.framework.Constants;
 import org.osgi.framework.Version;
 import org.osgi.framework.namespace.IdentityNamespace;
 import org.osgi.resource.Capability;
+import org.osgi.service.resolver.HostedCapability;
 
 /**
  * The abstract implementation of a {@link XCapability}.
@@ -51,13 +52,17 @@ import org.osgi.resource.Capability;
  */
 public class AbstractCapability extends AbstractElement implements XIdentityCapability, XHostCapability, XPackageCapability, XResourceCapability, XProvidedCapability {
 
+    private static final String[] NO_ATTRIBUTES = new String[0];
+
     private final String namespace;
     private final XResource resource;
-    private XAttributeSupport attributes;
-    private XDirectiveSupport directives;
+    private AttributeSupporter attributes;
+    private DirectiveSupporter directives;
     private String namespaceValue;
     private String canonicalName;
+    private String versionAttribute;
     private Version version;
+    private String[] mandatoryAttributes;
     private boolean valid;
 
     public AbstractCapability(XResource resource, String namespace, Map<String, Object> atts, Map<String, String> dirs) {
@@ -88,7 +93,8 @@ public class AbstractCapability extends AbstractElement implements XIdentityCapa
 
     @Override
     public Map<String, String> getDirectives() {
-        return isMutable() ? directives.getDirectives() : Collections.unmodifiableMap(directives.getDirectives());
+        // Frozen directives are an immutable CompactMap
+        return directives.getDirectives();
     }
 
     @Override
@@ -98,7 +104,8 @@ public class AbstractCapability extends AbstractElement implements XIdentityCapa
 
     @Override
     public Map<String, Object> getAttributes() {
-        return isMutable() ? attributes.getAttributes() : Collections.unmodifiableMap(attributes.getAttributes());
+        // Frozen attributes are an immutable CompactMap
+        return attributes.getAttributes();
     }
 
     @Override
@@ -106,35 +113,35 @@ public class AbstractCapability extends AbstractElement implements XIdentityCapa
         return attributes.getAttribute(key);
     }
 
-    private boolean isMutable() {
-        return resource.isMutable();
+    /**
+     * Called by the resource when it becomes immutable or mutable again.
+     */
+    void setMutable(boolean mutable) {
+        attributes.setMutable(mutable);
+        directives.setMutable(mutable);
     }
     
     @Override
     public void validate() {
         if (!valid) {
             if (AbstractResource.identityNamespaces.contains(getNamespace())) {
-                version = getVersion(this, CAPABILITY_VERSION_ATTRIBUTE);
-                namespaceValue = (String) getAttribute(getNamespace());
-                if (namespaceValue == null)
-                    throw MESSAGES.illegalStateCannotObtainAttribute(getNamespace());
-            } else if (BUNDLE_NAMESPACE.equals(getNamespace())) {
-                version = getVersion(this, CAPABILITY_BUNDLE_VERSION_ATTRIBUTE);
-                namespaceValue = (String) getAttribute(getNamespace());
-                if (namespaceValue == null)
-                    throw MESSAGES.illegalStateCannotObtainAttribute(getNamespace());
-            } else if (HOST_NAMESPACE.equals(getNamespace())) {
-                version = getVersion(this, CAPABILITY_BUNDLE_VERSION_ATTRIBUTE);
-                namespaceValue = (String) getAttribute(getNamespace());
-                if (namespaceValue == null)
-                    throw MESSAGES.illegalStateCannotObtainAttribute(getNamespace());
+                versionAttribute = CAPABILITY_VERSION_ATTRIBUTE;
+            } else if (BUNDLE_NAMESPACE.equals(getNamespace()) || HOST_NAMESPACE.equals(getNamespace())) {
+                versionAttribute = CAPABILITY_BUNDLE_VERSION_ATTRIBUTE;
             } else if (PACKAGE_NAMESPACE.equals(getNamespace())) {
-                version = getVersion(this, CAPABILITY_VERSION_ATTRIBUTE);
-                attributes.getAttributes().put(CAPABILITY_VERSION_ATTRIBUTE, version);
-                namespaceValue = (String) getAttribute(getNamespace());
+                versionAttribute = CAPABILITY_VERSION_ATTRIBUTE;
+            }
+            if (versionAttribute != null) {
+                // Normalise the version attribute to an interned instance, so that it is never parsed again
+                version = Interner.intern(parseVersion(this, versionAttribute));
+                if (PACKAGE_NAMESPACE.equals(getNamespace()) || getAttribute(versionAttribute) != null) {
+                    attributes.getAttributes().put(versionAttribute, version);
+                }
+                namespaceValue = Interner.intern((String) getAttribute(getNamespace()));
                 if (namespaceValue == null)
                     throw MESSAGES.illegalStateCannotObtainAttribute(getNamespace());
             }
+            mandatoryAttributes = parseMandatoryDirective(getDirective(Constants.MANDATORY_DIRECTIVE));
             canonicalName = toString();
             valid = true;
         }
@@ -171,13 +178,57 @@ public class AbstractCapability extends AbstractElement implements XIdentityCapa
         return version;
     }
 
+    /**
+     * Get the version attribute of the given capability.
+     *
+     * The version of a valid capability is parsed and interned once on validation and returned from then on.
+     * The version of any other capability is parsed on every call, but not interned.
+     * @return the version or the empty version if there is no such attribute
+     */
     static Version getVersion(Capability cap, String attname) {
-        Object attval = cap.getAttributes().get(attname);
-        if (attval != null && !(attval instanceof Version)) {
-            attval = new Version(attval.toString());
-            cap.getAttributes().put(attname, attval);
+        if (cap instanceof HostedCapability) {
+            cap = ((HostedCapability) cap).getDeclaredCapability();
+        }
+        if (cap instanceof AbstractCapability) {
+            AbstractCapability acap = (AbstractCapability) cap;
+            if (acap.valid && attname.equals(acap.versionAttribute))
+                return acap.version;
+        }
+        return parseVersion(cap, attname);
+    }
+
+    private static Version parseVersion(Capability cap, String attname) {
+        Object attval = CompiledFilter.getAttribute(cap, attname);
+        if (attval == null)
+            return Version.emptyVersion;
+        return attval instanceof Version ? (Version) attval : new Version(attval.toString());
+    }
+
+    /**
+     * Get the attribute names of the mandatory directive of the given capability.
+     *
+     * The names are parsed once when the capability becomes immutable.
+     */
+    static String[] getMandatoryAttributes(Capability cap) {
+        if (cap instanceof HostedCapability) {
+            cap = ((HostedCapability) cap).getDeclaredCapability();
+        }
+        if (cap instanceof AbstractCapability && ((AbstractCapability) cap).valid) {
+            return ((AbstractCapability) cap).mandatoryAttributes;
+        }
+        return parseMandatoryDirective(cap.getDirectives().get(Constants.MANDATORY_DIRECTIVE));
+    }
+
+    private static String[] parseMandatoryDirective(String dirstr) {
+        if (dirstr == null)
+            return NO_ATTRIBUTES;
+        List<String> result = new ArrayList<String>();
+        for (String attname : dirstr.split("[,\\s]")) {
+            if (attname.length() > 0) {
+                result.add(attname);
+            }
         }
-        return attval != null ? (Version)attval : Version.emptyVersion;
+        return result.toArray(new String[result.size()]);
     }
 
     @Override
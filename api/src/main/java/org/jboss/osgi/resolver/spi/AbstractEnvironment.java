@@ -23,18 +23,28 @@ import static org.jboss.osgi.resolver.ResolverLogger.LOGGER;
 import static org.jboss.osgi.resolver.ResolverMessages.MESSAGES;
 import static org.jboss.osgi.resolver.spi.ResolverHookProcessor.getCurrentProcessor;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jboss.osgi.resolver.XBundleRevision;
 import org.jboss.osgi.resolver.XCapability;
@@ -45,6 +55,7 @@ import org.jboss.osgi.resolver.XPackageRequirement;
 import org.jboss.osgi.resolver.XRequirement;
 import org.jboss.osgi.resolver.XResource;
 import org.jboss.osgi.resolver.XResource.State;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
 import org.jboss.osgi.resolver.XWiring;
 import org.jboss.osgi.resolver.XWiringSupport;
 import org.omg.CORBA.Environment;
@@ -60,29 +71,47 @@ import org.osgi.resource.Wiring;
 /**
  * The abstract implementation of a {@link Environment}.
  *
+ * The installed resources and their capabilities are held in an immutable {@link EnvironmentSnapshot}.
+ * Read operations work on the current snapshot without locking. Write operations are serialized
+ * and publish a new snapshot when they are done.
+ *
  * @author thomas.diesler@jboss.com
  * @since 02-Jul-2010
  */
 public class AbstractEnvironment implements XEnvironment, Cloneable {
 
+    // The number of resources that are prepared by a single task of a bulk install
+    private static final int INSTALL_TASK_SIZE = 64;
+
     private final AtomicLong resourceIndex = new AtomicLong();
-    private final Map<CacheKey, Set<Capability>> capabilityCache = new ConcurrentHashMap<CacheKey, Set<Capability>>();
-    private final Map<String, Set<XResource>> resourceTypeCache = new ConcurrentHashMap<String, Set<XResource>>();
-    private final Map<Long, XResource> resourceIndexCache = new ConcurrentHashMap<Long, XResource>();
+    private final Executor executor;
+    private final Map<Resource, Wiring> wiringsView = new WiringsView();
+    private final AtomicLong providerCacheHits = new AtomicLong();
+    private final AtomicLong providerCacheMisses = new AtomicLong();
+    private volatile boolean providerCacheEnabled;
+    private volatile MatchCache matchCache;
+    private volatile EnvironmentSnapshot snapshot;
 
     public AbstractEnvironment() {
+        this((Executor) null);
+    }
+
+    /**
+     * Create an environment that uses the given executor to prepare the capabilities of large batches
+     * of resources in parallel.
+     */
+    public AbstractEnvironment(Executor executor) {
+        this.executor = executor;
+        this.snapshot = EnvironmentSnapshot.EMPTY;
     }
 
     private AbstractEnvironment(AbstractEnvironment env) {
-        for (Entry<CacheKey, Set<Capability>> entry : env.capabilityCache.entrySet()) {
-            Set<Capability> caps = getCachedCapabilities(entry.getKey());
-            caps.addAll(entry.getValue());
-        }
-        for(Entry<String, Set<XResource>> entry : env.resourceTypeCache.entrySet()) {
-            Set<XResource> resset = getCachedResources(entry.getKey());
-            resset.addAll(entry.getValue());
-        }
-        resourceIndexCache.putAll(env.resourceIndexCache);
+        // The snapshot is immutable and shared, modifications of either environment publish a new one
+        executor = env.executor;
+        snapshot = env.snapshot;
+        resourceIndex.set(env.resourceIndex.get());
+        providerCacheEnabled = env.providerCacheEnabled;
+        matchCache = env.matchCache;
     }
 
     @Override
@@ -92,54 +121,136 @@ public class AbstractEnvironment implements XEnvironment, Cloneable {
 
     @Override
     public Long nextResourceIdentifier(Long value, String symbolicName) {
-        synchronized (resourceIndex) {
-            if (value != null) {
-                resourceIndex.addAndGet(Math.max(0, value - resourceIndex.get()));
-                return value;
-            } else {
-                Long result = resourceIndex.incrementAndGet();
-                LOGGER.tracef("Resource identifier for %s: [%d,%d]", symbolicName, value, result);
-                return result;
+        if (value != null) {
+            // Generated identifiers must stay above the given one
+            long current = resourceIndex.get();
+            while (current < value && !resourceIndex.compareAndSet(current, value)) {
+                current = resourceIndex.get();
             }
+            return value;
+        } else {
+            Long result = resourceIndex.incrementAndGet();
+            LOGGER.tracef("Resource identifier for %s: [%d,%d]", symbolicName, value, result);
+            return result;
         }
     }
 
     @Override
-    public synchronized void installResources(XResource... resources) {
+    public void installResources(XResource... resources) {
         if (resources == null)
             throw MESSAGES.illegalArgumentNull("resources");
 
-        for (XResource res : resources) {
-            XIdentityCapability icap = res.getIdentityCapability();
-            if (getCachedCapabilities(CacheKey.create(icap)).contains(icap))
-                throw MESSAGES.illegalStateResourceAlreadyInstalled(res);
+        // Index the resource capabilities before taking the lock
+        List<CapabilityIndex.Fragment> fragments = prepareCapabilities(resources);
 
-            LOGGER.debugf("Install resource: %s", res);
+        synchronized (this) {
+            EnvironmentSnapshot.Builder builder = snapshot.builder();
+            Set<XResource> batch = Collections.newSetFromMap(new IdentityHashMap<XResource, Boolean>());
+            for (XResource res : resources) {
+                if (!batch.add(res) || builder.getCapabilities().contains(res.getIdentityCapability()))
+                    throw MESSAGES.illegalStateResourceAlreadyInstalled(res);
+            }
+
+            for (XResource res : resources) {
 
-            // Add resource to index
-            Long index = nextResourceIdentifier(res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY), icap.getName());
-            res.putAttachment(XResource.RESOURCE_IDENTIFIER_KEY, index);
-            resourceIndexCache.put(index, res);
+                // Add resource by index and type
+                XIdentityCapability icap = res.getIdentityCapability();
+                Long index = nextResourceIdentifier(res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY), icap.getName());
+                res.putAttachment(XResource.RESOURCE_IDENTIFIER_KEY, index);
+                builder.addResource(index, icap.getType(), res);
 
-            // Add resource by type
-            getCachedResources(icap.getType()).add(res);
+                // Set the resource state
+                AbstractResource absres = AbstractResource.assertAbstractResource(res);
+                absres.setState(State.INSTALLED);
+            }
 
             // Add resource capabilites
-            for (Capability cap : res.getCapabilities(null)) {
-                CacheKey cachekey = CacheKey.create(cap);
-                getCachedCapabilities(cachekey).add(cap);
-                LOGGER.debugf("   %s", cap);
+            for (CapabilityIndex.Fragment fragment : fragments) {
+                builder.getCapabilities().merge(fragment);
             }
-            if (LOGGER.isDebugEnabled()) {
+
+            snapshot = builder.build();
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            for (XResource res : resources) {
+                LOGGER.debugf("Install resource: %s", res);
+                for (Capability cap : res.getCapabilities(null)) {
+                    LOGGER.debugf("   %s", cap);
+                }
                 for (Requirement req : res.getRequirements(null)) {
                     LOGGER.debugf("   %s", req);
                 }
             }
+        }
+    }
 
-            // Set the resource state
-            AbstractResource absres = AbstractResource.assertAbstractResource(res);
-            absres.setState(State.INSTALLED);
+    /**
+     * Validate the given resources and index their capabilities.
+     *
+     * Large batches are split into tasks that are shared between the calling thread and the executor, if there is one.
+     * The calling thread works on the tasks too, so that progress does not depend on the availability of the executor.
+     */
+    private List<CapabilityIndex.Fragment> prepareCapabilities(final XResource[] resources) {
+        final int tasks = (resources.length + INSTALL_TASK_SIZE - 1) / INSTALL_TASK_SIZE;
+        final CapabilityIndex.Fragment[] fragments = new CapabilityIndex.Fragment[tasks];
+        final AtomicInteger nextTask = new AtomicInteger();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        final CountDownLatch latch = new CountDownLatch(tasks);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int task;
+                while ((task = nextTask.getAndIncrement()) < tasks) {
+                    try {
+                        CapabilityIndex.Fragment fragment = new CapabilityIndex.Fragment();
+                        int end = Math.min(resources.length, (task + 1) * INSTALL_TASK_SIZE);
+                        for (int i = task * INSTALL_TASK_SIZE; i < end; i++) {
+                            XResource res = resources[i];
+                            if (res.getIdentityCapability() == null)
+                                throw MESSAGES.illegalStateNoIdentityCapability(res);
+                            for (Capability cap : res.getCapabilities(null)) {
+                                fragment.add(cap);
+                            }
+                        }
+                        fragments[task] = fragment;
+                    } catch (RuntimeException ex) {
+                        failure.compareAndSet(null, ex);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }
+        };
+
+        if (executor != null && tasks > 1) {
+            int helpers = Math.min(tasks, Runtime.getRuntime().availableProcessors()) - 1;
+            try {
+                for (int i = 0; i < helpers; i++) {
+                    executor.execute(worker);
+                }
+            } catch (RejectedExecutionException ex) {
+                // the calling thread does the remaining work
+            }
+        }
+        worker.run();
+
+        boolean interrupted = false;
+        while (latch.getCount() > 0) {
+            try {
+                latch.await();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
+
+        if (failure.get() != null)
+            throw failure.get();
+
+        return Arrays.asList(fragments);
     }
 
     @Override
@@ -147,64 +258,70 @@ public class AbstractEnvironment implements XEnvironment, Cloneable {
         if (resources == null)
             throw MESSAGES.illegalArgumentNull("resources");
 
-        for (XResource res : resources) {
-
-            // Remove resource by index
-            Long index = res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
-            if (index == null || resourceIndexCache.remove(index) == null) {
-                LOGGER.debugf("Unknown resource: %s", res);
-                continue;
-            }
+        EnvironmentSnapshot.Builder builder = snapshot.builder();
+        try {
+            for (XResource res : resources) {
 
-            LOGGER.debugf("Uninstall resource: %s", res);
+                // Remove resource by index and type
+                Long index = res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+                XIdentityCapability icap = res.getIdentityCapability();
+                if (index == null || !builder.removeResource(index, icap.getType(), res)) {
+                    LOGGER.debugf("Unknown resource: %s", res);
+                    continue;
+                }
 
-            // Remove resource by type
-            XIdentityCapability icap = res.getIdentityCapability();
-            getCachedResources(icap.getType()).remove(res);
+                LOGGER.debugf("Uninstall resource: %s", res);
 
-            // Remove resource capabilities
-            for (Capability cap : res.getCapabilities(null)) {
-                CacheKey cachekey = CacheKey.create(cap);
-                Set<Capability> cachecaps = getCachedCapabilities(cachekey);
-                cachecaps.remove(cap);
-                if (cachecaps.isEmpty()) {
-                    capabilityCache.remove(cachekey);
+                // Remove resource capabilities
+                for (Capability cap : res.getCapabilities(null)) {
+                    builder.getCapabilities().remove(cap);
                 }
-            }
 
-            // Remove wirings
-            res.getWiringSupport().refresh();
+                // Remove wirings
+                res.getWiringSupport().refresh();
 
-            // Set the resource state
-            AbstractResource absres = AbstractResource.assertAbstractResource(res);
-            absres.setState(State.UNINSTALLED);
+                // Set the resource state
+                AbstractResource absres = AbstractResource.assertAbstractResource(res);
+                absres.setState(State.UNINSTALLED);
+            }
+        } finally {
+            snapshot = builder.build();
+        }
+
+        // Do not keep the requirements and capabilities of uninstalled resources
+        MatchCache cache = matchCache;
+        if (cache != null) {
+            cache.clear();
         }
     }
 
     @Override
-    public synchronized XResource getResourceById(long resId) {
-        return resourceIndexCache.get(resId);
+    public XResource getResourceById(long resId) {
+        return snapshot.getResourceById(resId);
     }
 
     @Override
-    public synchronized Iterator<XResource> getResources(Collection<String> types) {
-        final Iterator<String> ittype = (types != null ? types : resourceTypeCache.keySet()).iterator();
+    public Iterator<XResource> getResources(Collection<String> types) {
+        final EnvironmentSnapshot current = snapshot;
+        final Iterator<String> ittype = (types != null ? types : current.getResourceTypes()).iterator();
         return new Iterator<XResource>() {
-            Iterator<XResource> itres = Collections.<XResource>emptyList().iterator();
+            EnvironmentSnapshot.ResourceArray resources = EnvironmentSnapshot.ResourceArray.EMPTY;
+            int index;
+
             @Override
             public boolean hasNext() {
-                synchronized (AbstractEnvironment.this) {
-                    while (!itres.hasNext() && ittype.hasNext()) {
-                        Set<XResource> resources = getCachedResources(ittype.next());
-                        itres = new LinkedHashSet<XResource>(resources).iterator();
-                    }
+                while (index == resources.size() && ittype.hasNext()) {
+                    resources = current.getResources(ittype.next());
+                    index = 0;
                 }
-                return itres.hasNext();
+                return index < resources.size();
             }
 
             @Override
             public XResource next() {
-                return itres.next();
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return resources.get(index++);
             }
 
             @Override
@@ -215,69 +332,61 @@ public class AbstractEnvironment implements XEnvironment, Cloneable {
     }
 
     @Override
-    public synchronized List<Capability> findProviders(Requirement req) {
+    public List<Capability> findProviders(Requirement req) {
         if (req == null)
             throw MESSAGES.illegalArgumentNull("req");
 
+        // The matches only depend on the snapshot, the checks below also depend on the current wiring state
+        EnvironmentSnapshot current = snapshot;
         XRequirement xreq = (XRequirement) req;
-        CacheKey cachekey = CacheKey.create(req);
         List<Capability> result = new ArrayList<Capability>();
-        for (Capability cap : findCachedCapabilities(cachekey)) {
-            boolean matches = xreq.matches(cap);
-            LOGGER.tracef("Env matching req %s with cap %s => %s", xreq, cap, matches);
-            if (matches) {
-                boolean ignoreCapability = false;
-                XCapability xcap = (XCapability) cap;
-                XResource capres = xcap.getResource();
-
-                // Do not allow new wires to unresolved resources
-                XWiringSupport wiringSupport = capres.getWiringSupport();
-                if (!wiringSupport.isEffective()) {
-                    continue;
-                }
+        for (Capability cap : findMatches(current, xreq)) {
+            boolean ignoreCapability = false;
+            XCapability xcap = (XCapability) cap;
+            XResource capres = xcap.getResource();
+
+            // Do not allow new wires to unresolved resources
+            XWiringSupport wiringSupport = capres.getWiringSupport();
+            if (!wiringSupport.isEffective()) {
+                continue;
+            }
 
-                // Check if the package capability has been substituted
-                Wiring wiring = wiringSupport.getWiring(true);
-                if (wiring != null && xcap.adapt(XPackageCapability.class) != null) {
-                    String pkgname = xcap.adapt(XPackageCapability.class).getPackageName();
-                    for (Wire wire : wiring.getRequiredResourceWires(cap.getNamespace())) {
-                        XRequirement wirereq = (XRequirement) wire.getRequirement();
-                        XPackageRequirement preq = wirereq.adapt(XPackageRequirement.class);
-                        if (pkgname.equals(preq.getPackageName())) {
-                            ignoreCapability = true;
-                            break;
-                        }
+            // Check if the package capability has been substituted
+            Wiring wiring = wiringSupport.getWiring(true);
+            if (wiring != null && xcap.adapt(XPackageCapability.class) != null) {
+                String pkgname = xcap.adapt(XPackageCapability.class).getPackageName();
+                for (Wire wire : wiring.getRequiredResourceWires(cap.getNamespace())) {
+                    XRequirement wirereq = (XRequirement) wire.getRequirement();
+                    XPackageRequirement preq = wirereq.adapt(XPackageRequirement.class);
+                    if (pkgname.equals(preq.getPackageName())) {
+                        ignoreCapability = true;
+                        break;
                     }
                 }
-                if (ignoreCapability) {
-                    continue;
-                }
+            }
+            if (ignoreCapability) {
+                continue;
+            }
 
-                // A fragment can only provide a capability if it is either already attached
-                // or if there is one possible hosts that it can attach to
-                // i.e. one of the hosts in the range is not resolved already
-                List<Requirement> hostreqs = capres.getRequirements(HostNamespace.HOST_NAMESPACE);
-                if (wiring == null && !hostreqs.isEmpty()) {
-                    boolean unresolvedHost = false;
-                    XRequirement hostreq = (XRequirement) hostreqs.get(0);
-                    Set<Capability> hostcaps = capabilityCache.get(CacheKey.create(hostreq));
-                    if (hostcaps != null) {
-                        for (Capability hostcap : hostcaps) {
-                            if (hostreq.matches(hostcap)) {
-                                XResource host = (XResource) hostcap.getResource();
-                                if (host.getWiringSupport().getWiring(true) == null) {
-                                    unresolvedHost = true;
-                                    break;
-                                }
-                            }
-                        }
+            // A fragment can only provide a capability if it is either already attached
+            // or if there is one possible hosts that it can attach to
+            // i.e. one of the hosts in the range is not resolved already
+            List<Requirement> hostreqs = capres.getRequirements(HostNamespace.HOST_NAMESPACE);
+            if (wiring == null && !hostreqs.isEmpty()) {
+                boolean unresolvedHost = false;
+                XRequirement hostreq = (XRequirement) hostreqs.get(0);
+                for (Capability hostcap : findMatches(current, hostreq)) {
+                    XResource host = (XResource) hostcap.getResource();
+                    if (host.getWiringSupport().getWiring(true) == null) {
+                        unresolvedHost = true;
+                        break;
                     }
-                    ignoreCapability = !unresolvedHost;
                 }
+                ignoreCapability = !unresolvedHost;
+            }
 
-                if (!ignoreCapability) {
-                    result.add(cap);
-                }
+            if (!ignoreCapability) {
+                result.add(cap);
             }
         }
 
@@ -308,6 +417,146 @@ public class AbstractEnvironment implements XEnvironment, Cloneable {
         return result;
     }
 
+    /**
+     * Get the capabilities in the given snapshot that match the requirement.
+     *
+     * If the provider cache is enabled, the result is cached with the snapshot.
+     * Installs and uninstalls publish a new snapshot, which starts with an empty cache. Wiring changes keep the cache,
+     * because the matches do not depend on the wirings.
+     */
+    private List<Capability> findMatches(EnvironmentSnapshot current, XRequirement xreq) {
+        Map<Requirement, List<Capability>> cache = providerCacheEnabled ? current.getProviderCache() : null;
+        if (cache != null) {
+            List<Capability> result = cache.get(xreq);
+            if (result != null) {
+                providerCacheHits.incrementAndGet();
+                return result;
+            }
+            providerCacheMisses.incrementAndGet();
+        }
+
+        // Only the candidates in the version range of the requirement need to be matched
+        List<Capability> candidates = current.getCapabilities().findCandidates(xreq);
+        List<Capability> result = new ArrayList<Capability>();
+        MatchCache memo = matchCache;
+        if (memo != null) {
+            matchAll(memo, xreq, candidates, result);
+        } else {
+            xreq.matchAll(candidates, result);
+        }
+        LOGGER.tracef("Env matching req %s => %s", xreq, result);
+
+        if (cache != null) {
+            result = Collections.unmodifiableList(result);
+            cache.put(xreq, result);
+        }
+        return result;
+    }
+
+    // Match the candidates that are not in the match cache in one batch and record their results
+    private void matchAll(MatchCache memo, XRequirement xreq, List<Capability> candidates, List<Capability> result) {
+        Boolean[] cached = new Boolean[candidates.size()];
+        List<Capability> unknown = null;
+        for (int i = 0; i < cached.length; i++) {
+            Capability cap = candidates.get(i);
+            cached[i] = memo.get(xreq, cap);
+            if (cached[i] == null) {
+                if (unknown == null) {
+                    unknown = new ArrayList<Capability>();
+                }
+                unknown.add(cap);
+            }
+        }
+        int missCount = unknown != null ? unknown.size() : 0;
+        memo.record(cached.length - missCount, missCount);
+        Set<Capability> matches = Collections.emptySet();
+        if (unknown != null) {
+            matches = Collections.newSetFromMap(new IdentityHashMap<Capability, Boolean>());
+            xreq.matchAll(unknown, matches);
+            for (Capability cap : unknown) {
+                memo.put(xreq, cap, matches.contains(cap));
+            }
+        }
+        for (int i = 0; i < cached.length; i++) {
+            Capability cap = candidates.get(i);
+            if (cached[i] != null ? cached[i].booleanValue() : matches.contains(cap)) {
+                result.add(cap);
+            }
+        }
+    }
+
+    /**
+     * Match the given requirement against the given capability.
+     *
+     * The result is taken from the match cache if it is enabled.
+     */
+    public boolean matches(XRequirement req, Capability cap) {
+        MatchCache memo = matchCache;
+        if (memo == null)
+            return req.matches(cap);
+        Boolean result = memo.get(req, cap);
+        if (result == null) {
+            memo.record(0, 1);
+            result = req.matches(cap);
+            memo.put(req, cap, result);
+        } else {
+            memo.record(1, 0);
+        }
+        return result;
+    }
+
+    /**
+     * Set the number of entries in the match cache, which is rounded up to a power of two, or zero to disable the cache.
+     *
+     * The match cache holds the results of matching a requirement against a capability. Unlike the provider
+     * cache it is not invalidated by modifications of the environment, because the result of a match only
+     * depends on the immutable requirement and capability. It is cleared when resources are uninstalled.
+     */
+    public void setMatchCacheSize(int size) {
+        if (size < 0)
+            throw MESSAGES.illegalArgumentInvalidCacheSize(size);
+        matchCache = size > 0 ? new MatchCache(size) : null;
+    }
+
+    public long getMatchCacheHits() {
+        MatchCache memo = matchCache;
+        return memo != null ? memo.getHits() : 0;
+    }
+
+    public long getMatchCacheMisses() {
+        MatchCache memo = matchCache;
+        return memo != null ? memo.getMisses() : 0;
+    }
+
+    public long getMatchCacheEvictions() {
+        MatchCache memo = matchCache;
+        return memo != null ? memo.getEvictions() : 0;
+    }
+
+    /**
+     * Enable or disable the provider cache.
+     *
+     * The cache holds the capabilities that match a requirement for the installed resources.
+     * It is invalidated by {@link #installResources(XResource...)} and {@link #uninstallResources(XResource...)}.
+     * {@link #updateWiring(Map)} keeps it, because the matches do not depend on the wirings. Checks that depend on
+     * the wiring state and the resolver hooks are still applied on every call to {@link #findProviders(Requirement)}.
+     */
+    public void setProviderCacheEnabled(boolean enabled) {
+        providerCacheEnabled = enabled;
+    }
+
+    public boolean isProviderCacheEnabled() {
+        return providerCacheEnabled;
+    }
+
+    public long getProviderCacheHits() {
+        return providerCacheHits.get();
+    }
+
+    public long getProviderCacheMisses() {
+        return providerCacheMisses.get();
+    }
+
     @Override
     public synchronized Map<Resource, Wiring> updateWiring(Map<Resource, List<Wire>> wiremap) {
         if (wiremap == null)
@@ -342,19 +591,60 @@ public class AbstractEnvironment implements XEnvironment, Cloneable {
             }
         }
 
+        // Publish the wiring changes
+        snapshot = snapshot.nextEpoch();
+
         return Collections.unmodifiableMap(result);
     }
 
     @Override
-    public synchronized Map<Resource, Wiring> getWirings() {
-        Map<Resource, Wiring> result = new HashMap<Resource, Wiring>();
-        for (XResource res : resourceIndexCache.values()) {
-            Wiring wiring = res.getWiringSupport().getWiring(true);
-            if (wiring != null) {
-                result.put(res, wiring);
+    public Map<Resource, Wiring> getWirings() {
+        return wiringsView;
+    }
+
+    /**
+     * Write the installed resources and their effective wirings to the given file.
+     *
+     * The file can be read with {@link #readSnapshot(File, XResourceBuilderFactory)} to restore the environment
+     * without parsing the resource metadata or running the resolver again.
+     */
+    public synchronized void writeSnapshot(File file) throws IOException {
+        if (file == null)
+            throw MESSAGES.illegalArgumentNull("file");
+
+        List<XResource> resources = new ArrayList<XResource>(snapshot.getAllResources());
+        Collections.sort(resources, new Comparator<XResource>() {
+            @Override
+            public int compare(XResource res1, XResource res2) {
+                return ResourceIndexComparator.compare(res1, res2);
             }
+        });
+        EnvironmentSnapshotFile.write(file, resourceIndex.get(), resources);
+    }
+
+    /**
+     * Install the resources and apply the wirings from a file that was written by {@link #writeSnapshot(File)}.
+     *
+     * The resources keep their identifiers. This environment must be empty.
+     *
+     * @param factory the factory that creates the resources, capabilities and requirements
+     */
+    public void readSnapshot(File file, XResourceBuilderFactory<?> factory) throws IOException {
+        if (file == null)
+            throw MESSAGES.illegalArgumentNull("file");
+        if (factory == null)
+            throw MESSAGES.illegalArgumentNull("factory");
+
+        EnvironmentSnapshotFile content = EnvironmentSnapshotFile.read(file, factory);
+        synchronized (this) {
+            if (!snapshot.getAllResources().isEmpty())
+                throw MESSAGES.illegalStateEnvironmentNotEmpty();
+
+            List<XResource> resources = content.getResources();
+            installResources(resources.toArray(new XResource[resources.size()]));
+            nextResourceIdentifier(content.getResourceIndex(), null);
+            updateWiring(content.getWires());
         }
-        return Collections.unmodifiableMap(result);
     }
 
     private XWiring createWiring(XResource res, List<Wire> required, List<Wire> provided) {
@@ -365,91 +655,87 @@ public class AbstractEnvironment implements XEnvironment, Cloneable {
         }
     }
 
-    private synchronized Set<Capability> getCachedCapabilities(CacheKey key) {
-        Set<Capability> capset = capabilityCache.get(key);
-        if (capset == null) {
-            capset = new LinkedHashSet<Capability>();
-            capabilityCache.put(key, capset);
-        }
-        return capset;
-    }
-
-    private synchronized Set<Capability> findCachedCapabilities(CacheKey key) {
-        Set<Capability> capset = capabilityCache.get(key);
-        if (capset == null) {
-            capset = new LinkedHashSet<Capability>();
-            // do not add this to the capabilityCache
-        }
-        if (capset.isEmpty() && (key.value == null || key.hasFuzzyOperator())) {
-            for (Entry<CacheKey, Set<Capability>> entry : capabilityCache.entrySet()) {
-                CacheKey auxkey = entry.getKey();
-                if (auxkey.namespace.equals(key.namespace)) {
-                    capset.addAll(entry.getValue());
-                }
-            }
-        }
-        return Collections.unmodifiableSet(capset);
-    }
-
-    private Set<XResource> getCachedResources(String type) {
-        Set<XResource> typeset = resourceTypeCache.get(type);
-        if (typeset == null) {
-            typeset = new LinkedHashSet<XResource>();
-            resourceTypeCache.put(type, typeset);
-        }
-        return typeset;
-    }
-
-    private static class CacheKey {
-
-        private final String namespace;
-        private final String value;
-        private final String keyspec;
-        private final String operator;
+    /**
+     * A read-only live view of the effective wirings of the installed resources.
+     *
+     * The wiring is taken from the resource's wiring support, so that wirings that are set or refreshed through
+     * {@link XWiringSupport} are seen as well. A lookup is therefore a constant time operation that never gets stale.
+     * The size is counted by visiting the installed resources, because the environment is not told about
+     * such wiring changes.
+     */
+    private final class WiringsView extends AbstractMap<Resource, Wiring> {
 
-        static CacheKey create(Capability cap) {
-            String namespace = cap.getNamespace();
-            String nsvalue = (String) cap.getAttributes().get(namespace);
-            return new CacheKey(namespace, nsvalue, null);
-        }
-
-        static CacheKey create(Requirement req) {
-            String namespace = req.getNamespace();
-            StringBuffer opbuffer = new StringBuffer();
-            String nsvalue = AbstractRequirement.getNamespaceValue(req, opbuffer);
-            String operator = opbuffer.length() > 0 ? opbuffer.toString() : null;
-            return new CacheKey(namespace, nsvalue, operator);
-        }
+        @Override
+        public Wiring get(Object key) {
+            if (!(key instanceof XResource))
+                return null;
 
-        private CacheKey(String namespace, String value, String operator) {
-            this.namespace = namespace;
-            this.value = value;
-            this.operator = operator;
-            this.keyspec = namespace + ":" + value;
-        }
+            XResource res = (XResource) key;
+            Long index = res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+            if (index == null || snapshot.getResourceById(index) != res)
+                return null;
 
-        boolean hasFuzzyOperator() {
-            return operator != null && !operator.equals("=");
+            return res.getWiringSupport().getWiring(true);
         }
 
         @Override
-        public int hashCode() {
-            return keyspec.hashCode();
+        public boolean containsKey(Object key) {
+            return get(key) != null;
         }
 
         @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (!(obj instanceof CacheKey))
-                return false;
-            CacheKey other = (CacheKey) obj;
-            return keyspec.equals(other.keyspec);
+        public boolean isEmpty() {
+            return !entrySet().iterator().hasNext();
         }
 
         @Override
-        public String toString() {
-            return "[" + keyspec + "]";
+        public Set<Entry<Resource, Wiring>> entrySet() {
+            final Collection<XResource> resources = snapshot.getAllResources();
+            return new AbstractSet<Entry<Resource, Wiring>>() {
+
+                @Override
+                public Iterator<Entry<Resource, Wiring>> iterator() {
+                    final Iterator<XResource> itres = resources.iterator();
+                    return new Iterator<Entry<Resource, Wiring>>() {
+                        Entry<Resource, Wiring> next;
+
+                        @Override
+                        public boolean hasNext() {
+                            while (next == null && itres.hasNext()) {
+                                XResource res = itres.next();
+                                Wiring wiring = res.getWiringSupport().getWiring(true);
+                                if (wiring != null) {
+                                    next = new SimpleImmutableEntry<Resource, Wiring>(res, wiring);
+                                }
+                            }
+                            return next != null;
+                        }
+
+                        @Override
+                        public Entry<Resource, Wiring> next() {
+                            if (!hasNext())
+                                throw new NoSuchElementException();
+                            Entry<Resource, Wiring> result = next;
+                            next = null;
+                            return result;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int result = 0;
+                    for (Iterator<Entry<Resource, Wiring>> it = iterator(); it.hasNext(); it.next()) {
+                        result++;
+                    }
+                    return result;
+                }
+            };
         }
     }
 }
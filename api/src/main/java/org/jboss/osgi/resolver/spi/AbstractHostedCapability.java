@@ -41,12 +41,14 @@ public class AbstractHostedCapability extends AbstractElement implements HostedC
 
     private final XResource resource;
     private final XCapability capability;
+    private final int hashCode;
 
     public AbstractHostedCapability(XResource resource, XCapability capability) {
         if (capability == null)
             throw MESSAGES.illegalArgumentNull("capability");
         this.resource = resource;
         this.capability = capability;
+        this.hashCode = 31 * (resource != null ? resource.hashCode() : 0) + capability.hashCode();
     }
 
     @Override
@@ -117,7 +119,7 @@ public class AbstractHostedCapability extends AbstractElement implements HostedC
 
     @Override
     public int hashCode() {
-        return 31*resource.hashCode() + capability.hashCode();
+        return hashCode;
     }
 
     @Override
@@ -29,14 +29,12 @@ import static org.osgi.framework.namespace.PackageNamespace.RESOLUTION_DYNAMIC;
 import static org.osgi.resource.Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import org.jboss.osgi.resolver.XAttributeSupport;
-import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XCapabilityRequirement;
-import org.jboss.osgi.resolver.XDirectiveSupport;
 import org.jboss.osgi.resolver.XHostRequirement;
 import org.jboss.osgi.resolver.XIdentityCapability;
 import org.jboss.osgi.resolver.XPackageRequirement;
@@ -61,13 +59,23 @@ import org.osgi.resource.Requirement;
  */
 public class AbstractRequirement extends AbstractElement implements XHostRequirement, XPackageRequirement, XIdentityRequirement, XCapabilityRequirement {
 
+    // How the namespace of a requirement is matched
+    private static final int MATCH_ATTRIBUTE = 0;
+    private static final int MATCH_BUNDLE = 1;
+    private static final int MATCH_MANDATORY = 2;
+
     private final XResource resource;
     private final String namespace;
-    private XAttributeSupport attributes;
-    private XDirectiveSupport directives;
+    private final int matchKind;
+    private AttributeSupporter attributes;
+    private DirectiveSupporter directives;
     private String canonicalName;
     private boolean optional;
-    private Filter filter;
+    private volatile Filter filter;
+    private FilterParser.Node filterNode;
+    private volatile CompiledFilter compiledFilter;
+    private volatile Set<String> filterAttributes;
+    private VersionRange filterVersionRange;
     private boolean valid;
 
     public AbstractRequirement(XResource resource, String namespace, Map<String, Object> atts, Map<String, String> dirs) {
@@ -82,13 +90,25 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
 
         this.resource = resource;
         this.namespace = namespace;
+        if (BUNDLE_NAMESPACE.equals(namespace)) {
+            matchKind = MATCH_BUNDLE;
+        } else if (HOST_NAMESPACE.equals(namespace) || PACKAGE_NAMESPACE.equals(namespace)) {
+            matchKind = MATCH_MANDATORY;
+        } else {
+            matchKind = MATCH_ATTRIBUTE;
+        }
         this.attributes = new AttributeSupporter(atts);
         this.directives = new DirectiveSupporter(dirs);
     }
 
     @Override
     public Filter getFilter() {
-        return filter;
+        // The filter is created on first access, matching does not need it
+        Filter result = filter;
+        if (result == null && valid) {
+            result = filter = getFilterFromDirective(this);
+        }
+        return result;
     }
 
     @Override
@@ -113,15 +133,23 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
             // Attributes declared on Require-Capability will be visible in getAttributes, but attributes declared on
             // other manifest entries which map to osgi.wiring.* namespace requirements will not be visible in getAttributes.
             // There are instead used to form a generated filter directive which will be visible in getDirectives.
+            FilterParser.Node node = null;
             if (namespace.startsWith("osgi.wiring.")) {
                 if (!atts.isEmpty()) {
-                    generateFilterDirective(namespace, atts, dirs);
+                    node = generateFilterDirective(namespace, atts, dirs);
                 }
                 if (!dirs.containsKey(Constants.FILTER_DIRECTIVE))
                     throw MESSAGES.illegalArgumentRequirementMustHaveFilterDirective(namespace, dirs);
             }
 
-            filter = getFilterFromDirective(this);
+            // The filter tree is built from the attributes or parsed from the directive. The tree parser rejects
+            // the same filters as the OSGi filter parser, so the OSGi filter is only created on first access.
+            String filterdir = dirs.get(Constants.FILTER_DIRECTIVE);
+            if (node == null && filterdir != null) {
+                node = FilterParser.parse(filterdir);
+            }
+            filterNode = node;
+            filterVersionRange = CapabilityIndex.getVersionRange(namespace, filterNode);
             String resdir = getDirective(AbstractWiringNamespace.REQUIREMENT_RESOLUTION_DIRECTIVE);
             optional = AbstractWiringNamespace.RESOLUTION_OPTIONAL.equals(resdir);
             canonicalName = toString();
@@ -174,7 +202,8 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
 
     @Override
     public Map<String, String> getDirectives() {
-        return isMutable() ? directives.getDirectives() : Collections.unmodifiableMap(directives.getDirectives());
+        // Frozen directives are an immutable CompactMap
+        return directives.getDirectives();
     }
 
     @Override
@@ -184,7 +213,8 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
 
     @Override
     public Map<String, Object> getAttributes() {
-        return isMutable() ? attributes.getAttributes() : Collections.unmodifiableMap(attributes.getAttributes());
+        // Frozen attributes are an immutable CompactMap
+        return attributes.getAttributes();
     }
 
     @Override
@@ -192,6 +222,14 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
         return attributes.getAttribute(key);
     }
 
+    /**
+     * Called by the resource when it becomes immutable or mutable again.
+     */
+    void setMutable(boolean mutable) {
+        attributes.setMutable(mutable);
+        directives.setMutable(mutable);
+    }
+
     private boolean isMutable() {
         return resource.isMutable();
     }
@@ -220,63 +258,103 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
         assertImmutable();
 
         // The requirement matches the capability if their namespaces match and the filter is absent or matches the attributes.
-        boolean matches = namespace.equals(cap.getNamespace()) && matchFilter(cap);
-
-        if (matches) {
-            if (BUNDLE_NAMESPACE.equals(getNamespace())) {
-                matches = matchesResourceRequirement(cap);
-            } else if (HOST_NAMESPACE.equals(getNamespace())) {
-                matches = matchesHostRequirement(cap);
-            } else if (PACKAGE_NAMESPACE.equals(getNamespace())) {
-                matches = matchesPackageRequirement(cap);
-            } else {
-                Object reqval = getAttribute(getNamespace());
-                Object capval = cap.getAttributes().get(getNamespace());
-                matches = (reqval == null || reqval.equals(capval));
-            }
-        }
-
-        return matches;
-    }
-
-    private boolean matchesResourceRequirement(Capability cap) {
-        // cannot require itself
-        if (getResource() == cap.getResource())
+        if (!namespace.equals(cap.getNamespace()) || !matchFilter(cap))
             return false;
 
-        return matchesMandatoryDirective(cap);
+        Object reqval = matchKind == MATCH_ATTRIBUTE ? getAttribute(namespace) : null;
+        return matchesNamespace(cap, reqval, null);
     }
 
-    private boolean matchesHostRequirement(Capability cap) {
-        return matchesMandatoryDirective(cap);
+    @Override
+    public void matchAll(Collection<? extends Capability> caps, Collection<? super Capability> result) {
+        assertImmutable();
+
+        // Prepare the filter, the namespace value and the filter attribute names once for all capabilities
+        CompiledFilter compiled = filterNode != null ? getCompiledFilter() : null;
+        Filter osgifilter = filterNode == null ? getFilter() : null;
+        Object reqval = matchKind == MATCH_ATTRIBUTE ? getAttribute(namespace) : null;
+        Set<String> filteratts = matchKind != MATCH_ATTRIBUTE && filterNode != null ? getFilterAttributes() : null;
+        for (Capability cap : caps) {
+            if (!namespace.equals(cap.getNamespace()))
+                continue;
+            if (compiled != null ? !compiled.matches(cap) : osgifilter != null && !osgifilter.matches(cap.getAttributes()))
+                continue;
+            if (matchesNamespace(cap, reqval, filteratts)) {
+                result.add(cap);
+            }
+        }
     }
 
-    private boolean matchesPackageRequirement(Capability cap) {
-        return matchesMandatoryDirective(cap);
+    private boolean matchesNamespace(Capability cap, Object reqval, Set<String> filteratts) {
+        switch (matchKind) {
+            case MATCH_BUNDLE:
+                // cannot require itself
+                if (getResource() == cap.getResource())
+                    return false;
+                return matchesMandatoryDirective(cap, filteratts);
+            case MATCH_MANDATORY:
+                return matchesMandatoryDirective(cap, filteratts);
+            default:
+                return reqval == null || reqval.equals(CompiledFilter.getAttribute(cap, namespace));
+        }
     }
 
-    private boolean matchesMandatoryDirective(Capability cap) {
+    private boolean matchesMandatoryDirective(Capability cap, Set<String> filteratts) {
         // match mandatory attributes on the capability
-        String dirstr = ((XCapability) cap).getDirective(Constants.MANDATORY_DIRECTIVE);
-        if (dirstr != null) {
-            for (String attname : dirstr.split("[,\\s]")) {
-                String attval = getValueFromFilter(filter, attname, null);
-                if (attval == null) {
-                    return false;
+        for (String attname : AbstractCapability.getMandatoryAttributes(cap)) {
+            if (filterNode != null) {
+                if (filteratts == null) {
+                    filteratts = getFilterAttributes();
                 }
+                if (!filteratts.contains(attname))
+                    return false;
+            } else if (getValueFromFilter(getFilter(), attname, null) == null) {
+                return false;
             }
         }
         return true;
     }
 
+    private Set<String> getFilterAttributes() {
+        Set<String> result = filterAttributes;
+        if (result == null) {
+            result = filterAttributes = FilterParser.getAttributeNames(filterNode);
+        }
+        return result;
+    }
+
     static VersionRange getVersionRange(XRequirement req, String attr) {
         Object value = req.getAttribute(attr);
         return (value instanceof String) ? new VersionRange((String) value) : (VersionRange) value;
     }
 
+    /**
+     * Get the version range that is imposed by the filter directive.
+     * Unlike {@link #getVersionRange()} this is also available after the version attribute
+     * has been turned into a generated filter directive.
+     */
+    VersionRange getFilterVersionRange() {
+        return filterVersionRange;
+    }
+
+    FilterParser.Node getFilterNode() {
+        return filterNode;
+    }
+
     private boolean matchFilter(Capability cap) {
-        Map<String, Object> capatts = cap.getAttributes();
-        return filter != null ? filter.matches(capatts) : true;
+        if (filterNode != null)
+            return getCompiledFilter().matches(cap);
+        Filter result = getFilter();
+        return result != null ? result.matches(cap.getAttributes()) : true;
+    }
+
+    private CompiledFilter getCompiledFilter() {
+        // The filter is compiled on first match
+        CompiledFilter result = compiledFilter;
+        if (result == null) {
+            result = compiledFilter = CompiledFilter.compile(filterNode);
+        }
+        return result;
     }
 
     @Override
@@ -318,44 +396,38 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
         return RESOLUTION_DYNAMIC.equals(getDirective(REQUIREMENT_RESOLUTION_DIRECTIVE));
     }
 
-    private void generateFilterDirective(String namespace, Map<String, Object> atts, Map<String, String> dirs) {
-        List<String> parts = new ArrayList<String>();
+    private FilterParser.Node generateFilterDirective(String namespace, Map<String, Object> atts, Map<String, String> dirs) {
+        FilterParser.Node result = null;
         if (atts.containsKey(namespace)) {
+            List<FilterParser.Node> parts = new ArrayList<FilterParser.Node>();
             addAttributePart(atts, namespace, parts);
             addVersionRangePart(atts, Constants.BUNDLE_VERSION_ATTRIBUTE, parts);
             addVersionRangePart(atts, Constants.VERSION_ATTRIBUTE, parts);
             for (String key : new ArrayList<String>(atts.keySet())) {
                 addAttributePart(atts, key, parts);
             }
-            StringBuffer filterSpec = new StringBuffer(parts.remove(0));
-            for (String part : parts) {
-                filterSpec.insert(0, "(&");
-                filterSpec.append(part + ")");
-            }
-            try {
-                Filter filter = FrameworkUtil.createFilter(filterSpec.toString());
-                dirs.put(Constants.FILTER_DIRECTIVE, filter.toString());
-            } catch (InvalidSyntaxException ex) {
-                throw new IllegalArgumentException(ex);
+            result = parts.remove(0);
+            for (FilterParser.Node part : parts) {
+                result = FilterParser.and(result, part);
             }
+            dirs.put(Constants.FILTER_DIRECTIVE, FilterParser.toString(result));
         }
+        return result;
     }
 
-    private void addAttributePart(Map<String, Object> atts, String attrname, List<String> parts) {
+    private void addAttributePart(Map<String, Object> atts, String attrname, List<FilterParser.Node> parts) {
         Object attrval = atts.remove(attrname);
         if (attrval instanceof String) {
-            parts.add("(" + attrname + "=" + attrval + ")");
+            parts.add(FilterParser.clause(attrname, (String) attrval));
         }
     }
 
-    private void addVersionRangePart(Map<String, Object> atts, String attrname, List<String> parts) {
+    private void addVersionRangePart(Map<String, Object> atts, String attrname, List<FilterParser.Node> parts) {
         Object versionAtt = atts.remove(attrname);
         if (versionAtt instanceof VersionRange) {
-            VersionRange versionRange = (VersionRange) versionAtt;
-            parts.add(versionRange.toFilterString(attrname));
+            parts.add(FilterParser.versionRange(attrname, (VersionRange) versionAtt));
         } else if (versionAtt instanceof String) {
-            VersionRange versionRange = new VersionRange((String) versionAtt);
-            parts.add(versionRange.toFilterString(attrname));
+            parts.add(FilterParser.versionRange(attrname, new VersionRange((String) versionAtt)));
         }
     }
 
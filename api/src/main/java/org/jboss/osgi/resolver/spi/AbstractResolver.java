@@ -20,6 +20,10 @@
 package org.jboss.osgi.resolver.spi;
 
 import static org.jboss.osgi.resolver.ResolverLogger.LOGGER;
+import static org.jboss.osgi.resolver.ResolverMessages.MESSAGES;
+
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -53,14 +57,34 @@ import org.osgi.service.resolver.Resolver;
  * @author thomas.diesler@jboss.com
  * @since 31-May-2010
  */
-public class AbstractResolver implements XResolver {
+public class AbstractResolver implements XResolver, Closeable {
+
+    /**
+     * The system property that selects the resolver engine by the class name or simple class name of a
+     * {@link Resolver} service provider. The {@link #DEFAULT_RESOLVER_ENGINE} is used when it is not set,
+     * or the first provider if the default one is not available.
+     */
+    public static final String RESOLVER_ENGINE = "org.jboss.osgi.resolver.engine";
+
+    /**
+     * The class name of the default resolver engine, which is based on the Felix resolver.
+     */
+    public static final String DEFAULT_RESOLVER_ENGINE = "org.jboss.osgi.resolver.felix.LoggingResolver";
 
     private final Resolver delegate;
 
     public AbstractResolver() {
+        this(System.getProperty(RESOLVER_ENGINE));
+    }
+
+    /**
+     * Create a resolver that delegates to the given resolver engine.
+     * If it is null, the default engine is used, or the first provider if the default one is not available.
+     */
+    public AbstractResolver(String engine) {
         ClassLoader classLoader = AbstractResolver.class.getClassLoader();
         ServiceLoader<Resolver> loader = ServiceLoader.load(Resolver.class, classLoader);
-        delegate = loader.iterator().next();
+        delegate = getResolverEngine(loader, engine);
     }
 
     @Override
@@ -94,6 +118,40 @@ public class AbstractResolver implements XResolver {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Release the resources of the resolver engine, like the threads it shares between resolves.
+     * Engines that implement {@link Closeable} are closed, others are left alone.
+     */
+    @Override
+    public void close() throws IOException {
+        if (delegate instanceof Closeable) {
+            ((Closeable) delegate).close();
+        }
+    }
+
+    private static Resolver getResolverEngine(ServiceLoader<Resolver> loader, String engine) {
+        String name = engine != null ? engine : DEFAULT_RESOLVER_ENGINE;
+        Resolver first = null;
+        Iterator<Resolver> iterator = loader.iterator();
+        while (iterator.hasNext()) {
+            Resolver resolver = iterator.next();
+            Class<?> type = resolver.getClass();
+            if (name.equals(type.getName()) || name.equals(type.getSimpleName())) {
+                LOGGER.debugf("Using resolver engine: %s", type.getName());
+                return resolver;
+            }
+            if (first == null) {
+                first = resolver;
+            }
+        }
+        // Without an explicit engine, any registered provider will do
+        if (engine == null && first != null) {
+            LOGGER.debugf("Using resolver engine: %s", first.getClass().getName());
+            return first;
+        }
+        throw MESSAGES.illegalStateResolverEngineNotFound(name);
+    }
+
     private void removeUninstalled(Collection<Resource> manres, Collection<Resource> optres) {
         for (Resource res : getCombinedResources(manres, optres)) {
             if (res instanceof XBundleRevision) {
@@ -121,9 +179,13 @@ public class AbstractResolver implements XResolver {
             XBundle bundle = brev.getBundle();
             if (bundle != null && bundle.getState() != Bundle.UNINSTALLED) {
                 XRequirement xreq = (XRequirement) brev.getRequirements(HostNamespace.HOST_NAMESPACE).get(0);
+                if (combined.contains(brev))
+                    continue;
                 for (Capability cap : hostcaps) {
-                    if (xreq.matches(cap) && !combined.contains(brev)) {
+                    boolean matches = env instanceof AbstractEnvironment ? ((AbstractEnvironment) env).matches(xreq, cap) : xreq.matches(cap);
+                    if (matches) {
                         fragments.add(brev);
+                        break;
                     }
                 }
             }
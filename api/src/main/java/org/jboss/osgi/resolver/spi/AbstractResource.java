@@ -22,15 +22,16 @@ package org.jboss.osgi.resolver.spi;
 
 import static org.jboss.osgi.resolver.ResolverMessages.MESSAGES;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.jboss.osgi.resolver.XAttributeSupport;
 import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XIdentityCapability;
 import org.jboss.osgi.resolver.XRequirement;
@@ -53,8 +54,10 @@ public class AbstractResource extends AbstractElement implements XResource {
 
     private final Map<String, List<Capability>> capabilities = new HashMap<String, List<Capability>>();
     private final Map<String, List<Requirement>> requirements = new HashMap<String, List<Requirement>>();
-    private final XAttributeSupport attributes = new AttributeSupporter(null);
+    private final AttributeSupporter attributes = new AttributeSupporter(null);
     private final AtomicBoolean mutable = new AtomicBoolean(true);
+    private volatile ElementTable<Capability> capabilityTable;
+    private volatile ElementTable<Requirement> requirementTable;
     private final XWiringSupport wiringSupport;
     private XIdentityCapability identityCapability;
     private State state = State.UNINSTALLED;
@@ -92,8 +95,8 @@ public class AbstractResource extends AbstractElement implements XResource {
 
     @Override
     public Map<String, Object> getAttributes() {
-        Map<String, Object> atts = attributes.getAttributes();
-        return isMutable() ? atts : Collections.unmodifiableMap(atts);
+        // Frozen attributes are an immutable CompactMap
+        return attributes.getAttributes();
     }
 
     @Override
@@ -103,6 +106,22 @@ public class AbstractResource extends AbstractElement implements XResource {
 
     @Override
     public void setMutable(boolean flag) {
+        if (mutable.get() != flag) {
+            // Frozen attributes and directives are replaced by compact immutable maps
+            attributes.setMutable(flag);
+            for (Capability cap : getCaplist(null)) {
+                if (cap instanceof AbstractCapability) {
+                    ((AbstractCapability) cap).setMutable(flag);
+                }
+            }
+            for (Requirement req : getReqlist(null)) {
+                if (req instanceof AbstractRequirement) {
+                    ((AbstractRequirement) req).setMutable(flag);
+                }
+            }
+            capabilityTable = flag ? null : new ElementTable<Capability>(capabilities);
+            requirementTable = flag ? null : new ElementTable<Requirement>(requirements);
+        }
         mutable.set(flag);
     }
 
@@ -183,13 +202,15 @@ public class AbstractResource extends AbstractElement implements XResource {
     @Override
     public List<Capability> getCapabilities(String namespace) {
         ensureImmutable();
-        return Collections.unmodifiableList(getCaplist(namespace));
+        ElementTable<Capability> table = capabilityTable;
+        return table != null ? table.get(namespace) : Collections.unmodifiableList(getCaplist(namespace));
     }
 
     @Override
     public List<Requirement> getRequirements(String namespace) {
         ensureImmutable();
-        return Collections.unmodifiableList(getReqlist(namespace));
+        ElementTable<Requirement> table = requirementTable;
+        return table != null ? table.get(namespace) : Collections.unmodifiableList(getReqlist(namespace));
     }
 
     @Override
@@ -221,4 +242,67 @@ public class AbstractResource extends AbstractElement implements XResource {
         String idstr = (id != null ? id.getName() + ":" + id.getVersion() : "anonymous");
         return getClass().getSimpleName() + "[" + idstr + "]";
     }
+
+    /**
+     * The immutable layout of the capabilities or requirements of a resource that is no longer mutable.
+     *
+     * The elements are copied into one array in declaration order and into another array that is grouped
+     * by namespace. The lists that are handed out are read-only views on slices of these arrays, which are
+     * created once, so that the getters do not allocate.
+     */
+    private static final class ElementTable<T> {
+
+        private final List<T> all;
+        private final Map<String, List<T>> namespaces = new HashMap<String, List<T>>();
+
+        ElementTable(Map<String, List<T>> elements) {
+            List<T> declared = elements.get(null);
+            int size = declared != null ? declared.size() : 0;
+            all = new ArraySlice<T>(declared != null ? declared.toArray() : new Object[0], 0, size);
+            Object[] grouped = new Object[size];
+            int offset = 0;
+            for (Map.Entry<String, List<T>> entry : elements.entrySet()) {
+                List<T> list = entry.getValue();
+                if (entry.getKey() != null && !list.isEmpty()) {
+                    for (T element : list) {
+                        grouped[offset++] = element;
+                    }
+                    namespaces.put(entry.getKey(), new ArraySlice<T>(grouped, offset - list.size(), offset));
+                }
+            }
+        }
+
+        List<T> get(String namespace) {
+            if (namespace == null)
+                return all;
+            List<T> result = namespaces.get(namespace);
+            return result != null ? result : Collections.<T> emptyList();
+        }
+    }
+
+    private static final class ArraySlice<T> extends AbstractList<T> implements RandomAccess {
+
+        private final Object[] elements;
+        private final int from;
+        private final int size;
+
+        ArraySlice(Object[] elements, int from, int to) {
+            this.elements = elements;
+            this.from = from;
+            this.size = to - from;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            return (T) elements[from + index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
 }
@@ -167,8 +167,8 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
     public XResourceBuilder<T> loadFrom(OSGiMetaData metadata) throws ResourceBuilderException {
         assertResourceCreated();
         try {
-            String symbolicName = metadata.getBundleSymbolicName();
-            Version bundleVersion = metadata.getBundleVersion();
+            String symbolicName = Interner.intern(metadata.getBundleSymbolicName());
+            Version bundleVersion = Interner.intern(metadata.getBundleVersion());
             ParameterizedAttribute fragmentHost = metadata.getFragmentHost();
             ParameterizedAttribute idparams = metadata.getBundleParameters();
             Map<String, Object> idatts = getAttributes(idparams);
@@ -203,7 +203,7 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
 
             // Host Requirement
             if (fragmentHost != null) {
-                String hostName = fragmentHost.getAttribute();
+                String hostName = Interner.intern(fragmentHost.getAttribute());
                 XRequirement req = addRequirement(HostNamespace.HOST_NAMESPACE, hostName);
                 req.getAttributes().putAll(getAttributes(fragmentHost));
                 req.getDirectives().putAll(getDirectives(fragmentHost));
@@ -213,7 +213,7 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
             List<ParameterizedAttribute> requireBundles = metadata.getRequireBundles();
             if (requireBundles != null && !requireBundles.isEmpty()) {
                 for (ParameterizedAttribute attr : requireBundles) {
-                    String bundleName = attr.getAttribute();
+                    String bundleName = Interner.intern(attr.getAttribute());
                     XRequirement req = addRequirement(BundleNamespace.BUNDLE_NAMESPACE, bundleName);
                     req.getAttributes().putAll(getAttributes(attr));
                     req.getDirectives().putAll(getDirectives(attr));
@@ -232,7 +232,7 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
             List<PackageAttribute> exports = metadata.getExportPackages();
             if (exports != null && !exports.isEmpty()) {
                 for (PackageAttribute attr : exports) {
-                    String packageName = attr.getAttribute();
+                    String packageName = Interner.intern(attr.getAttribute());
                     XCapability cap = addCapability(PackageNamespace.PACKAGE_NAMESPACE, packageName);
                     cap.getAttributes().putAll(getAttributes(attr));
                     cap.getDirectives().putAll(getDirectives(attr));
@@ -243,17 +243,19 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
                         capatts.put(Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE, symbolicName);
                     if (!capatts.containsKey(Constants.BUNDLE_VERSION_ATTRIBUTE))
                         capatts.put(Constants.BUNDLE_VERSION_ATTRIBUTE, bundleVersion);
-                    if (!capatts.containsKey(Constants.PACKAGE_SPECIFICATION_VERSION)) {
-                        Object vspec = capatts.get(Constants.VERSION_ATTRIBUTE);
-                        if (vspec != null) {
-                            try {
-                                Version version = Version.parseVersion(vspec.toString());
-                                capatts.put(Constants.PACKAGE_SPECIFICATION_VERSION, version);
-                            } catch (RuntimeException ex) {
-                                // ignore
-                            }
+                    // The version is parsed once and shared by the version and the specification version attribute
+                    Object vspec = capatts.get(Constants.VERSION_ATTRIBUTE);
+                    if (vspec != null && !(vspec instanceof Version)) {
+                        try {
+                            vspec = Interner.intern(Version.parseVersion(vspec.toString()));
+                            capatts.put(Constants.VERSION_ATTRIBUTE, vspec);
+                        } catch (RuntimeException ex) {
+                            vspec = null;
                         }
                     }
+                    if (vspec != null && !capatts.containsKey(Constants.PACKAGE_SPECIFICATION_VERSION)) {
+                        capatts.put(Constants.PACKAGE_SPECIFICATION_VERSION, vspec);
+                    }
                 }
             }
 
@@ -261,7 +263,7 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
             List<PackageAttribute> imports = metadata.getImportPackages();
             if (imports != null && !imports.isEmpty()) {
                 for (PackageAttribute attr : imports) {
-                    String packageName = attr.getAttribute();
+                    String packageName = Interner.intern(attr.getAttribute());
                     XRequirement req = addRequirement(PackageNamespace.PACKAGE_NAMESPACE, packageName);
                     req.getAttributes().putAll(getAttributes(attr));
                     req.getDirectives().putAll(getDirectives(attr));
@@ -272,7 +274,7 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
             List<PackageAttribute> dynamicImports = metadata.getDynamicImports();
             if (dynamicImports != null && !dynamicImports.isEmpty()) {
                 for (PackageAttribute attr : dynamicImports) {
-                    String packageName = attr.getAttribute();
+                    String packageName = Interner.intern(attr.getAttribute());
                     Map<String, Object> atts = new LinkedHashMap<String, Object>();
                     Map<String, String> dirs = new LinkedHashMap<String, String>();
                     atts.put(PackageNamespace.PACKAGE_NAMESPACE, packageName);
@@ -320,10 +322,10 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
         assertResourceCreated();
         try {
             ModuleIdentifier moduleId = module.getIdentifier();
-            String symbolicName = moduleId.getName();
+            String symbolicName = Interner.intern(moduleId.getName());
             Version version;
             try {
-                version = Version.parseVersion(moduleId.getSlot());
+                version = Interner.intern(Version.parseVersion(moduleId.getSlot()));
             } catch (IllegalArgumentException ex) {
                 version = Version.emptyVersion;
             }
@@ -342,7 +344,7 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
                 @Override
                 protected void addPackage(String packageName)
                 {
-                    addCapability(PackageNamespace.PACKAGE_NAMESPACE, packageName);
+                    addCapability(PackageNamespace.PACKAGE_NAMESPACE, Interner.intern(packageName));
                 }
             }.collectExportPackages();
 
@@ -377,7 +379,7 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
         if (patts != null) {
             for (String key : patts.getAttributes().keySet()) {
                 Parameter param = patts.getAttribute(key);
-                atts.put(key, param.getValue());
+                atts.put(key, Interner.internValue(param.getValue()));
             }
         }
         return atts;
@@ -388,7 +390,7 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
         if (patts != null) {
             for (String key : patts.getDirectives().keySet()) {
                 String value = patts.getDirectiveValue(key, String.class);
-                dirs.put(key, value);
+                dirs.put(key, Interner.intern(value));
             }
         }
         return dirs;
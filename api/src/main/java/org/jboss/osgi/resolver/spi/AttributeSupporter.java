@@ -20,6 +20,7 @@
 package org.jboss.osgi.resolver.spi;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.jboss.osgi.resolver.XAttributeSupport;
@@ -49,6 +50,18 @@ public class AttributeSupporter implements XAttributeSupport {
         return attributes;
     }
 
+    /**
+     * Replace the attributes by a compact immutable copy, or by a mutable copy again.
+     */
+    void setMutable(boolean mutable) {
+        if (mutable) {
+            if (attributes instanceof CompactMap)
+                attributes = new LinkedHashMap<String, Object>(attributes);
+        } else {
+            attributes = CompactMap.copyOf(attributes);
+        }
+    }
+
     @Override
     public String toString() {
         return getAttributes().toString();
@@ -0,0 +1,540 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import static org.osgi.framework.namespace.AbstractWiringNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE;
+import static org.osgi.framework.namespace.BundleNamespace.BUNDLE_NAMESPACE;
+import static org.osgi.framework.namespace.HostNamespace.HOST_NAMESPACE;
+import static org.osgi.framework.namespace.PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE;
+import static org.osgi.framework.namespace.PackageNamespace.PACKAGE_NAMESPACE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+
+/**
+ * An index of capabilities by namespace and namespace value.
+ *
+ * Within a namespace value the capabilities are kept in version order, so that the version range
+ * of a requirement can be answered by a range scan. Only the capabilities in range must
+ * subsequently be matched against the requirement.
+ *
+ * Requirements that use a wildcard or an ordering operator on the namespace value are answered from a sorted
+ * array of the namespace values. Requirements that do not constrain the namespace value get the flat list of
+ * capabilities in that namespace. Both are derived lazily and live as long as the namespace is not modified.
+ *
+ * An index is immutable and can be read concurrently. Modifications are made through a {@link Builder}.
+ * The namespaces and namespace values are kept in persistent maps, so that a modified index shares everything
+ * but the paths to the modified entries with its predecessor.
+ */
+final class CapabilityIndex {
+
+    private final PersistentHashMap<String, NamespaceEntry> namespaces;
+    // The install sequence of the next capability
+    private final long sequence;
+
+    CapabilityIndex() {
+        namespaces = PersistentHashMap.empty();
+        sequence = 0;
+    }
+
+    private CapabilityIndex(PersistentHashMap<String, NamespaceEntry> namespaces, long sequence) {
+        this.namespaces = namespaces;
+        this.sequence = sequence;
+    }
+
+    Builder builder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Get the name of the attribute that carries the version for capabilities in the given namespace.
+     *
+     * @return the attribute name or null if capabilities in this namespace are not indexed by version
+     */
+    static String getVersionAttribute(String namespace) {
+        if (PACKAGE_NAMESPACE.equals(namespace) || AbstractResource.identityNamespaces.contains(namespace)) {
+            return CAPABILITY_VERSION_ATTRIBUTE;
+        } else if (BUNDLE_NAMESPACE.equals(namespace) || HOST_NAMESPACE.equals(namespace)) {
+            return CAPABILITY_BUNDLE_VERSION_ATTRIBUTE;
+        }
+        return null;
+    }
+
+    /**
+     * Get the version range that the filter of the given requirement imposes on matching capabilities.
+     *
+     * @return the version range or null if the requirement does not constrain the version
+     */
+    static VersionRange getVersionRange(Requirement req) {
+        if (req instanceof AbstractRequirement) {
+            return ((AbstractRequirement) req).getFilterVersionRange();
+        }
+        return getVersionRange(req.getNamespace(), getFilterNode(req));
+    }
+
+    static VersionRange getVersionRange(String namespace, FilterParser.Node node) {
+        String attrname = getVersionAttribute(namespace);
+        return attrname != null && node != null ? FilterParser.getVersionRange(node, attrname) : null;
+    }
+
+    /**
+     * Get the parsed filter of the given requirement.
+     *
+     * @return the filter tree or null if the requirement does not have a filter that can be parsed
+     */
+    static FilterParser.Node getFilterNode(Requirement req) {
+        if (req instanceof AbstractRequirement) {
+            return ((AbstractRequirement) req).getFilterNode();
+        }
+        return parseFilter(AbstractRequirement.getFilterFromDirective(req));
+    }
+
+    static FilterParser.Node parseFilter(Filter filter) {
+        FilterParser.Node result = null;
+        if (filter != null) {
+            try {
+                result = FilterParser.parse(filter.toString());
+            } catch (IllegalArgumentException ex) {
+                // fall back to the unconstrained candidates
+            }
+        }
+        return result;
+    }
+
+    boolean contains(Capability cap) {
+        NamespaceEntry nsentry = namespaces.get(cap.getNamespace());
+        ValueEntry entry = nsentry != null ? nsentry.values.get(getNamespaceValue(cap)) : null;
+        return entry != null && entry.capabilities.containsKey(cap);
+    }
+
+    /**
+     * Find the candidate capabilities for the given requirement.
+     *
+     * The result contains every capability that may match the requirement in install order.
+     * It may contain capabilities that do not match.
+     */
+    List<Capability> findCandidates(Requirement req) {
+        NamespaceEntry nsentry = namespaces.get(req.getNamespace());
+        if (nsentry == null)
+            return Collections.emptyList();
+
+        FilterParser.Node node = getFilterNode(req);
+        FilterParser.Node clause = node != null ? FilterParser.getClause(node, req.getNamespace()) : null;
+        VersionRange range = getVersionRange(req);
+
+        // A single namespace value
+        if (clause != null && clause.op == FilterParser.EQUAL) {
+            ValueEntry entry = nsentry.values.get(clause.value);
+            return entry != null ? entry.getCandidates(range) : Collections.<Capability> emptyList();
+        }
+
+        // A range of namespace values
+        String[] sorted = null;
+        int from = 0, to = 0;
+        if (clause != null && clause.op == FilterParser.SUBSTRING && clause.substrings[0].length() > 0) {
+            String prefix = clause.substrings[0];
+            sorted = nsentry.getSortedValues();
+            from = lowerBound(sorted, prefix);
+            to = from;
+            while (to < sorted.length && sorted[to].startsWith(prefix)) {
+                to++;
+            }
+        } else if (clause != null && clause.op == FilterParser.GREATER) {
+            sorted = nsentry.getSortedValues();
+            from = lowerBound(sorted, clause.value);
+            to = sorted.length;
+        } else if (clause != null && clause.op == FilterParser.LESS) {
+            sorted = nsentry.getSortedValues();
+            to = upperBound(sorted, clause.value);
+        }
+        if (sorted != null) {
+            if (to - from == 1) {
+                return nsentry.values.get(sorted[from]).getCandidates(range);
+            }
+            Map<Capability, Long> sequences = new HashMap<Capability, Long>();
+            for (int i = from; i < to; i++) {
+                ValueEntry entry = nsentry.values.get(sorted[i]);
+                for (Capability cap : entry.getCandidates(range)) {
+                    sequences.put(cap, entry.getSequence(cap));
+                }
+            }
+            return sortBySequence(sequences);
+        }
+
+        // Any namespace value
+        return new ArrayList<Capability>(nsentry.getCapabilities());
+    }
+
+    private static int lowerBound(String[] sorted, String key) {
+        int index = Arrays.binarySearch(sorted, key);
+        return index >= 0 ? index : -(index + 1);
+    }
+
+    private static int upperBound(String[] sorted, String key) {
+        int index = Arrays.binarySearch(sorted, key);
+        return index >= 0 ? index + 1 : -(index + 1);
+    }
+
+    /**
+     * Get the capabilities of the given map in the order of their install sequence.
+     */
+    private static List<Capability> sortBySequence(Map<Capability, Long> sequences) {
+        List<Capability> result = new ArrayList<Capability>(sequences.keySet());
+        Collections.sort(result, new SequenceComparator(sequences));
+        return result;
+    }
+
+    private static String getNamespaceValue(Capability cap) {
+        return (String) cap.getAttributes().get(cap.getNamespace());
+    }
+
+    /**
+     * Builds a new index from an existing one.
+     *
+     * The value entries of the source index are shared until they are modified,
+     * at which point the builder works on its own copy.
+     */
+    static final class Builder {
+
+        private final PersistentHashMap.Editor<String, NamespaceEntry> namespaces;
+        private final Map<String, PersistentHashMap.Editor<String, ValueEntry>> modified = new HashMap<String, PersistentHashMap.Editor<String, ValueEntry>>();
+        private final Set<Object> owned = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        private long sequence;
+
+        private Builder(CapabilityIndex index) {
+            namespaces = index.namespaces.editor();
+            sequence = index.sequence;
+        }
+
+        boolean contains(Capability cap) {
+            ValueEntry entry = getValueEntry(cap.getNamespace(), getNamespaceValue(cap));
+            return entry != null && entry.capabilities.containsKey(cap);
+        }
+
+        /**
+         * Merge the capabilities of the given fragment. Value entries that do not exist yet are taken over
+         * from the fragment, so the cost of a merge is mostly proportional to the number of distinct values.
+         *
+         * The capabilities of the fragment follow all capabilities merged before in install order.
+         */
+        void merge(Fragment fragment) {
+            long base = sequence;
+            sequence += fragment.sequence;
+            for (Entry<String, Map<String, ValueEntry>> nsentry : fragment.namespaces.entrySet()) {
+                PersistentHashMap.Editor<String, ValueEntry> values = getValues(nsentry.getKey(), true);
+                for (Entry<String, ValueEntry> entry : nsentry.getValue().entrySet()) {
+                    String nsvalue = entry.getKey();
+                    ValueEntry target = values.get(nsvalue);
+                    if (target == null) {
+                        target = entry.getValue();
+                        target.offset = base;
+                        owned.add(target);
+                        values.put(nsvalue, target);
+                    } else {
+                        if (!owned.contains(target)) {
+                            target = new ValueEntry(target);
+                            owned.add(target);
+                            values.put(nsvalue, target);
+                        }
+                        for (Entry<Capability, Long> aux : entry.getValue().capabilities.entrySet()) {
+                            target.add(aux.getKey(), base + aux.getValue());
+                        }
+                    }
+                }
+            }
+        }
+
+        void remove(Capability cap) {
+            if (!contains(cap))
+                return;
+
+            PersistentHashMap.Editor<String, ValueEntry> values = getValues(cap.getNamespace(), false);
+            String nsvalue = getNamespaceValue(cap);
+            ValueEntry entry = values.get(nsvalue);
+            if (entry.capabilities.size() == 1) {
+                values.remove(nsvalue);
+            } else {
+                if (!owned.contains(entry)) {
+                    entry = new ValueEntry(entry);
+                    owned.add(entry);
+                    values.put(nsvalue, entry);
+                }
+                entry.remove(cap);
+            }
+        }
+
+        /**
+         * Build the index. The builder can continue to be used, without affecting the returned index.
+         */
+        CapabilityIndex build() {
+            for (Entry<String, PersistentHashMap.Editor<String, ValueEntry>> entry : modified.entrySet()) {
+                PersistentHashMap.Editor<String, ValueEntry> values = entry.getValue();
+                if (values.size() > 0) {
+                    namespaces.put(entry.getKey(), new NamespaceEntry(values.build()));
+                } else {
+                    namespaces.remove(entry.getKey());
+                }
+            }
+            modified.clear();
+            owned.clear();
+            return new CapabilityIndex(namespaces.build(), sequence);
+        }
+
+        private ValueEntry getValueEntry(String namespace, String nsvalue) {
+            PersistentHashMap.Editor<String, ValueEntry> values = modified.get(namespace);
+            if (values != null) {
+                return values.get(nsvalue);
+            }
+            NamespaceEntry nsentry = namespaces.get(namespace);
+            return nsentry != null ? nsentry.values.get(nsvalue) : null;
+        }
+
+        private PersistentHashMap.Editor<String, ValueEntry> getValues(String namespace, boolean create) {
+            PersistentHashMap.Editor<String, ValueEntry> values = modified.get(namespace);
+            if (values == null) {
+                NamespaceEntry nsentry = namespaces.get(namespace);
+                if (nsentry != null) {
+                    values = nsentry.values.editor();
+                } else if (create) {
+                    values = PersistentHashMap.<String, ValueEntry> empty().editor();
+                } else {
+                    return null;
+                }
+                modified.put(namespace, values);
+            }
+            return values;
+        }
+    }
+
+    /**
+     * The capabilities of a batch of resources, grouped by namespace and value.
+     *
+     * A fragment does not depend on an index, so that it can be prepared concurrently and outside of
+     * the environment lock. It is then merged into a {@link Builder} and must not be used thereafter.
+     */
+    static final class Fragment {
+
+        private final Map<String, Map<String, ValueEntry>> namespaces = new HashMap<String, Map<String, ValueEntry>>();
+        // The install sequence of the next capability, relative to the start of the fragment
+        private long sequence;
+
+        void add(Capability cap) {
+            String namespace = cap.getNamespace();
+            Map<String, ValueEntry> values = namespaces.get(namespace);
+            if (values == null) {
+                values = new HashMap<String, ValueEntry>();
+                namespaces.put(namespace, values);
+            }
+            String nsvalue = getNamespaceValue(cap);
+            ValueEntry entry = values.get(nsvalue);
+            if (entry == null) {
+                entry = new ValueEntry(getVersionAttribute(namespace));
+                values.put(nsvalue, entry);
+            }
+            entry.add(cap, sequence++);
+        }
+    }
+
+    /**
+     * The capabilities in a given namespace.
+     *
+     * The sorted values and the flat list of capabilities are derived on first use. An entry is immutable,
+     * so the derived state stays valid.
+     */
+    private static class NamespaceEntry {
+
+        private final PersistentHashMap<String, ValueEntry> values;
+        private volatile String[] sortedValues;
+        private volatile List<Capability> capabilities;
+
+        NamespaceEntry(PersistentHashMap<String, ValueEntry> values) {
+            this.values = values;
+        }
+
+        String[] getSortedValues() {
+            String[] result = sortedValues;
+            if (result == null) {
+                List<String> keys = new ArrayList<String>(values.size());
+                for (String key : values.keySet()) {
+                    if (key != null) {
+                        keys.add(key);
+                    }
+                }
+                result = keys.toArray(new String[keys.size()]);
+                Arrays.sort(result);
+                sortedValues = result;
+            }
+            return result;
+        }
+
+        List<Capability> getCapabilities() {
+            List<Capability> result = capabilities;
+            if (result == null) {
+                Map<Capability, Long> sequences = new HashMap<Capability, Long>();
+                for (ValueEntry entry : values.values()) {
+                    for (Capability cap : entry.capabilities.keySet()) {
+                        sequences.put(cap, entry.getSequence(cap));
+                    }
+                }
+                result = Collections.unmodifiableList(sortBySequence(sequences));
+                capabilities = result;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The capabilities for a given namespace value.
+     *
+     * Each capability is mapped to its install sequence relative to the offset of the entry. An entry that is
+     * taken over from a fragment only needs its offset to be set.
+     */
+    private static class ValueEntry {
+
+        private final String versionAttribute;
+        private final Map<Capability, Long> capabilities;
+        private final NavigableMap<Version, List<Capability>> versioned;
+        private final List<Capability> unversioned;
+        private long offset;
+
+        ValueEntry(String versionAttribute) {
+            this.versionAttribute = versionAttribute;
+            this.capabilities = new LinkedHashMap<Capability, Long>();
+            this.versioned = new TreeMap<Version, List<Capability>>();
+            this.unversioned = new ArrayList<Capability>();
+        }
+
+        ValueEntry(ValueEntry entry) {
+            this.versionAttribute = entry.versionAttribute;
+            this.capabilities = new LinkedHashMap<Capability, Long>(entry.capabilities);
+            this.offset = entry.offset;
+            this.versioned = new TreeMap<Version, List<Capability>>();
+            for (Entry<Version, List<Capability>> aux : entry.versioned.entrySet()) {
+                versioned.put(aux.getKey(), new ArrayList<Capability>(aux.getValue()));
+            }
+            this.unversioned = new ArrayList<Capability>(entry.unversioned);
+        }
+
+        long getSequence(Capability cap) {
+            return offset + capabilities.get(cap);
+        }
+
+        /**
+         * Add a capability with the given absolute install sequence.
+         */
+        void add(Capability cap, long sequence) {
+            if (!capabilities.containsKey(cap)) {
+                capabilities.put(cap, sequence - offset);
+                Version version = getVersion(cap);
+                if (version != null) {
+                    List<Capability> caps = versioned.get(version);
+                    if (caps == null) {
+                        caps = new ArrayList<Capability>(1);
+                        versioned.put(version, caps);
+                    }
+                    caps.add(cap);
+                } else {
+                    unversioned.add(cap);
+                }
+            }
+        }
+
+        void remove(Capability cap) {
+            capabilities.remove(cap);
+            Version version = getVersion(cap);
+            if (version != null) {
+                List<Capability> caps = versioned.get(version);
+                caps.remove(cap);
+                if (caps.isEmpty()) {
+                    versioned.remove(version);
+                }
+            } else {
+                unversioned.remove(cap);
+            }
+        }
+
+        List<Capability> getCandidates(VersionRange range) {
+            if (range == null || versioned.isEmpty()) {
+                return new ArrayList<Capability>(capabilities.keySet());
+            }
+
+            // Capabilities without a version are always candidates
+            List<Capability> result = new ArrayList<Capability>(unversioned);
+            if (!range.isEmpty()) {
+                NavigableMap<Version, List<Capability>> inrange;
+                boolean leftClosed = range.getLeftType() == VersionRange.LEFT_CLOSED;
+                if (range.getRight() != null) {
+                    boolean rightClosed = range.getRightType() == VersionRange.RIGHT_CLOSED;
+                    inrange = versioned.subMap(range.getLeft(), leftClosed, range.getRight(), rightClosed);
+                } else {
+                    inrange = versioned.tailMap(range.getLeft(), leftClosed);
+                }
+                for (List<Capability> caps : inrange.values()) {
+                    result.addAll(caps);
+                }
+                if (inrange.size() > 1 || (!unversioned.isEmpty() && !inrange.isEmpty())) {
+                    Collections.sort(result, new SequenceComparator(capabilities));
+                }
+            }
+            return result;
+        }
+
+        private Version getVersion(Capability cap) {
+            Object value = versionAttribute != null ? CompiledFilter.getAttribute(cap, versionAttribute) : null;
+            return value instanceof Version ? (Version) value : null;
+        }
+    }
+
+    /**
+     * Orders capabilities by their install sequence.
+     */
+    private static class SequenceComparator implements Comparator<Capability> {
+
+        private final Map<Capability, Long> sequences;
+
+        SequenceComparator(Map<Capability, Long> sequences) {
+            this.sequences = sequences;
+        }
+
+        @Override
+        public int compare(Capability cap1, Capability cap2) {
+            long seq1 = sequences.get(cap1);
+            long seq2 = sequences.get(cap2);
+            return seq1 < seq2 ? -1 : (seq1 == seq2 ? 0 : 1);
+        }
+    }
+}
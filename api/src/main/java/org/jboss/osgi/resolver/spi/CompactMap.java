@@ -0,0 +1,151 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map of attributes or directives that keeps its entries in two arrays.
+ *
+ * Compared to a hash map there are no entry objects and no table, which matters for the
+ * small maps of the thousands of capabilities and requirements in an environment.
+ * Keys are interned with {@link String#intern()}, so that lookups with constant keys mostly succeed
+ * on identity. Values are shared through the {@link Interner}.
+ *
+ * The entries keep the iteration order of the map they are copied from.
+ */
+final class CompactMap<V> extends AbstractMap<String, V> {
+
+    private static final String[] NO_KEYS = new String[0];
+    private static final CompactMap<Object> EMPTY = new CompactMap<Object>(NO_KEYS, new Object[0]);
+
+    private final String[] keys;
+    private final Object[] values;
+
+    private CompactMap(String[] keys, Object[] values) {
+        this.keys = keys;
+        this.values = values;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> CompactMap<V> empty() {
+        return (CompactMap<V>) EMPTY;
+    }
+
+    static <V> CompactMap<V> copyOf(Map<String, ? extends V> map) {
+        if (map instanceof CompactMap) {
+            @SuppressWarnings("unchecked")
+            CompactMap<V> result = (CompactMap<V>) map;
+            return result;
+        }
+        if (map == null || map.isEmpty())
+            return empty();
+
+        String[] keys = new String[map.size()];
+        Object[] values = new Object[keys.length];
+        int index = 0;
+        for (Map.Entry<String, ? extends V> entry : map.entrySet()) {
+            String key = entry.getKey();
+            keys[index] = key != null ? key.intern() : null;
+            values[index] = Interner.internValue(entry.getValue());
+            index++;
+        }
+        return new CompactMap<V>(keys, values);
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int index = indexOf(key);
+        return index >= 0 ? (V) values[index] : null;
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == key)
+                return i;
+        }
+        if (key != null) {
+            for (int i = 0; i < keys.length; i++) {
+                if (key.equals(keys[i]))
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        return new AbstractSet<Map.Entry<String, V>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, V>> iterator() {
+                return new Iterator<Map.Entry<String, V>>() {
+                    int index;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < keys.length;
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Map.Entry<String, V> next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        Map.Entry<String, V> result = new SimpleImmutableEntry<String, V>(keys[index], (V) values[index]);
+                        index++;
+                        return result;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+        };
+    }
+}
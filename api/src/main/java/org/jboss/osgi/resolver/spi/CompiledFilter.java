@@ -0,0 +1,352 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import static org.jboss.osgi.resolver.ResolverMessages.MESSAGES;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.jboss.osgi.resolver.XCapability;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+
+/**
+ * A requirement filter that is compiled into a tree of specialised predicates.
+ *
+ * The operands of a clause are parsed once at compile time, so that matching a capability neither
+ * parses versions or numbers nor copies the capability attributes. Clauses with the approximate operator
+ * and attribute values of types other than {@link String}, {@link Version}, {@link Long} or collections
+ * thereof are evaluated by an OSGi {@link Filter} for the respective clause.
+ *
+ * A compiled filter matches exactly the capabilities that the OSGi filter it was compiled from matches.
+ */
+abstract class CompiledFilter {
+
+    /**
+     * Compile the given filter tree.
+     */
+    static CompiledFilter compile(FilterParser.Node node) {
+        switch (node.op) {
+            case FilterParser.AND:
+                return new And(compileChildren(node));
+            case FilterParser.OR:
+                return new Or(compileChildren(node));
+            case FilterParser.NOT:
+                return new Not(compile(node.children[0]));
+            case FilterParser.PRESENT:
+                return new Present(node.attr);
+            case FilterParser.APPROX:
+                return new Fallback(node);
+            default:
+                return new Clause(node);
+        }
+    }
+
+    private static CompiledFilter[] compileChildren(FilterParser.Node node) {
+        CompiledFilter[] result = new CompiledFilter[node.children.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = compile(node.children[i]);
+        }
+        return result;
+    }
+
+    abstract boolean matches(Capability cap);
+
+    static Object getAttribute(Capability cap, String key) {
+        return cap instanceof XCapability ? ((XCapability) cap).getAttribute(key) : cap.getAttributes().get(key);
+    }
+
+    static final class And extends CompiledFilter {
+
+        private final CompiledFilter[] children;
+
+        And(CompiledFilter[] children) {
+            this.children = children;
+        }
+
+        @Override
+        boolean matches(Capability cap) {
+            for (CompiledFilter child : children) {
+                if (!child.matches(cap))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    static final class Or extends CompiledFilter {
+
+        private final CompiledFilter[] children;
+
+        Or(CompiledFilter[] children) {
+            this.children = children;
+        }
+
+        @Override
+        boolean matches(Capability cap) {
+            for (CompiledFilter child : children) {
+                if (child.matches(cap))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    static final class Not extends CompiledFilter {
+
+        private final CompiledFilter child;
+
+        Not(CompiledFilter child) {
+            this.child = child;
+        }
+
+        @Override
+        boolean matches(Capability cap) {
+            return !child.matches(cap);
+        }
+    }
+
+    static final class Present extends CompiledFilter {
+
+        private final String attr;
+
+        Present(String attr) {
+            this.attr = attr;
+        }
+
+        @Override
+        boolean matches(Capability cap) {
+            return getAttribute(cap, attr) != null;
+        }
+    }
+
+    /**
+     * A clause that is evaluated by an OSGi filter.
+     */
+    static class Fallback extends CompiledFilter {
+
+        final String attr;
+        private final String filterspec;
+        private volatile Filter filter;
+
+        Fallback(FilterParser.Node node) {
+            this.attr = node.attr;
+            this.filterspec = toFilterString(node);
+        }
+
+        @Override
+        boolean matches(Capability cap) {
+            return getAttribute(cap, attr) != null && getFilter().matches(cap.getAttributes());
+        }
+
+        private Filter getFilter() {
+            Filter result = filter;
+            if (result == null) {
+                try {
+                    result = filter = FrameworkUtil.createFilter(filterspec);
+                } catch (InvalidSyntaxException ex) {
+                    throw MESSAGES.illegalArgumentInvalidFilterDirective(filterspec);
+                }
+            }
+            return result;
+        }
+
+        private static String toFilterString(FilterParser.Node node) {
+            StringBuilder builder = new StringBuilder("(").append(node.attr);
+            switch (node.op) {
+                case FilterParser.APPROX:
+                    builder.append("~=");
+                    break;
+                case FilterParser.GREATER:
+                    builder.append(">=");
+                    break;
+                case FilterParser.LESS:
+                    builder.append("<=");
+                    break;
+                default:
+                    builder.append("=");
+            }
+            if (node.op == FilterParser.SUBSTRING) {
+                // the value of a substring clause is kept in its escaped form
+                builder.append(node.value);
+            } else {
+                for (int i = 0; i < node.value.length(); i++) {
+                    char ch = node.value.charAt(i);
+                    if (ch == '\\' || ch == '(' || ch == ')' || ch == '*') {
+                        builder.append('\\');
+                    }
+                    builder.append(ch);
+                }
+            }
+            return builder.append(")").toString();
+        }
+    }
+
+    /**
+     * An equal, greater, less or substring clause.
+     *
+     * The operand is parsed into a {@link Version} and a long when possible. Attribute values of
+     * other types are evaluated by the OSGi filter of this clause.
+     */
+    static final class Clause extends Fallback {
+
+        private final int op;
+        private final String value;
+        private final String[] substrings;
+        private final Version version;
+        private final boolean isLong;
+        private final long longValue;
+
+        Clause(FilterParser.Node node) {
+            super(node);
+            this.op = node.op;
+            this.value = node.value;
+            this.substrings = op == FilterParser.SUBSTRING ? toSubstrings(node.substrings) : null;
+            if (op != FilterParser.SUBSTRING) {
+                Version auxver;
+                try {
+                    auxver = new Version(value.trim());
+                } catch (IllegalArgumentException ex) {
+                    auxver = null;
+                }
+                version = auxver;
+                long auxlong = 0;
+                boolean auxislong;
+                try {
+                    auxlong = Long.parseLong(value.trim());
+                    auxislong = true;
+                } catch (NumberFormatException ex) {
+                    auxislong = false;
+                }
+                longValue = auxlong;
+                isLong = auxislong;
+            } else {
+                version = null;
+                longValue = 0;
+                isLong = false;
+            }
+        }
+
+        @Override
+        boolean matches(Capability cap) {
+            Object attval = getAttribute(cap, attr);
+            if (attval instanceof Collection) {
+                for (Object element : (Collection<?>) attval) {
+                    if (element != null && !isSpecialised(element))
+                        return super.matches(cap);
+                    if (element != null && matchesValue(element))
+                        return true;
+                }
+                return false;
+            }
+            if (attval != null && !isSpecialised(attval))
+                return super.matches(cap);
+            return attval != null && matchesValue(attval);
+        }
+
+        private static boolean isSpecialised(Object value) {
+            return value instanceof String || value instanceof Version || value instanceof Long;
+        }
+
+        private boolean matchesValue(Object attval) {
+            if (attval instanceof String) {
+                String strval = (String) attval;
+                switch (op) {
+                    case FilterParser.EQUAL:
+                        return strval.equals(value);
+                    case FilterParser.GREATER:
+                        return strval.compareTo(value) >= 0;
+                    case FilterParser.LESS:
+                        return strval.compareTo(value) <= 0;
+                    default:
+                        return matchesSubstrings(strval);
+                }
+            } else if (attval instanceof Version) {
+                return version != null && matchesComparison(((Version) attval).compareTo(version));
+            } else {
+                long longval = (Long) attval;
+                return isLong && matchesComparison(longval < longValue ? -1 : longval == longValue ? 0 : 1);
+            }
+        }
+
+        private boolean matchesComparison(int comp) {
+            switch (op) {
+                case FilterParser.EQUAL:
+                    return comp == 0;
+                case FilterParser.GREATER:
+                    return comp >= 0;
+                case FilterParser.LESS:
+                    return comp <= 0;
+                default:
+                    return false;
+            }
+        }
+
+        // Matches the substrings in the same way as the framework filter does
+        private boolean matchesSubstrings(String string) {
+            int pos = 0;
+            for (int i = 0, size = substrings.length; i < size; i++) {
+                String substr = substrings[i];
+                if (i + 1 < size) {
+                    if (substr == null) {
+                        String substr2 = substrings[i + 1];
+                        if (substr2 == null)
+                            continue;
+                        int index = string.indexOf(substr2, pos);
+                        if (index == -1)
+                            return false;
+                        pos = index + substr2.length();
+                        if (i + 2 < size) {
+                            i++;
+                        }
+                        continue;
+                    }
+                    int len = substr.length();
+                    if (string.regionMatches(pos, substr, 0, len)) {
+                        pos += len;
+                        continue;
+                    }
+                    return false;
+                }
+                return substr == null || string.endsWith(substr);
+            }
+            return true;
+        }
+
+        // Convert the parts between the wildcards into a sequence of strings where null denotes a wildcard
+        private static String[] toSubstrings(String[] parts) {
+            List<String> result = new ArrayList<String>();
+            for (int i = 0; i < parts.length; i++) {
+                if (i > 0) {
+                    result.add(null);
+                }
+                if (parts[i].length() > 0) {
+                    result.add(parts[i]);
+                }
+            }
+            return result.toArray(new String[result.size()]);
+        }
+    }
+}
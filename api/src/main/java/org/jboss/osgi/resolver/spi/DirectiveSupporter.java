@@ -20,6 +20,7 @@
 package org.jboss.osgi.resolver.spi;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.jboss.osgi.resolver.XDirectiveSupport;
@@ -49,6 +50,18 @@ public class DirectiveSupporter implements XDirectiveSupport {
         return directives;
     }
 
+    /**
+     * Replace the directives by a compact immutable copy, or by a mutable copy again.
+     */
+    void setMutable(boolean mutable) {
+        if (mutable) {
+            if (directives instanceof CompactMap)
+                directives = new LinkedHashMap<String, String>(directives);
+        } else {
+            directives = CompactMap.copyOf(directives);
+        }
+    }
+
     @Override
     public String toString() {
         return getDirectives().toString();
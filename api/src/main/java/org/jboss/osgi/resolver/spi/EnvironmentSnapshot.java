@@ -0,0 +1,260 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.osgi.resolver.XResource;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+
+/**
+ * An immutable point-in-time view of the resources and capabilities in an {@link AbstractEnvironment}.
+ *
+ * Readers obtain the current snapshot without locking. Writers create a new snapshot through a {@link Builder}
+ * and publish it atomically. The maps of a snapshot are persistent, so that the next snapshot shares
+ * everything with its predecessor except the paths to the modified entries. Installing or uninstalling
+ * a single resource therefore costs time proportional to the depth of the maps, not to the number of
+ * installed resources.
+ *
+ * A change of the wirings only starts a new epoch, see {@link #nextEpoch()}.
+ */
+final class EnvironmentSnapshot {
+
+    static final EnvironmentSnapshot EMPTY = new EnvironmentSnapshot(0, new CapabilityIndex(), PersistentHashMap.<String, ResourceArray> empty(), PersistentLongHashMap.<XResource> empty(), null);
+
+    private final long version;
+    private final CapabilityIndex capabilities;
+    private final PersistentHashMap<String, ResourceArray> resourcesByType;
+    private final PersistentLongHashMap<XResource> resourcesById;
+    private volatile ConcurrentMap<Requirement, List<Capability>> providerCache;
+
+    private EnvironmentSnapshot(long version, CapabilityIndex capabilities, PersistentHashMap<String, ResourceArray> resourcesByType, PersistentLongHashMap<XResource> resourcesById, ConcurrentMap<Requirement, List<Capability>> providerCache) {
+        this.version = version;
+        this.capabilities = capabilities;
+        this.resourcesByType = resourcesByType;
+        this.resourcesById = resourcesById;
+        this.providerCache = providerCache;
+    }
+
+    /**
+     * The version of this snapshot, which increases with every published modification of the environment.
+     * It is the epoch for state that is derived from the snapshot.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    CapabilityIndex getCapabilities() {
+        return capabilities;
+    }
+
+    Set<String> getResourceTypes() {
+        return resourcesByType.keySet();
+    }
+
+    /**
+     * Get the resources of the given type in install order.
+     */
+    ResourceArray getResources(String type) {
+        ResourceArray result = resourcesByType.get(type);
+        return result != null ? result : ResourceArray.EMPTY;
+    }
+
+    XResource getResourceById(long resId) {
+        return resourcesById.get(resId);
+    }
+
+    /**
+     * Get the installed resources in no particular order.
+     */
+    Collection<XResource> getAllResources() {
+        return resourcesById.values();
+    }
+
+    /**
+     * Get the cache of requirement matches, which is valid for the lifetime of this snapshot and the snapshots
+     * of its later epochs. The cache is created on first use, a later epoch shares it if it existed at that time.
+     */
+    ConcurrentMap<Requirement, List<Capability>> getProviderCache() {
+        ConcurrentMap<Requirement, List<Capability>> result = providerCache;
+        if (result == null) {
+            synchronized (this) {
+                result = providerCache;
+                if (result == null) {
+                    result = new ConcurrentHashMap<Requirement, List<Capability>>();
+                    providerCache = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get a snapshot of the next epoch with the same resources and capabilities.
+     *
+     * The resource arrays and the provider cache are carried over, because they do not depend on the wirings.
+     */
+    EnvironmentSnapshot nextEpoch() {
+        return new EnvironmentSnapshot(version + 1, capabilities, resourcesByType, resourcesById, providerCache);
+    }
+
+    Builder builder() {
+        return new Builder(this);
+    }
+
+    /**
+     * The resources of a type in install order.
+     *
+     * The snapshots share the backing array and each one sees a prefix of it. A builder appends to the backing array
+     * in place, as long as it has spare capacity and no other builder has appended to it after this prefix.
+     * The elements of a prefix are therefore never modified, and installing resources one by one takes amortized
+     * constant time per resource.
+     */
+    static final class ResourceArray {
+
+        static final ResourceArray EMPTY = new ResourceArray(new XResource[0], 0, new AtomicInteger());
+
+        private final XResource[] elements;
+        private final int size;
+        // The length of the longest prefix that is used by a snapshot
+        private final AtomicInteger used;
+
+        private ResourceArray(XResource[] elements, int size, AtomicInteger used) {
+            this.elements = elements;
+            this.size = size;
+            this.used = used;
+        }
+
+        int size() {
+            return size;
+        }
+
+        XResource get(int index) {
+            if (index >= size)
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            return elements[index];
+        }
+
+        private ResourceArray append(List<XResource> added) {
+            int newsize = size + added.size();
+            if (newsize <= elements.length && used.compareAndSet(size, newsize)) {
+                for (int i = size; i < newsize; i++) {
+                    elements[i] = added.get(i - size);
+                }
+                return new ResourceArray(elements, newsize, used);
+            }
+            XResource[] auxelements = new XResource[Math.max(8, newsize + (newsize >> 1))];
+            System.arraycopy(elements, 0, auxelements, 0, size);
+            for (int i = size; i < newsize; i++) {
+                auxelements[i] = added.get(i - size);
+            }
+            return new ResourceArray(auxelements, newsize, new AtomicInteger(newsize));
+        }
+
+        private ResourceArray remove(Set<XResource> removed) {
+            XResource[] auxelements = new XResource[elements.length];
+            int newsize = 0;
+            for (int i = 0; i < size; i++) {
+                if (!removed.contains(elements[i])) {
+                    auxelements[newsize++] = elements[i];
+                }
+            }
+            return new ResourceArray(auxelements, newsize, new AtomicInteger(newsize));
+        }
+    }
+
+    /**
+     * Builds the next snapshot. State that is not modified is shared with the previous snapshot.
+     *
+     * The resource arrays of the modified types are updated once, when the snapshot is built.
+     * A builder must not be used after {@link #build()}.
+     */
+    static final class Builder {
+
+        private final EnvironmentSnapshot snapshot;
+        private final CapabilityIndex.Builder capabilities;
+        private final PersistentLongHashMap.Editor<XResource> resourcesById;
+        private final Map<String, List<XResource>> addedTypes = new HashMap<String, List<XResource>>();
+        private final Map<String, Set<XResource>> removedTypes = new HashMap<String, Set<XResource>>();
+
+        private Builder(EnvironmentSnapshot snapshot) {
+            this.snapshot = snapshot;
+            this.capabilities = snapshot.capabilities.builder();
+            this.resourcesById = snapshot.resourcesById.editor();
+        }
+
+        CapabilityIndex.Builder getCapabilities() {
+            return capabilities;
+        }
+
+        void addResource(long resId, String type, XResource res) {
+            resourcesById.put(resId, res);
+            List<XResource> added = addedTypes.get(type);
+            if (added == null) {
+                added = new ArrayList<XResource>();
+                addedTypes.put(type, added);
+            }
+            added.add(res);
+        }
+
+        boolean removeResource(long resId, String type, XResource res) {
+            if (resourcesById.get(resId) != res)
+                return false;
+            resourcesById.remove(resId);
+            Set<XResource> removed = removedTypes.get(type);
+            if (removed == null) {
+                removed = Collections.newSetFromMap(new IdentityHashMap<XResource, Boolean>());
+                removedTypes.put(type, removed);
+            }
+            removed.add(res);
+            return true;
+        }
+
+        EnvironmentSnapshot build() {
+            PersistentHashMap.Editor<String, ResourceArray> resourcesByType = snapshot.resourcesByType.editor();
+            for (Entry<String, Set<XResource>> entry : removedTypes.entrySet()) {
+                ResourceArray current = resourcesByType.get(entry.getKey());
+                ResourceArray result = current.remove(entry.getValue());
+                if (result.size() == 0) {
+                    resourcesByType.remove(entry.getKey());
+                } else {
+                    resourcesByType.put(entry.getKey(), result);
+                }
+            }
+            for (Entry<String, List<XResource>> entry : addedTypes.entrySet()) {
+                ResourceArray current = resourcesByType.get(entry.getKey());
+                resourcesByType.put(entry.getKey(), (current != null ? current : ResourceArray.EMPTY).append(entry.getValue()));
+            }
+            return new EnvironmentSnapshot(snapshot.version + 1, capabilities.build(), resourcesByType.build(), resourcesById.build(), null);
+        }
+    }
+}
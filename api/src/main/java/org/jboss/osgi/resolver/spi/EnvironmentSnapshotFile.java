@@ -0,0 +1,278 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import static org.jboss.osgi.resolver.ResolverMessages.MESSAGES;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.osgi.resolver.XBundleRevision;
+import org.jboss.osgi.resolver.XCapability;
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.jboss.osgi.resolver.XWiring;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.service.resolver.HostedCapability;
+
+/**
+ * The binary file format of an environment snapshot.
+ *
+ * A file contains the installed resources in the format of a {@link ResourceWriter}, followed by their
+ * identifiers, the identifiers of the resources that have an effective wiring and the wires of these wirings. Files are written through a buffered stream and read
+ * through a memory mapped buffer.
+ */
+final class EnvironmentSnapshotFile {
+
+    private static final int MAGIC = 0x4A425253;
+    private static final int FORMAT_VERSION = 2;
+
+    // Wire flags
+    private static final byte WIRE_HOSTED_CAPABILITY = 1;
+
+    private final long resourceIndex;
+    private final List<XResource> resources;
+    private final Map<Resource, List<Wire>> wires;
+
+    private EnvironmentSnapshotFile(long resourceIndex, List<XResource> resources, Map<Resource, List<Wire>> wires) {
+        this.resourceIndex = resourceIndex;
+        this.resources = resources;
+        this.wires = wires;
+    }
+
+    /**
+     * The highest resource identifier that was allocated when the file was written.
+     */
+    long getResourceIndex() {
+        return resourceIndex;
+    }
+
+    /**
+     * The resources in install order. Each resource carries its identifier as an attachment.
+     */
+    List<XResource> getResources() {
+        return resources;
+    }
+
+    /**
+     * The required wires by requirer, in the form that is accepted by {@link AbstractEnvironment#updateWiring(Map)}.
+     * Every wired resource has an entry, which is empty if the resource has no required wires.
+     */
+    Map<Resource, List<Wire>> getWires() {
+        return wires;
+    }
+
+    /**
+     * Write the given resources and their effective wirings to the given file.
+     *
+     * @param resources the installed resources in install order
+     */
+    static void write(File file, long resourceIndex, List<XResource> resources) throws IOException {
+        Map<Resource, Long> resids = new IdentityHashMap<Resource, Long>();
+        List<XResource> wired = new ArrayList<XResource>();
+        List<Wire> reqwires = new ArrayList<Wire>();
+        for (XResource res : resources) {
+            resids.put(res, res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY));
+            XWiring wiring = res.getWiringSupport().getWiring(true);
+            if (wiring != null) {
+                wired.add(res);
+                reqwires.addAll(wiring.getRequiredResourceWires(null));
+            }
+        }
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeLong(resourceIndex);
+            output.writeInt(resources.size());
+            output.writeInt(wired.size());
+            output.writeInt(reqwires.size());
+            ResourceWriter writer = new ResourceWriter(output);
+            for (XResource res : resources) {
+                writer.writeResource(res);
+            }
+            for (XResource res : resources) {
+                output.writeLong(resids.get(res));
+            }
+            for (XResource res : wired) {
+                output.writeLong(resids.get(res));
+            }
+            for (Wire wire : reqwires) {
+                writeWire(output, wire, resids);
+            }
+            output.flush();
+            fos.getChannel().force(false);
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Read the resources and wires from the given file.
+     *
+     * @param factory the factory that creates the resources, capabilities and requirements
+     */
+    static EnvironmentSnapshotFile read(File file, XResourceBuilderFactory<?> factory) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            try {
+                if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION)
+                    throw MESSAGES.ioExceptionInvalidEnvironmentSnapshot(null, file);
+                long resourceIndex = buffer.getLong();
+                int resourceCount = buffer.getInt();
+                int wiredCount = buffer.getInt();
+                int wireCount = buffer.getInt();
+
+                InputStream body = new ByteBufferInputStream(buffer);
+                ResourceReader reader = new ResourceReader(body, factory);
+                DataInputStream input = new DataInputStream(body);
+                List<XResource> resources = new ArrayList<XResource>(resourceCount);
+                for (int i = 0; i < resourceCount; i++) {
+                    XResource res = reader.readResource();
+                    if (res == null)
+                        throw MESSAGES.ioExceptionInvalidEnvironmentSnapshot(null, file);
+                    resources.add(res);
+                }
+                Map<Long, XResource> resids = new HashMap<Long, XResource>();
+                for (XResource res : resources) {
+                    long resid = input.readLong();
+                    res.putAttachment(XResource.RESOURCE_IDENTIFIER_KEY, resid);
+                    resids.put(resid, res);
+                }
+                Map<Resource, List<Wire>> wires = new LinkedHashMap<Resource, List<Wire>>();
+                for (int i = 0; i < wiredCount; i++) {
+                    wires.put(getResource(input, resids), new ArrayList<Wire>());
+                }
+                for (int i = 0; i < wireCount; i++) {
+                    Wire wire = readWire(input, resids);
+                    List<Wire> reqwires = wires.get(wire.getRequirer());
+                    if (reqwires == null)
+                        throw MESSAGES.illegalStateResourceNotWired(wire.getRequirer());
+                    reqwires.add(wire);
+                }
+                return new EnvironmentSnapshotFile(resourceIndex, resources, wires);
+            } catch (RuntimeException ex) {
+                throw MESSAGES.ioExceptionInvalidEnvironmentSnapshot(ex, file);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeWire(DataOutputStream output, Wire wire, Map<Resource, Long> resids) throws IOException {
+        Capability cap = wire.getCapability();
+        byte flags = 0;
+        if (cap instanceof HostedCapability) {
+            cap = ((HostedCapability) cap).getDeclaredCapability();
+            flags |= WIRE_HOSTED_CAPABILITY;
+        }
+        Requirement req = wire.getRequirement();
+        int reqindex = req.getResource().getRequirements(null).indexOf(req);
+        if (reqindex < 0)
+            throw MESSAGES.illegalStateRequirementNotDeclared(req);
+        int capindex = cap.getResource().getCapabilities(null).indexOf(cap);
+        if (capindex < 0)
+            throw MESSAGES.illegalStateCapabilityNotDeclared(cap);
+        output.writeLong(getResourceId(wire.getRequirer(), resids));
+        output.writeLong(getResourceId(wire.getProvider(), resids));
+        output.writeLong(getResourceId(req.getResource(), resids));
+        output.writeInt(reqindex);
+        output.writeLong(getResourceId(cap.getResource(), resids));
+        output.writeInt(capindex);
+        output.writeByte(flags);
+    }
+
+    private static long getResourceId(Resource res, Map<Resource, Long> resids) {
+        Long resid = resids.get(res);
+        if (resid == null)
+            throw MESSAGES.illegalStateResourceNotInstalled(res);
+        return resid;
+    }
+
+    private static Wire readWire(DataInputStream input, Map<Long, XResource> resids) throws IOException {
+        XResource requirer = getResource(input, resids);
+        XResource provider = getResource(input, resids);
+        Requirement req = getResource(input, resids).getRequirements(null).get(input.readInt());
+        Capability cap = getResource(input, resids).getCapabilities(null).get(input.readInt());
+        if ((input.readByte() & WIRE_HOSTED_CAPABILITY) != 0) {
+            cap = new AbstractHostedCapability(provider, (XCapability) cap);
+        }
+        Wire wire = new AbstractWire(cap, req, provider, requirer);
+        if (provider instanceof XBundleRevision && requirer instanceof XBundleRevision) {
+            wire = new AbstractBundleWire(wire);
+        }
+        return wire;
+    }
+
+    private static XResource getResource(DataInputStream input, Map<Long, XResource> resids) throws IOException {
+        long resid = input.readLong();
+        XResource res = resids.get(resid);
+        if (res == null)
+            throw MESSAGES.illegalStateInvalidResourceIdentifier(resid);
+        return res;
+    }
+
+    // Reads from the current position of a buffer
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, len);
+            return len;
+        }
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import static org.jboss.osgi.resolver.ResolverMessages.MESSAGES;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+
+/**
+ * A parser for the RFC 1960 based filter syntax used by requirement filter directives.
+ *
+ * The resulting tree gives access to the structure of a filter, which is not exposed by {@link org.osgi.framework.Filter}.
+ */
+final class FilterParser {
+
+    static final int AND = 1;
+    static final int OR = 2;
+    static final int NOT = 3;
+    static final int EQUAL = 4;
+    static final int APPROX = 5;
+    static final int GREATER = 6;
+    static final int LESS = 7;
+    static final int PRESENT = 8;
+    static final int SUBSTRING = 9;
+
+    private final String filterspec;
+    private final char[] chars;
+    private int pos;
+
+    private FilterParser(String filterspec) {
+        this.filterspec = filterspec;
+        this.chars = filterspec.toCharArray();
+    }
+
+    static Node parse(String filterspec) {
+        if (filterspec == null)
+            throw MESSAGES.illegalArgumentNull("filter");
+
+        FilterParser parser = new FilterParser(filterspec);
+        Node result = parser.parseFilter();
+        parser.skipWhitespace();
+        if (parser.pos != parser.chars.length)
+            throw MESSAGES.illegalArgumentInvalidFilterDirective(filterspec);
+        return result;
+    }
+
+    /**
+     * Get the clause on the given attribute that every match must satisfy.
+     *
+     * Only the filter itself and the operands of top level conjunctions, which may be nested, are considered.
+     * An equality clause is preferred over other operators.
+     *
+     * @return the clause or null if the filter does not constrain the given attribute
+     */
+    static Node getClause(Node node, String attrname) {
+        if (node.op == AND) {
+            Node result = null;
+            for (Node child : node.children) {
+                Node aux = getClause(child, attrname);
+                if (aux != null) {
+                    if (aux.op == EQUAL)
+                        return aux;
+                    if (result == null) {
+                        result = aux;
+                    }
+                }
+            }
+            return result;
+        }
+        return node.attr != null && node.attr.equalsIgnoreCase(attrname) ? node : null;
+    }
+
+    /**
+     * Get the names of all attributes that are referenced by the filter.
+     */
+    static Set<String> getAttributeNames(Node node) {
+        Set<String> result = new HashSet<String>();
+        addAttributeNames(node, result);
+        return result;
+    }
+
+    private static void addAttributeNames(Node node, Set<String> result) {
+        if (node.children != null) {
+            for (Node child : node.children) {
+                addAttributeNames(child, result);
+            }
+        } else {
+            result.add(node.attr);
+        }
+    }
+
+    /**
+     * Get the version range that a matching capability must be in.
+     *
+     * The range is derived from the version clauses of top level conjunctions, like the one generated by
+     * {@link VersionRange#toFilterString(String)}. Capabilities that match the filter are guaranteed to have
+     * a version in the returned range. Other clauses are ignored.
+     *
+     * @return the version range or null if the filter does not constrain the given attribute
+     */
+    static VersionRange getVersionRange(Node node, String attrname) {
+        if (node.op == AND) {
+            VersionRange result = null;
+            for (Node child : node.children) {
+                VersionRange range = getVersionRange(child, attrname);
+                if (range != null) {
+                    result = result != null ? intersect(result, range) : range;
+                }
+            }
+            return result;
+        }
+        return getClauseRange(node, attrname);
+    }
+
+    private static VersionRange getClauseRange(Node node, String attrname) {
+        boolean negate = false;
+        if (node.op == NOT) {
+            node = node.children[0];
+            negate = true;
+        }
+        if (node.attr == null || !node.attr.equalsIgnoreCase(attrname))
+            return null;
+
+        Version version;
+        try {
+            version = Version.parseVersion(node.value);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+
+        VersionRange result = null;
+        if (node.op == EQUAL && !negate) {
+            result = new VersionRange(VersionRange.LEFT_CLOSED, version, version, VersionRange.RIGHT_CLOSED);
+        } else if (node.op == GREATER) {
+            if (negate) {
+                result = new VersionRange(VersionRange.LEFT_CLOSED, Version.emptyVersion, version, VersionRange.RIGHT_OPEN);
+            } else {
+                result = new VersionRange(VersionRange.LEFT_CLOSED, version, null, VersionRange.RIGHT_OPEN);
+            }
+        } else if (node.op == LESS) {
+            if (negate) {
+                result = new VersionRange(VersionRange.LEFT_OPEN, version, null, VersionRange.RIGHT_OPEN);
+            } else {
+                result = new VersionRange(VersionRange.LEFT_CLOSED, Version.emptyVersion, version, VersionRange.RIGHT_CLOSED);
+            }
+        }
+        return result;
+    }
+
+    private static VersionRange intersect(VersionRange r1, VersionRange r2) {
+        Version left = r1.getLeft();
+        char lefttype = r1.getLeftType();
+        int comp = r2.getLeft().compareTo(left);
+        if (comp > 0 || (comp == 0 && r2.getLeftType() == VersionRange.LEFT_OPEN)) {
+            left = r2.getLeft();
+            lefttype = r2.getLeftType();
+        }
+        Version right = r1.getRight();
+        char righttype = r1.getRightType();
+        if (r2.getRight() != null) {
+            comp = right != null ? r2.getRight().compareTo(right) : -1;
+            if (comp < 0 || (comp == 0 && r2.getRightType() == VersionRange.RIGHT_OPEN)) {
+                right = r2.getRight();
+                righttype = r2.getRightType();
+            }
+        }
+        return new VersionRange(lefttype, left, right, righttype);
+    }
+
+    /**
+     * Create the conjunction of the given filters.
+     */
+    static Node and(Node... children) {
+        return new Node(AND, children);
+    }
+
+    /**
+     * Create the clause that is denoted by <code>(attrname=value)</code>, where the value may contain wildcards and escapes.
+     */
+    static Node clause(String attrname, String value) {
+        if (isPlain(attrname, "=<>~()") && attrname.trim().length() == attrname.length() && isPlain(value, "*\\()"))
+            return new Node(EQUAL, attrname, value, null);
+        return parse("(" + attrname + "=" + value + ")");
+    }
+
+    /**
+     * Create the filter that matches the versions in the given range.
+     *
+     * The filter has the structure of the one that is created by {@link VersionRange#toFilterString(String)}.
+     */
+    static Node versionRange(String attrname, VersionRange range) {
+        Node left;
+        if (range.getLeftType() == VersionRange.LEFT_CLOSED) {
+            left = new Node(GREATER, attrname, range.getLeft().toString(), null);
+        } else {
+            left = new Node(NOT, new Node[] { new Node(LESS, attrname, range.getLeft().toString(), null) });
+        }
+        if (range.getRight() == null)
+            return left;
+        Node right;
+        if (range.getRightType() == VersionRange.RIGHT_CLOSED) {
+            right = new Node(LESS, attrname, range.getRight().toString(), null);
+        } else {
+            right = new Node(NOT, new Node[] { new Node(GREATER, attrname, range.getRight().toString(), null) });
+        }
+        return new Node(AND, new Node[] { left, right });
+    }
+
+    /**
+     * Get the normalized string representation of the given filter, which is the same as the one of
+     * an {@link org.osgi.framework.Filter} that is created from it.
+     */
+    static String toString(Node node) {
+        StringBuilder builder = new StringBuilder();
+        append(builder, node);
+        return builder.toString();
+    }
+
+    private static void append(StringBuilder builder, Node node) {
+        builder.append('(');
+        switch (node.op) {
+            case AND:
+            case OR:
+                builder.append(node.op == AND ? '&' : '|');
+                for (Node child : node.children) {
+                    append(builder, child);
+                }
+                break;
+            case NOT:
+                builder.append('!');
+                append(builder, node.children[0]);
+                break;
+            case PRESENT:
+                builder.append(node.attr).append("=*");
+                break;
+            case SUBSTRING:
+                builder.append(node.attr).append('=');
+                for (int i = 0; i < node.substrings.length; i++) {
+                    if (i > 0) {
+                        builder.append('*');
+                    }
+                    appendEscaped(builder, node.substrings[i]);
+                }
+                break;
+            case APPROX:
+                // Whitespace is not significant in approximate matches
+                builder.append(node.attr).append("~=");
+                StringBuilder value = new StringBuilder();
+                for (char ch : node.value.toCharArray()) {
+                    if (!Character.isWhitespace(ch)) {
+                        value.append(ch);
+                    }
+                }
+                appendEscaped(builder, value.toString());
+                break;
+            default:
+                builder.append(node.attr);
+                builder.append(node.op == EQUAL ? "=" : node.op == GREATER ? ">=" : "<=");
+                appendEscaped(builder, node.value);
+        }
+        builder.append(')');
+    }
+
+    private static void appendEscaped(StringBuilder builder, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '\\' || ch == '(' || ch == ')' || ch == '*') {
+                builder.append('\\');
+            }
+            builder.append(ch);
+        }
+    }
+
+    private static boolean isPlain(String value, String specials) {
+        if (value.length() == 0)
+            return false;
+        for (int i = 0; i < value.length(); i++) {
+            if (specials.indexOf(value.charAt(i)) >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    // The parse methods accept the same filters as the parser of FrameworkUtil.createFilter
+    private Node parseFilter() {
+        skipWhitespace();
+        expect('(');
+        skipWhitespace();
+        Node result;
+        char ch = peek();
+        if ((ch == '&' || ch == '|') && isFilterNext(pos + 1)) {
+            pos++;
+            result = new Node(ch == '&' ? AND : OR, parseFilterList());
+        } else if (ch == '!' && isFilterNext(pos + 1)) {
+            pos++;
+            result = new Node(NOT, new Node[] { parseFilter() });
+        } else {
+            // An operator that is not followed by a filter starts an attribute name
+            result = parseItem();
+        }
+        skipWhitespace();
+        expect(')');
+        return result;
+    }
+
+    private boolean isFilterNext(int index) {
+        while (index < chars.length && Character.isWhitespace(chars[index])) {
+            index++;
+        }
+        return index < chars.length && chars[index] == '(';
+    }
+
+    private Node[] parseFilterList() {
+        List<Node> children = new ArrayList<Node>();
+        skipWhitespace();
+        while (peek() == '(') {
+            children.add(parseFilter());
+        }
+        return children.toArray(new Node[children.size()]);
+    }
+
+    private Node parseItem() {
+        // The attribute name ends before its trailing whitespace
+        int start = pos;
+        int end = pos;
+        while ("=<>~()".indexOf(peek()) < 0) {
+            if (!Character.isWhitespace(chars[pos])) {
+                end = pos + 1;
+            }
+            pos++;
+        }
+        if (end == start)
+            throw MESSAGES.illegalArgumentInvalidFilterDirective(filterspec);
+        String attr = filterspec.substring(start, end);
+
+        char ch = peek();
+        if (ch == '~' || ch == '>' || ch == '<') {
+            if (peek(pos + 1) != '=')
+                throw MESSAGES.illegalArgumentInvalidFilterDirective(filterspec);
+            pos += 2;
+            return new Node(ch == '~' ? APPROX : ch == '>' ? GREATER : LESS, attr, parseValue(), null);
+        }
+        if (ch != '=')
+            throw MESSAGES.illegalArgumentInvalidFilterDirective(filterspec);
+
+        // A single wildcard that may be followed by whitespace tests for presence
+        if (peek(pos + 1) == '*') {
+            int index = pos + 2;
+            while (index < chars.length && Character.isWhitespace(chars[index])) {
+                index++;
+            }
+            if (peek(index) == ')') {
+                pos = index;
+                return new Node(PRESENT, attr, null, null);
+            }
+        }
+
+        // Parse the value into the parts between unescaped wildcards
+        int valuestart = ++pos;
+        List<String> parts = new ArrayList<String>();
+        StringBuilder part = new StringBuilder();
+        while (peek() != ')') {
+            ch = chars[pos++];
+            if (ch == '(') {
+                throw MESSAGES.illegalArgumentInvalidFilterDirective(filterspec);
+            } else if (ch == '*') {
+                parts.add(part.toString());
+                part.setLength(0);
+            } else {
+                if (ch == '\\') {
+                    ch = peek();
+                    pos++;
+                }
+                part.append(ch);
+            }
+        }
+        parts.add(part.toString());
+
+        if (parts.size() == 1) {
+            return new Node(EQUAL, attr, parts.get(0), null);
+        } else {
+            String value = filterspec.substring(valuestart, pos);
+            return new Node(SUBSTRING, attr, value, parts.toArray(new String[parts.size()]));
+        }
+    }
+
+    // The value of an approximate or ordering clause, which must not be empty
+    private String parseValue() {
+        StringBuilder value = new StringBuilder();
+        while (peek() != ')') {
+            char ch = chars[pos++];
+            if (ch == '(') {
+                throw MESSAGES.illegalArgumentInvalidFilterDirective(filterspec);
+            } else if (ch == '\\') {
+                ch = peek();
+                pos++;
+            }
+            value.append(ch);
+        }
+        if (value.length() == 0)
+            throw MESSAGES.illegalArgumentInvalidFilterDirective(filterspec);
+        return value.toString();
+    }
+
+    private char peek() {
+        return peek(pos);
+    }
+
+    private char peek(int index) {
+        if (index >= chars.length)
+            throw MESSAGES.illegalArgumentInvalidFilterDirective(filterspec);
+        return chars[index];
+    }
+
+    private void expect(char ch) {
+        if (peek() != ch)
+            throw MESSAGES.illegalArgumentInvalidFilterDirective(filterspec);
+        pos++;
+    }
+
+    private void skipWhitespace() {
+        while (pos < chars.length && Character.isWhitespace(chars[pos])) {
+            pos++;
+        }
+    }
+
+    /**
+     * A node in the parsed filter tree.
+     *
+     * For {@link #SUBSTRING} nodes the value is split into the parts between the wildcards.
+     * An empty first or last part denotes a leading or trailing wildcard.
+     */
+    static final class Node {
+
+        final int op;
+        final String attr;
+        final String value;
+        final String[] substrings;
+        final Node[] children;
+
+        private Node(int op, Node[] children) {
+            this.op = op;
+            this.attr = null;
+            this.value = null;
+            this.substrings = null;
+            this.children = children;
+        }
+
+        private Node(int op, String attr, String value, String[] substrings) {
+            this.op = op;
+            this.attr = attr;
+            this.value = value;
+            this.substrings = substrings;
+            this.children = null;
+        }
+    }
+}
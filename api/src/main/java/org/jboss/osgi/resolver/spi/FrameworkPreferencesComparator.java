@@ -48,14 +48,14 @@ class FrameworkPreferencesComparator extends ResourceIndexComparator {
 
     @Override
     public int compare(Capability o1, Capability o2) {
-        Resource res1 = o1.getResource();
-        Resource res2 = o2.getResource();
+        XResource res1 = getResource(o1);
+        XResource res2 = getResource(o2);
 
         // prefer system bundle
-        Long in1 = getResourceIndex((XResource) o1.getResource());
-        Long in2 = getResourceIndex((XResource) o2.getResource());
+        long in1 = getResourceIndex(res1);
+        long in2 = getResourceIndex(res2);
         if (in1 == 0 || in2 == 0) {
-            return (int)(in1 - in2);
+            return compareIndex(in1, in2);
         }
 
         Map<Resource, Wiring> wirings = getEnvironment().getWirings();
@@ -87,6 +87,6 @@ class FrameworkPreferencesComparator extends ResourceIndexComparator {
         }
 
         // prefer lower index
-        return in1.compareTo(in2);
+        return compareIndex(in1, in2);
     }
 }
@@ -0,0 +1,95 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.osgi.framework.Version;
+
+/**
+ * A pool of canonical instances for the strings and versions that are repeated across resources.
+ *
+ * Package names, symbolic names, versions and directive values like <code>uses</code> are declared
+ * over and over again by the resources of an environment. Interning them lets all resources share
+ * one instance per value. The pool only holds weak references, so values that are no longer used by
+ * any resource can be reclaimed.
+ */
+final class Interner {
+
+    private static final int SEGMENTS = 16;
+
+    private static final Segment[] segments = new Segment[SEGMENTS];
+    static {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    // Hide ctor
+    private Interner() {
+    }
+
+    static String intern(String value) {
+        return (String) internInternal(value);
+    }
+
+    static Version intern(Version value) {
+        return (Version) internInternal(value);
+    }
+
+    /**
+     * Intern the given attribute or directive value if it is a {@link String} or a {@link Version}.
+     *
+     * @return the canonical instance or the given value if it is of another type
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T internValue(T value) {
+        if (value instanceof String || value instanceof Version) {
+            return (T) internInternal(value);
+        }
+        return value;
+    }
+
+    private static Object internInternal(Object value) {
+        if (value == null)
+            return null;
+
+        int hash = value.hashCode();
+        Map<Object, WeakReference<Object>> pool = segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)].pool;
+        synchronized (pool) {
+            WeakReference<Object> ref = pool.get(value);
+            Object result = ref != null ? ref.get() : null;
+            if (result == null) {
+                pool.put(value, new WeakReference<Object>(value));
+                result = value;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A segment of the pool, which is locked independently of the other segments.
+     */
+    private static final class Segment {
+        final Map<Object, WeakReference<Object>> pool = new WeakHashMap<Object, WeakReference<Object>>();
+    }
+}
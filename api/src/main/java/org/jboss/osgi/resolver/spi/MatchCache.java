@@ -0,0 +1,141 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import static org.jboss.osgi.resolver.ResolverMessages.MESSAGES;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+
+/**
+ * A bounded cache of the results of matching a requirement against a capability.
+ *
+ * Requirements and capabilities do not change once their resource is installed, so the result of a
+ * match can be reused by later resolves. Entries are keyed by the identity of the requirement and the
+ * capability and are kept in an open addressing table. When the few slots that a pair may occupy are
+ * taken by other pairs, the entry in the first of them is evicted.
+ *
+ * Lookups take no lock and allocate nothing. Entries are immutable, so a racing put can at worst
+ * overwrite another entry, which is then matched again. Callers report the hits and misses of a batch
+ * of lookups at once, so that the counters are not updated for every lookup.
+ */
+final class MatchCache {
+
+    private static final int PROBES = 8;
+
+    private final int capacity;
+    private volatile Entry[] table;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a cache for at least the given number of entries, which is rounded up to a power of two.
+     */
+    MatchCache(int maxSize) {
+        if (maxSize < 1)
+            throw MESSAGES.illegalArgumentInvalidCacheSize(maxSize);
+        int size = Integer.highestOneBit(maxSize);
+        capacity = size < maxSize && size < (1 << 30) ? size << 1 : size;
+        table = new Entry[capacity];
+    }
+
+    /**
+     * Get the cached result of matching the given requirement against the given capability.
+     *
+     * @return the result or null if it is not cached
+     */
+    Boolean get(Requirement req, Capability cap) {
+        Entry[] entries = table;
+        int mask = entries.length - 1;
+        int index = indexFor(req, cap) & mask;
+        for (int i = 0; i < PROBES; i++) {
+            Entry entry = entries[(index + i) & mask];
+            if (entry == null)
+                return null;
+            if (entry.req == req && entry.cap == cap)
+                return entry.matches;
+        }
+        return null;
+    }
+
+    void put(Requirement req, Capability cap, boolean matches) {
+        Entry[] entries = table;
+        int mask = entries.length - 1;
+        int index = indexFor(req, cap) & mask;
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (index + i) & mask;
+            Entry entry = entries[slot];
+            if (entry == null || (entry.req == req && entry.cap == cap)) {
+                entries[slot] = new Entry(req, cap, matches);
+                return;
+            }
+        }
+        entries[index] = new Entry(req, cap, matches);
+        evictions.incrementAndGet();
+    }
+
+    /**
+     * Count the hits and misses of a batch of lookups.
+     */
+    void record(int hitCount, int missCount) {
+        if (hitCount > 0)
+            hits.addAndGet(hitCount);
+        if (missCount > 0)
+            misses.addAndGet(missCount);
+    }
+
+    void clear() {
+        table = new Entry[capacity];
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    private static int indexFor(Requirement req, Capability cap) {
+        int hash = 31 * System.identityHashCode(req) + System.identityHashCode(cap);
+        return hash ^ (hash >>> 16);
+    }
+
+    // The result of matching a requirement against a capability, which are compared by identity
+    private static final class Entry {
+
+        private final Requirement req;
+        private final Capability cap;
+        private final Boolean matches;
+
+        Entry(Requirement req, Capability cap, boolean matches) {
+            this.req = req;
+            this.cap = cap;
+            this.matches = Boolean.valueOf(matches);
+        }
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable hash map that is implemented as a hash array mapped trie.
+ *
+ * A modified map shares all nodes with the original map, except the ones on the path to the modified entry.
+ * The cost of a modification is therefore proportional to the depth of the trie and not to the size of the map.
+ *
+ * Multiple modifications are best made through an {@link Editor}, which modifies the nodes it has already
+ * copied in place. The mutating methods of the {@link java.util.Map} interface are not supported.
+ */
+final class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    // Below this depth the hash codes are exhausted and nodes store colliding keys in a plain array
+    private static final int MAX_SHIFT = 30;
+
+    private static final Object NOT_FOUND = new Object();
+    private static final PersistentHashMap<Object, Object> EMPTY = new PersistentHashMap<Object, Object>(new Node(null, 0, 0, new Object[0]), 0);
+
+    private final Node root;
+    private final int size;
+    private Set<Entry<K, V>> entrySet;
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return root.find(key, hash(key)) != NOT_FOUND;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        Object value = root.find(key, hash(key));
+        return value != NOT_FOUND ? (V) value : null;
+    }
+
+    /**
+     * Get a map that associates the given value with the given key. This map is not modified.
+     */
+    PersistentHashMap<K, V> plus(K key, V value) {
+        Change change = new Change();
+        Node node = root.put(null, key, hash(key), value, 0, change);
+        return node != root ? new PersistentHashMap<K, V>(node, change.sizeChanged ? size + 1 : size) : this;
+    }
+
+    /**
+     * Get a map without the given key. This map is not modified.
+     */
+    PersistentHashMap<K, V> minus(Object key) {
+        Change change = new Change();
+        Node node = root.remove(null, key, hash(key), 0, change);
+        return change.sizeChanged ? new PersistentHashMap<K, V>(node, size - 1) : this;
+    }
+
+    Editor<K, V> editor() {
+        return new Editor<K, V>(this);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        Set<Entry<K, V>> result = entrySet;
+        if (result == null) {
+            result = new AbstractSet<Entry<K, V>>() {
+
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new EntryIterator<K, V>(root);
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+            entrySet = result;
+        }
+        return result;
+    }
+
+    private static int hash(Object key) {
+        int hash = key != null ? key.hashCode() : 0;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean keyEquals(Object o1, Object o2) {
+        return o1 == o2 || (o1 != null && o1.equals(o2));
+    }
+
+    /**
+     * Makes a series of modifications to a map. Nodes that the editor has copied are owned by the editor
+     * and are modified in place. Nodes of the source map are never modified.
+     */
+    static final class Editor<K, V> {
+
+        private Object edit = new Object();
+        private Node root;
+        private int size;
+
+        private Editor(PersistentHashMap<K, V> map) {
+            this.root = map.root;
+            this.size = map.size;
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean containsKey(Object key) {
+            return root.find(key, hash(key)) != NOT_FOUND;
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(Object key) {
+            Object value = root.find(key, hash(key));
+            return value != NOT_FOUND ? (V) value : null;
+        }
+
+        void put(K key, V value) {
+            Change change = new Change();
+            root = root.put(edit, key, hash(key), value, 0, change);
+            if (change.sizeChanged) {
+                size++;
+            }
+        }
+
+        boolean remove(Object key) {
+            Change change = new Change();
+            root = root.remove(edit, key, hash(key), 0, change);
+            if (change.sizeChanged) {
+                size--;
+            }
+            return change.sizeChanged;
+        }
+
+        /**
+         * Build the map. The editor can continue to be used, without affecting the returned map.
+         */
+        PersistentHashMap<K, V> build() {
+            // Nodes that are owned by the returned map must not be modified anymore
+            edit = new Object();
+            return new PersistentHashMap<K, V>(root, size);
+        }
+    }
+
+    private static final class Change {
+        boolean sizeChanged;
+    }
+
+    /**
+     * A node in the trie. The content holds the key/value pairs of the entries, followed by the child nodes
+     * in reverse order. The bitmaps tell which hash fragments are stored as entries and which as child nodes.
+     * At the maximum depth the bitmaps are not used and the content holds the colliding entries only.
+     */
+    private static final class Node {
+
+        private final Object edit;
+        private int datamap;
+        private int nodemap;
+        private Object[] content;
+
+        Node(Object edit, int datamap, int nodemap, Object[] content) {
+            this.edit = edit;
+            this.datamap = datamap;
+            this.nodemap = nodemap;
+            this.content = content;
+        }
+
+        int dataCount() {
+            return (content.length - Integer.bitCount(nodemap)) / 2;
+        }
+
+        int nodeCount() {
+            return Integer.bitCount(nodemap);
+        }
+
+        Node getNode(int index) {
+            return (Node) content[content.length - 1 - index];
+        }
+
+        boolean isSingleEntry() {
+            return nodemap == 0 && content.length == 2;
+        }
+
+        /**
+         * Find the value for the given key.
+         *
+         * @return the value or {@link #NOT_FOUND}
+         */
+        Object find(Object key, int hash) {
+            Node node = this;
+            int shift = 0;
+            while (shift <= MAX_SHIFT) {
+                int bit = bit(hash, shift);
+                if ((node.datamap & bit) != 0) {
+                    int index = 2 * index(node.datamap, bit);
+                    return keyEquals(key, node.content[index]) ? node.content[index + 1] : NOT_FOUND;
+                }
+                if ((node.nodemap & bit) == 0) {
+                    return NOT_FOUND;
+                }
+                node = node.getNode(index(node.nodemap, bit));
+                shift += BITS;
+            }
+            int index = node.collisionIndex(key);
+            return index >= 0 ? node.content[index + 1] : NOT_FOUND;
+        }
+
+        Node put(Object edit, Object key, int hash, Object value, int shift, Change change) {
+            if (shift > MAX_SHIFT) {
+                int index = collisionIndex(key);
+                if (index >= 0) {
+                    if (content[index + 1] == value)
+                        return this;
+                    Node node = editable(edit);
+                    node.content = node == this ? content : content.clone();
+                    node.content[index + 1] = value;
+                    return node;
+                }
+                change.sizeChanged = true;
+                Object[] aux = new Object[content.length + 2];
+                System.arraycopy(content, 0, aux, 0, content.length);
+                aux[content.length] = key;
+                aux[content.length + 1] = value;
+                Node node = editable(edit);
+                node.content = aux;
+                return node;
+            }
+
+            int bit = bit(hash, shift);
+            if ((datamap & bit) != 0) {
+                int index = 2 * index(datamap, bit);
+                Object curkey = content[index];
+                if (keyEquals(key, curkey)) {
+                    if (content[index + 1] == value)
+                        return this;
+                    Node node = editable(edit);
+                    node.content = node == this ? content : content.clone();
+                    node.content[index + 1] = value;
+                    return node;
+                }
+                // Move the existing entry and the new one to a child node
+                change.sizeChanged = true;
+                Node child = merge(edit, curkey, hash(curkey), content[index + 1], key, hash, value, shift + BITS);
+                Object[] aux = new Object[content.length - 1];
+                int nodeindex = content.length - 2 - index(nodemap, bit);
+                System.arraycopy(content, 0, aux, 0, index);
+                System.arraycopy(content, index + 2, aux, index, nodeindex - index);
+                aux[nodeindex] = child;
+                System.arraycopy(content, nodeindex + 2, aux, nodeindex + 1, content.length - nodeindex - 2);
+                Node node = editable(edit);
+                node.datamap = datamap ^ bit;
+                node.nodemap = nodemap | bit;
+                node.content = aux;
+                return node;
+            }
+            if ((nodemap & bit) != 0) {
+                int nodeindex = content.length - 1 - index(nodemap, bit);
+                Node child = (Node) content[nodeindex];
+                Node newchild = child.put(edit, key, hash, value, shift + BITS, change);
+                if (newchild == child)
+                    return this;
+                Node node = editable(edit);
+                node.content = node == this ? content : content.clone();
+                node.content[nodeindex] = newchild;
+                return node;
+            }
+
+            // A new entry in this node
+            change.sizeChanged = true;
+            int index = 2 * index(datamap, bit);
+            Object[] aux = new Object[content.length + 2];
+            System.arraycopy(content, 0, aux, 0, index);
+            aux[index] = key;
+            aux[index + 1] = value;
+            System.arraycopy(content, index, aux, index + 2, content.length - index);
+            Node node = editable(edit);
+            node.datamap = datamap | bit;
+            node.content = aux;
+            return node;
+        }
+
+        Node remove(Object edit, Object key, int hash, int shift, Change change) {
+            if (shift > MAX_SHIFT) {
+                int index = collisionIndex(key);
+                if (index < 0)
+                    return this;
+                change.sizeChanged = true;
+                Object[] aux = new Object[content.length - 2];
+                System.arraycopy(content, 0, aux, 0, index);
+                System.arraycopy(content, index + 2, aux, index, content.length - index - 2);
+                Node node = editable(edit);
+                node.content = aux;
+                return node;
+            }
+
+            int bit = bit(hash, shift);
+            if ((datamap & bit) != 0) {
+                int index = 2 * index(datamap, bit);
+                if (!keyEquals(key, content[index]))
+                    return this;
+                change.sizeChanged = true;
+                Object[] aux = new Object[content.length - 2];
+                System.arraycopy(content, 0, aux, 0, index);
+                System.arraycopy(content, index + 2, aux, index, content.length - index - 2);
+                Node node = editable(edit);
+                node.datamap = datamap ^ bit;
+                node.content = aux;
+                return node;
+            }
+            if ((nodemap & bit) != 0) {
+                int nodeindex = content.length - 1 - index(nodemap, bit);
+                Node child = (Node) content[nodeindex];
+                Node newchild = child.remove(edit, key, hash, shift + BITS, change);
+                if (newchild == child)
+                    return this;
+                Node node = editable(edit);
+                if (newchild.isSingleEntry()) {
+                    // Inline the remaining entry of the child node
+                    int index = 2 * index(datamap, bit);
+                    Object[] aux = new Object[content.length + 1];
+                    System.arraycopy(content, 0, aux, 0, index);
+                    aux[index] = newchild.content[0];
+                    aux[index + 1] = newchild.content[1];
+                    System.arraycopy(content, index, aux, index + 2, nodeindex - index);
+                    System.arraycopy(content, nodeindex + 1, aux, nodeindex + 2, content.length - nodeindex - 1);
+                    node.datamap = datamap | bit;
+                    node.nodemap = nodemap ^ bit;
+                    node.content = aux;
+                } else {
+                    node.content = node == this ? content : content.clone();
+                    node.content[nodeindex] = newchild;
+                }
+                return node;
+            }
+            return this;
+        }
+
+        private int collisionIndex(Object key) {
+            for (int i = 0; i < content.length; i += 2) {
+                if (keyEquals(key, content[i]))
+                    return i;
+            }
+            return -1;
+        }
+
+        private Node editable(Object edit) {
+            if (edit != null && this.edit == edit)
+                return this;
+            return new Node(edit, datamap, nodemap, content);
+        }
+
+        private static Node merge(Object edit, Object key1, int hash1, Object value1, Object key2, int hash2, Object value2, int shift) {
+            if (shift > MAX_SHIFT) {
+                return new Node(edit, 0, 0, new Object[] { key1, value1, key2, value2 });
+            }
+            int bit1 = bit(hash1, shift);
+            int bit2 = bit(hash2, shift);
+            if (bit1 == bit2) {
+                Node child = merge(edit, key1, hash1, value1, key2, hash2, value2, shift + BITS);
+                return new Node(edit, 0, bit1, new Object[] { child });
+            }
+            if (((hash1 >>> shift) & MASK) < ((hash2 >>> shift) & MASK)) {
+                return new Node(edit, bit1 | bit2, 0, new Object[] { key1, value1, key2, value2 });
+            }
+            return new Node(edit, bit1 | bit2, 0, new Object[] { key2, value2, key1, value1 });
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private static int index(int bitmap, int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+    /**
+     * Iterates over the entries of a trie depth first.
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+
+        private final Node[] nodes = new Node[MAX_SHIFT / BITS + 2];
+        private final int[] dataIndex = new int[nodes.length];
+        private final int[] nodeIndex = new int[nodes.length];
+        private int depth;
+
+        EntryIterator(Node root) {
+            nodes[0] = root;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (depth >= 0) {
+                Node node = nodes[depth];
+                if (dataIndex[depth] < node.dataCount()) {
+                    return true;
+                }
+                if (nodeIndex[depth] < node.nodeCount()) {
+                    Node child = node.getNode(nodeIndex[depth]++);
+                    depth++;
+                    nodes[depth] = child;
+                    dataIndex[depth] = 0;
+                    nodeIndex[depth] = 0;
+                } else {
+                    nodes[depth] = null;
+                    depth--;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Entry<K, V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Object[] content = nodes[depth].content;
+            int index = 2 * dataIndex[depth]++;
+            return new SimpleImmutableEntry<K, V>((K) content[index], (V) content[index + 1]);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
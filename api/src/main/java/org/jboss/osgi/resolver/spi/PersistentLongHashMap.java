@@ -0,0 +1,410 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable map with primitive long keys that is implemented as an array mapped trie.
+ *
+ * Keys are neither boxed on insertion nor on lookup. The trie branches on the bits of the key itself,
+ * lowest bits first, so that distinct keys always end up in distinct slots and no collision handling
+ * is needed. Like {@link PersistentHashMap}, a modified map shares all nodes with the original map,
+ * except the ones on the path to the modified entry.
+ *
+ * Modifications are made through an {@link Editor}, which modifies the nodes it has already copied in place.
+ */
+final class PersistentLongHashMap<V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    // The last level consumes the remaining high bits of the key
+    private static final int MAX_SHIFT = 60;
+
+    private static final Object NOT_FOUND = new Object();
+    private static final PersistentLongHashMap<Object> EMPTY = new PersistentLongHashMap<Object>(new Node(null, 0, 0, new long[0], new Object[0], new Node[0]), 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentLongHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> PersistentLongHashMap<V> empty() {
+        return (PersistentLongHashMap<V>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean containsKey(long key) {
+        return root.find(key) != NOT_FOUND;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        Object value = root.find(key);
+        return value != NOT_FOUND ? (V) value : null;
+    }
+
+    /**
+     * Get the values in no particular order.
+     */
+    Collection<V> values() {
+        return new AbstractCollection<V>() {
+
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator<V>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    Editor<V> editor() {
+        return new Editor<V>(this);
+    }
+
+    /**
+     * Makes a series of modifications to a map. Nodes that the editor has copied are owned by the editor
+     * and are modified in place. Nodes of the source map are never modified.
+     */
+    static final class Editor<V> {
+
+        private Object edit = new Object();
+        private Node root;
+        private int size;
+
+        private Editor(PersistentLongHashMap<V> map) {
+            this.root = map.root;
+            this.size = map.size;
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean containsKey(long key) {
+            return root.find(key) != NOT_FOUND;
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(long key) {
+            Object value = root.find(key);
+            return value != NOT_FOUND ? (V) value : null;
+        }
+
+        void put(long key, V value) {
+            Change change = new Change();
+            root = root.put(edit, key, value, 0, change);
+            if (change.sizeChanged) {
+                size++;
+            }
+        }
+
+        boolean remove(long key) {
+            Change change = new Change();
+            root = root.remove(edit, key, 0, change);
+            if (change.sizeChanged) {
+                size--;
+            }
+            return change.sizeChanged;
+        }
+
+        /**
+         * Build the map. The editor can continue to be used, without affecting the returned map.
+         */
+        PersistentLongHashMap<V> build() {
+            // Nodes that are owned by the returned map must not be modified anymore
+            edit = new Object();
+            return new PersistentLongHashMap<V>(root, size);
+        }
+    }
+
+    private static final class Change {
+        boolean sizeChanged;
+    }
+
+    /**
+     * A node in the trie. The bitmaps tell which fragments of the key are stored as entries and which as child nodes.
+     */
+    private static final class Node {
+
+        private final Object edit;
+        private int datamap;
+        private int nodemap;
+        private long[] keys;
+        private Object[] values;
+        private Node[] nodes;
+
+        Node(Object edit, int datamap, int nodemap, long[] keys, Object[] values, Node[] nodes) {
+            this.edit = edit;
+            this.datamap = datamap;
+            this.nodemap = nodemap;
+            this.keys = keys;
+            this.values = values;
+            this.nodes = nodes;
+        }
+
+        /**
+         * Find the value for the given key.
+         *
+         * @return the value or {@link #NOT_FOUND}
+         */
+        Object find(long key) {
+            Node node = this;
+            int shift = 0;
+            while (true) {
+                int bit = bit(key, shift);
+                if ((node.datamap & bit) != 0) {
+                    int index = index(node.datamap, bit);
+                    return node.keys[index] == key ? node.values[index] : NOT_FOUND;
+                }
+                if ((node.nodemap & bit) == 0) {
+                    return NOT_FOUND;
+                }
+                node = node.nodes[index(node.nodemap, bit)];
+                shift += BITS;
+            }
+        }
+
+        Node put(Object edit, long key, Object value, int shift, Change change) {
+            int bit = bit(key, shift);
+            if ((datamap & bit) != 0) {
+                int index = index(datamap, bit);
+                long curkey = keys[index];
+                if (curkey == key) {
+                    if (values[index] == value)
+                        return this;
+                    Node node = editable(edit);
+                    node.values[index] = value;
+                    return node;
+                }
+                // Move the existing entry and the new one to a child node
+                change.sizeChanged = true;
+                Node child = merge(edit, curkey, values[index], key, value, shift + BITS);
+                int nodeindex = index(nodemap, bit);
+                Node node = editable(edit);
+                node.datamap = datamap ^ bit;
+                node.nodemap = nodemap | bit;
+                node.keys = removeKey(keys, index);
+                node.values = removeValue(values, index);
+                node.nodes = insertNode(nodes, nodeindex, child);
+                return node;
+            }
+            if ((nodemap & bit) != 0) {
+                int nodeindex = index(nodemap, bit);
+                Node child = nodes[nodeindex];
+                Node newchild = child.put(edit, key, value, shift + BITS, change);
+                if (newchild == child)
+                    return this;
+                Node node = editable(edit);
+                node.nodes[nodeindex] = newchild;
+                return node;
+            }
+
+            // A new entry in this node
+            change.sizeChanged = true;
+            int index = index(datamap, bit);
+            long[] auxkeys = new long[keys.length + 1];
+            System.arraycopy(keys, 0, auxkeys, 0, index);
+            auxkeys[index] = key;
+            System.arraycopy(keys, index, auxkeys, index + 1, keys.length - index);
+            Object[] auxvalues = new Object[values.length + 1];
+            System.arraycopy(values, 0, auxvalues, 0, index);
+            auxvalues[index] = value;
+            System.arraycopy(values, index, auxvalues, index + 1, values.length - index);
+            Node node = editable(edit);
+            node.datamap = datamap | bit;
+            node.keys = auxkeys;
+            node.values = auxvalues;
+            return node;
+        }
+
+        Node remove(Object edit, long key, int shift, Change change) {
+            int bit = bit(key, shift);
+            if ((datamap & bit) != 0) {
+                int index = index(datamap, bit);
+                if (keys[index] != key)
+                    return this;
+                change.sizeChanged = true;
+                Node node = editable(edit);
+                node.datamap = datamap ^ bit;
+                node.keys = removeKey(keys, index);
+                node.values = removeValue(values, index);
+                return node;
+            }
+            if ((nodemap & bit) != 0) {
+                int nodeindex = index(nodemap, bit);
+                Node child = nodes[nodeindex];
+                Node newchild = child.remove(edit, key, shift + BITS, change);
+                if (newchild == child)
+                    return this;
+                Node node = editable(edit);
+                if (newchild.nodemap == 0 && newchild.keys.length == 1) {
+                    // Inline the remaining entry of the child node
+                    int index = index(datamap, bit);
+                    long[] auxkeys = new long[keys.length + 1];
+                    System.arraycopy(keys, 0, auxkeys, 0, index);
+                    auxkeys[index] = newchild.keys[0];
+                    System.arraycopy(keys, index, auxkeys, index + 1, keys.length - index);
+                    Object[] auxvalues = new Object[values.length + 1];
+                    System.arraycopy(values, 0, auxvalues, 0, index);
+                    auxvalues[index] = newchild.values[0];
+                    System.arraycopy(values, index, auxvalues, index + 1, values.length - index);
+                    node.datamap = datamap | bit;
+                    node.nodemap = nodemap ^ bit;
+                    node.keys = auxkeys;
+                    node.values = auxvalues;
+                    node.nodes = removeNode(nodes, nodeindex);
+                } else {
+                    node.nodes[nodeindex] = newchild;
+                }
+                return node;
+            }
+            return this;
+        }
+
+        /**
+         * Get a node that the editor owns. The arrays of a copy are cloned, so that the owner can modify them in place.
+         */
+        private Node editable(Object edit) {
+            if (edit != null && this.edit == edit)
+                return this;
+            return new Node(edit, datamap, nodemap, keys.clone(), values.clone(), nodes.clone());
+        }
+
+        private static Node merge(Object edit, long key1, Object value1, long key2, Object value2, int shift) {
+            int frag1 = fragment(key1, shift);
+            int frag2 = fragment(key2, shift);
+            int bit1 = 1 << frag1;
+            int bit2 = 1 << frag2;
+            if (frag1 == frag2) {
+                Node child = merge(edit, key1, value1, key2, value2, shift + BITS);
+                return new Node(edit, 0, bit1, new long[0], new Object[0], new Node[] { child });
+            }
+            if (frag1 < frag2) {
+                return new Node(edit, bit1 | bit2, 0, new long[] { key1, key2 }, new Object[] { value1, value2 }, new Node[0]);
+            }
+            return new Node(edit, bit1 | bit2, 0, new long[] { key2, key1 }, new Object[] { value2, value1 }, new Node[0]);
+        }
+
+        private static long[] removeKey(long[] keys, int index) {
+            long[] result = new long[keys.length - 1];
+            System.arraycopy(keys, 0, result, 0, index);
+            System.arraycopy(keys, index + 1, result, index, keys.length - index - 1);
+            return result;
+        }
+
+        private static Object[] removeValue(Object[] values, int index) {
+            Object[] result = new Object[values.length - 1];
+            System.arraycopy(values, 0, result, 0, index);
+            System.arraycopy(values, index + 1, result, index, values.length - index - 1);
+            return result;
+        }
+
+        private static Node[] insertNode(Node[] nodes, int index, Node node) {
+            Node[] result = new Node[nodes.length + 1];
+            System.arraycopy(nodes, 0, result, 0, index);
+            result[index] = node;
+            System.arraycopy(nodes, index, result, index + 1, nodes.length - index);
+            return result;
+        }
+
+        private static Node[] removeNode(Node[] nodes, int index) {
+            Node[] result = new Node[nodes.length - 1];
+            System.arraycopy(nodes, 0, result, 0, index);
+            System.arraycopy(nodes, index + 1, result, index, nodes.length - index - 1);
+            return result;
+        }
+
+        private static int fragment(long key, int shift) {
+            return (int) (key >>> shift) & MASK;
+        }
+
+        private static int bit(long key, int shift) {
+            return 1 << fragment(key, shift);
+        }
+
+        private static int index(int bitmap, int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+    /**
+     * Iterates over the values of a trie depth first.
+     */
+    private static final class ValueIterator<V> implements Iterator<V> {
+
+        private final Node[] nodes = new Node[MAX_SHIFT / BITS + 2];
+        private final int[] dataIndex = new int[nodes.length];
+        private final int[] nodeIndex = new int[nodes.length];
+        private int depth;
+
+        ValueIterator(Node root) {
+            nodes[0] = root;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (depth >= 0) {
+                Node node = nodes[depth];
+                if (dataIndex[depth] < node.keys.length) {
+                    return true;
+                }
+                if (nodeIndex[depth] < node.nodes.length) {
+                    Node child = node.nodes[nodeIndex[depth]++];
+                    depth++;
+                    nodes[depth] = child;
+                    dataIndex[depth] = 0;
+                    nodeIndex[depth] = 0;
+                } else {
+                    nodes[depth] = null;
+                    depth--;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return (V) nodes[depth].values[dataIndex[depth]++];
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
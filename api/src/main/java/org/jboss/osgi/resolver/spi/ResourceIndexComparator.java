@@ -25,6 +25,7 @@ import java.util.Comparator;
 import org.jboss.osgi.resolver.XEnvironment;
 import org.jboss.osgi.resolver.XResource;
 import org.osgi.resource.Capability;
+import org.osgi.service.resolver.HostedCapability;
 
 /**
  * A comparator that uses the provided resource index.
@@ -46,12 +47,26 @@ class ResourceIndexComparator implements Comparator<Capability> {
 
     @Override
     public int compare(Capability o1, Capability o2) {
-        Long in1 = getResourceIndex((XResource) o1.getResource());
-        Long in2 = getResourceIndex((XResource) o2.getResource());
-        return in1.compareTo(in2);
+        return compare(getResource(o1), getResource(o2));
     }
 
-    Long getResourceIndex(XResource res) {
+    static XResource getResource(Capability cap) {
+        // The resolver may wrap the host of a hosted capability
+        if (cap instanceof HostedCapability) {
+            cap = ((HostedCapability) cap).getDeclaredCapability();
+        }
+        return (XResource) cap.getResource();
+    }
+
+    static int compare(XResource res1, XResource res2) {
+        return compareIndex(getResourceIndex(res1), getResourceIndex(res2));
+    }
+
+    static int compareIndex(long in1, long in2) {
+        return in1 < in2 ? -1 : (in1 == in2 ? 0 : 1);
+    }
+
+    static long getResourceIndex(XResource res) {
         return res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
     }
 }
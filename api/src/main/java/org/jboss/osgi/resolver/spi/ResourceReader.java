@@ -0,0 +1,197 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import static org.jboss.osgi.resolver.ResolverMessages.MESSAGES;
+import static org.jboss.osgi.resolver.spi.ResourceWriter.FORMAT_VERSION;
+import static org.jboss.osgi.resolver.spi.ResourceWriter.MAGIC;
+import static org.jboss.osgi.resolver.spi.ResourceWriter.RECORD_RESOURCE;
+import static org.jboss.osgi.resolver.spi.ResourceWriter.TYPE_BOOLEAN;
+import static org.jboss.osgi.resolver.spi.ResourceWriter.TYPE_DOUBLE;
+import static org.jboss.osgi.resolver.spi.ResourceWriter.TYPE_INTEGER;
+import static org.jboss.osgi.resolver.spi.ResourceWriter.TYPE_LIST;
+import static org.jboss.osgi.resolver.spi.ResourceWriter.TYPE_LONG;
+import static org.jboss.osgi.resolver.spi.ResourceWriter.TYPE_STRING;
+import static org.jboss.osgi.resolver.spi.ResourceWriter.TYPE_VERSION;
+import static org.jboss.osgi.resolver.spi.ResourceWriter.TYPE_VERSION_RANGE;
+import static org.jboss.osgi.resolver.spi.ResourceWriter.UTF8;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+
+/**
+ * Reads the resources that were written by a {@link ResourceWriter}.
+ *
+ * Resources are created through the builders of the given factory. Strings and versions are
+ * shared with the other resources in the same JVM.
+ *
+ * The reader does not read ahead of the resource that is returned, so a stream can carry
+ * other data after the resources.
+ */
+public class ResourceReader implements Closeable {
+
+    private final DataInputStream input;
+    private final XResourceBuilderFactory<?> factory;
+    private final List<String> strings = new ArrayList<String>();
+
+    /**
+     * Create a reader and read the stream header.
+     *
+     * The reader does not buffer, callers that read from a file or socket should pass a buffered stream.
+     */
+    public ResourceReader(InputStream input, XResourceBuilderFactory<?> factory) throws IOException {
+        if (input == null)
+            throw MESSAGES.illegalArgumentNull("input");
+        if (factory == null)
+            throw MESSAGES.illegalArgumentNull("factory");
+        this.input = new DataInputStream(input);
+        this.factory = factory;
+        if (this.input.readInt() != MAGIC || this.input.readInt() != FORMAT_VERSION)
+            throw MESSAGES.ioExceptionInvalidResourceStream(null);
+    }
+
+    /**
+     * Read the next resource.
+     *
+     * @return the immutable resource or null at the end of the stream
+     */
+    public XResource readResource() throws IOException {
+        int record = input.read();
+        if (record < 0)
+            return null;
+        if (record != RECORD_RESOURCE)
+            throw MESSAGES.ioExceptionInvalidResourceStream(null);
+
+        try {
+            XResourceBuilder<?> builder = factory.createResourceBuilder();
+
+            int count = readInt();
+            for (int i = 0; i < count; i++) {
+                builder.addAttribute(readString(), readString());
+            }
+
+            count = readInt();
+            for (int i = 0; i < count; i++) {
+                String namespace = readString();
+                builder.addCapability(namespace, readAttributes(), readDirectives());
+            }
+
+            count = readInt();
+            for (int i = 0; i < count; i++) {
+                String namespace = readString();
+                builder.addRequirement(namespace, readAttributes(), readDirectives());
+            }
+
+            return builder.getResource();
+        } catch (RuntimeException ex) {
+            throw MESSAGES.ioExceptionInvalidResourceStream(ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private Map<String, Object> readAttributes() throws IOException {
+        int count = readInt();
+        Map<String, Object> atts = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < count; i++) {
+            atts.put(readString(), readValue());
+        }
+        return atts;
+    }
+
+    private Map<String, String> readDirectives() throws IOException {
+        int count = readInt();
+        Map<String, String> dirs = new LinkedHashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            dirs.put(readString(), readString());
+        }
+        return dirs;
+    }
+
+    private Object readValue() throws IOException {
+        byte type = input.readByte();
+        switch (type) {
+            case TYPE_STRING:
+                return readString();
+            case TYPE_VERSION:
+                return Interner.intern(new Version(readInt(), readInt(), readInt(), readString()));
+            case TYPE_LONG:
+                return input.readLong();
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(input.readLong());
+            case TYPE_INTEGER:
+                return input.readInt();
+            case TYPE_BOOLEAN:
+                return input.readBoolean();
+            case TYPE_VERSION_RANGE:
+                return new VersionRange(readString());
+            case TYPE_LIST:
+                int count = readInt();
+                List<Object> list = new ArrayList<Object>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(readValue());
+                }
+                return list;
+            default:
+                throw MESSAGES.ioExceptionInvalidResourceStream(null);
+        }
+    }
+
+    private String readString() throws IOException {
+        int ref = readInt();
+        if (ref == 0)
+            return null;
+        int index = ref - 1;
+        if (index == strings.size()) {
+            byte[] bytes = new byte[readInt()];
+            input.readFully(bytes);
+            strings.add(Interner.intern(new String(bytes, UTF8)));
+        } else if (index > strings.size()) {
+            throw MESSAGES.ioExceptionInvalidResourceStream(null);
+        }
+        return strings.get(index);
+    }
+
+    private int readInt() throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = input.readByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw MESSAGES.ioExceptionInvalidResourceStream(null);
+    }
+}
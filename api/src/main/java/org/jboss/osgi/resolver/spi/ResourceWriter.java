@@ -0,0 +1,221 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import static org.jboss.osgi.resolver.ResolverMessages.MESSAGES;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+
+/**
+ * Writes resources to a stream in a versioned binary format that is read by a {@link ResourceReader}.
+ *
+ * A resource is written with its attributes, capabilities and requirements. The attribute values of capabilities
+ * and requirements keep their type. Resource attributes are restored through {@link XResourceBuilder#addAttribute},
+ * so their values must be strings.
+ * Every string is written once per stream and is otherwise referenced by index, so that the names and versions
+ * that are shared by many resources of a repository are encoded only once.
+ */
+public class ResourceWriter implements Closeable, Flushable {
+
+    static final int MAGIC = 0x4A425243;
+    static final int FORMAT_VERSION = 1;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Record types
+    static final byte RECORD_RESOURCE = 1;
+
+    // Attribute value types
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_VERSION = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_DOUBLE = 4;
+    static final byte TYPE_INTEGER = 5;
+    static final byte TYPE_BOOLEAN = 6;
+    static final byte TYPE_VERSION_RANGE = 7;
+    static final byte TYPE_LIST = 8;
+
+    private final DataOutputStream output;
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+    /**
+     * Create a writer and write the stream header.
+     *
+     * The writer does not buffer, callers that write to a file or socket should pass a buffered stream.
+     */
+    public ResourceWriter(OutputStream output) throws IOException {
+        if (output == null)
+            throw MESSAGES.illegalArgumentNull("output");
+        this.output = new DataOutputStream(output);
+        this.output.writeInt(MAGIC);
+        this.output.writeInt(FORMAT_VERSION);
+    }
+
+    /**
+     * Write the given immutable resource.
+     *
+     * @throws IllegalStateException if a resource attribute value is not a string, or an attribute value of a
+     *         capability or requirement has a type that cannot be written
+     */
+    public void writeResource(XResource res) throws IOException {
+        if (res == null)
+            throw MESSAGES.illegalArgumentNull("resource");
+
+        output.writeByte(RECORD_RESOURCE);
+
+        // Resource attributes are restored through the builder, which takes string values only
+        Map<String, Object> atts = res.getAttributes();
+        writeInt(atts.size());
+        for (Entry<String, Object> entry : atts.entrySet()) {
+            if (!(entry.getValue() instanceof String))
+                throw MESSAGES.illegalStateCannotWriteAttribute(entry.getKey(), entry.getValue());
+            writeString(entry.getKey());
+            writeString((String) entry.getValue());
+        }
+
+        List<Capability> caps = res.getCapabilities(null);
+        writeInt(caps.size());
+        for (Capability cap : caps) {
+            writeString(cap.getNamespace());
+            writeAttributes(cap.getAttributes());
+            writeDirectives(cap.getDirectives());
+        }
+
+        List<Requirement> reqs = res.getRequirements(null);
+        writeInt(reqs.size());
+        for (Requirement req : reqs) {
+            writeString(req.getNamespace());
+            writeAttributes(req.getAttributes());
+            writeDirectives(req.getDirectives());
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+
+    private void writeAttributes(Map<String, Object> atts) throws IOException {
+        writeInt(atts.size());
+        for (Entry<String, Object> entry : atts.entrySet()) {
+            writeString(entry.getKey());
+            writeValue(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void writeDirectives(Map<String, String> dirs) throws IOException {
+        writeInt(dirs.size());
+        for (Entry<String, String> entry : dirs.entrySet()) {
+            writeString(entry.getKey());
+            writeString(entry.getValue());
+        }
+    }
+
+    private void writeValue(String key, Object value) throws IOException {
+        if (value instanceof String) {
+            output.writeByte(TYPE_STRING);
+            writeString((String) value);
+        } else if (value instanceof Version) {
+            Version version = (Version) value;
+            output.writeByte(TYPE_VERSION);
+            writeInt(version.getMajor());
+            writeInt(version.getMinor());
+            writeInt(version.getMicro());
+            writeString(version.getQualifier());
+        } else if (value instanceof Long) {
+            output.writeByte(TYPE_LONG);
+            output.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            output.writeByte(TYPE_DOUBLE);
+            output.writeLong(Double.doubleToLongBits((Double) value));
+        } else if (value instanceof Integer) {
+            output.writeByte(TYPE_INTEGER);
+            output.writeInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(TYPE_BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else if (value instanceof VersionRange) {
+            output.writeByte(TYPE_VERSION_RANGE);
+            writeString(value.toString());
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            output.writeByte(TYPE_LIST);
+            writeInt(list.size());
+            for (Object element : list) {
+                if (element instanceof List)
+                    throw MESSAGES.illegalStateCannotWriteAttribute(key, value);
+                writeValue(key, element);
+            }
+        } else {
+            throw MESSAGES.illegalStateCannotWriteAttribute(key, value);
+        }
+    }
+
+    // A string is referenced by its index in the string table plus one, zero denotes null.
+    // The reference to the next free index is followed by the definition of the string.
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            writeInt(0);
+            return;
+        }
+        Integer index = strings.get(value);
+        if (index != null) {
+            writeInt(index + 1);
+        } else {
+            index = strings.size();
+            strings.put(value, index);
+            writeInt(index + 1);
+            byte[] bytes = value.getBytes(UTF8);
+            writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    // Write a non-negative int with seven bits per byte
+    private void writeInt(int value) throws IOException {
+        if (value < 0)
+            throw MESSAGES.illegalArgumentNegativeValue(value);
+        while ((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+}
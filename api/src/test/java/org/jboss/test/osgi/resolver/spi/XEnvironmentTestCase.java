@@ -20,20 +20,50 @@
 package org.jboss.test.osgi.resolver.spi;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XEnvironment;
 import org.jboss.osgi.resolver.XRequirement;
 import org.jboss.osgi.resolver.XResource;
 import org.jboss.osgi.resolver.XResourceBuilder;
 import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.jboss.osgi.resolver.XWiring;
+import org.jboss.osgi.resolver.spi.AbstractEnvironment;
+import org.jboss.osgi.resolver.spi.AbstractResource;
+import org.jboss.osgi.resolver.spi.AbstractWire;
+import org.jboss.osgi.resolver.spi.AbstractWiring;
 import org.junit.Test;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.Version;
 import org.osgi.framework.namespace.IdentityNamespace;
 import org.osgi.framework.namespace.PackageNamespace;
 import org.osgi.resource.Capability;
 import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.resource.Wiring;
 
 /**
  * Unit tests for the {@link org.osgi.service.resolver.Environment} class
@@ -71,4 +101,554 @@ public class XEnvironmentTestCase extends AbstractTestBase {
         assertSame(resourceB, providers.get(0).getResource());
         assertSame(resourceC, providers.get(1).getResource());
     }
+
+    @Test
+    public void testFindProvidersVersionRange() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        XRequirement req = builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        req.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, "[1.0,2.0)");
+        XResource resourceA = builderA.getResource();
+
+        XResource resourceB = getPackageProvider("testB", "2.0");
+        XResource resourceC = getPackageProvider("testC", "1.0");
+        XResource resourceD = getPackageProvider("testD", "1.5");
+
+        XEnvironment env = installResources(resourceA, resourceB, resourceC, resourceD);
+
+        List<Capability> providers = env.findProviders(resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0));
+        assertEquals(2, providers.size());
+        assertSame(resourceC, providers.get(0).getResource());
+        assertSame(resourceD, providers.get(1).getResource());
+    }
+
+    @Test
+    public void testFindProvidersWildcard() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, FrameworkUtil.createFilter("(osgi.wiring.package=org.jboss.foo.*)"));
+        XResource resourceA = builderA.getResource();
+
+        XResource resourceB = getPackageProvider("testB", "org.jboss.foo.b", "1.0");
+        XResource resourceC = getPackageProvider("testC", "org.jboss.bar", "1.0");
+        XResource resourceD = getPackageProvider("testD", "org.jboss.foo.d", "1.0");
+
+        XEnvironment env = installResources(resourceA, resourceB, resourceC, resourceD);
+
+        List<Capability> providers = env.findProviders(resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0));
+        assertEquals(2, providers.size());
+        assertSame(resourceB, providers.get(0).getResource());
+        assertSame(resourceD, providers.get(1).getResource());
+    }
+
+    @Test
+    public void testFindProvidersInstallOrder() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        XRequirement req = builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        req.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, "[1.0,3.0)");
+        XResource resourceA = builderA.getResource();
+
+        // The resource identifiers are given in reverse install order
+        XResource resourceB = getPackageProvider("testB", "2.0");
+        resourceB.putAttachment(XResource.RESOURCE_IDENTIFIER_KEY, 20L);
+        XResource resourceC = getPackageProvider("testC", "1.0");
+        resourceC.putAttachment(XResource.RESOURCE_IDENTIFIER_KEY, 10L);
+
+        XEnvironment env = installResources(resourceA, resourceB);
+        env.installResources(resourceC);
+
+        List<Capability> providers = env.findProviders(resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0));
+        assertEquals(2, providers.size());
+        assertSame(resourceB, providers.get(0).getResource());
+        assertSame(resourceC, providers.get(1).getResource());
+
+        // Unconstrained lookups are in install order too
+        XResourceBuilder<XResource> builderD = XResourceBuilderFactory.create();
+        builderD.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testD");
+        builderD.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, FrameworkUtil.createFilter("(osgi.wiring.package=*)"));
+        XResource resourceD = builderD.getResource();
+        env.installResources(resourceD);
+
+        providers = env.findProviders(resourceD.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0));
+        assertEquals(2, providers.size());
+        assertSame(resourceB, providers.get(0).getResource());
+        assertSame(resourceC, providers.get(1).getResource());
+    }
+
+    @Test
+    public void testInstallPreparedInParallel() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        XRequirement req = builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        req.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, "[1.0,3.0)");
+        XResource resourceA = builderA.getResource();
+
+        // A batch that is split into several tasks
+        XResource[] providers = new XResource[1000];
+        for (int i = 0; i < providers.length; i++) {
+            providers[i] = getPackageProvider("test" + i, (1 + i % 4) + ".0");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            AbstractEnvironment env = new AbstractEnvironment(executor);
+            env.installResources(resourceA);
+            env.installResources(providers);
+
+            List<Capability> caps = env.findProviders(req);
+            assertEquals(500, caps.size());
+            for (int i = 0; i < caps.size(); i++) {
+                assertSame(providers[i / 2 * 4 + i % 2], caps.get(i).getResource());
+            }
+
+            // A batch that fails in one of its tasks is not installed at all
+            XResource[] batch = new XResource[200];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = getPackageProvider("other" + i, "1.0");
+            }
+            batch[150] = new AbstractResource();
+            try {
+                env.installResources(batch);
+                fail("IllegalStateException expected");
+            } catch (IllegalStateException ex) {
+                // expected
+            }
+            assertEquals(500, env.findProviders(req).size());
+            assertNull(batch[0].getAttachment(XResource.RESOURCE_IDENTIFIER_KEY));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testProviderCache() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResource resourceB = getPackageProvider("testB", "1.0");
+        AbstractEnvironment env = (AbstractEnvironment) installResources(resourceA, resourceB);
+        env.setProviderCacheEnabled(true);
+
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        assertEquals(1, env.findProviders(req).size());
+        assertEquals(1, env.findProviders(req).size());
+        assertEquals(1, env.getProviderCacheHits());
+        assertEquals(1, env.getProviderCacheMisses());
+
+        // Installing a resource invalidates the cache
+        XResource resourceC = getPackageProvider("testC", "1.0");
+        env.installResources(resourceC);
+        List<Capability> providers = env.findProviders(req);
+        assertEquals(2, providers.size());
+        assertSame(resourceC, providers.get(1).getResource());
+        assertEquals(1, env.getProviderCacheHits());
+        assertEquals(2, env.getProviderCacheMisses());
+
+        // Updating the wirings keeps the cache
+        Wire wire = new AbstractWire(providers.get(0), req, resourceB, resourceA) {};
+        env.updateWiring(Collections.<Resource, List<Wire>> singletonMap(resourceA, Collections.singletonList(wire)));
+        assertEquals(2, env.findProviders(req).size());
+        assertEquals(2, env.getProviderCacheHits());
+        assertEquals(2, env.getProviderCacheMisses());
+    }
+
+    @Test
+    public void testMatchCache() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResource resourceB = getPackageProvider("testB", "1.0");
+        AbstractEnvironment env = (AbstractEnvironment) installResources(resourceA, resourceB);
+        env.setMatchCacheSize(100);
+
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        assertEquals(1, env.findProviders(req).size());
+        assertEquals(0, env.getMatchCacheHits());
+        assertEquals(1, env.getMatchCacheMisses());
+
+        // Installing a resource does not invalidate the match results
+        XResource resourceC = getPackageProvider("testC", "1.0");
+        env.installResources(resourceC);
+        List<Capability> providers = env.findProviders(req);
+        assertEquals(2, providers.size());
+        assertSame(resourceB, providers.get(0).getResource());
+        assertSame(resourceC, providers.get(1).getResource());
+        assertEquals(1, env.getMatchCacheHits());
+        assertEquals(2, env.getMatchCacheMisses());
+        assertEquals(0, env.getMatchCacheEvictions());
+    }
+
+    @Test
+    public void testClone() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResource resourceB = getPackageProvider("testB", "1.0");
+        AbstractEnvironment env = (AbstractEnvironment) installResources(resourceA, resourceB);
+        XEnvironment clone = env.clone();
+
+        // Modifications of the clone are not visible in the original
+        XResource resourceC = getPackageProvider("testC", "1.0");
+        clone.installResources(resourceC);
+
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        assertEquals(2, clone.findProviders(req).size());
+        assertEquals(1, env.findProviders(req).size());
+        assertSame(resourceC, clone.getResourceById(resourceC.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY)));
+        assertEquals(null, env.getResourceById(resourceC.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY)));
+    }
+
+    @Test
+    public void testInstallOneByOne() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+
+        // Each clone shares the snapshot that was current when it was taken
+        AbstractEnvironment env = (AbstractEnvironment) installResources(resourceA);
+        List<XResource> installed = new ArrayList<XResource>();
+        List<XEnvironment> clones = new ArrayList<XEnvironment>();
+        for (int i = 0; i < 5000; i++) {
+            XResource res = getPackageProvider("test" + i, "1.0");
+            env.installResources(res);
+            installed.add(res);
+            if (i % 1000 == 999) {
+                clones.add(env.clone());
+            }
+        }
+
+        // Modifications after the last clone are not visible in any of them
+        env.uninstallResources(installed.get(0), installed.get(4999));
+        assertEquals(4998, env.findProviders(req).size());
+        assertNull(env.getResourceById(installed.get(0).getAttachment(XResource.RESOURCE_IDENTIFIER_KEY)));
+
+        for (int i = 0; i < clones.size(); i++) {
+            XEnvironment clone = clones.get(i);
+            int count = (i + 1) * 1000;
+            assertEquals(count, clone.findProviders(req).size());
+
+            Iterator<XResource> itres = clone.getResources(Collections.singleton(XResource.TYPE_UNKNOWN));
+            assertSame(resourceA, itres.next());
+            for (int j = 0; j < count; j++) {
+                assertSame(installed.get(j), itres.next());
+            }
+            assertFalse(itres.hasNext());
+
+            XResource first = installed.get(0);
+            assertSame(first, clone.getResourceById(first.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY)));
+            if (count < installed.size()) {
+                XResource next = installed.get(count);
+                assertNull(clone.getResourceById(next.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY)));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentInstalls() throws Exception {
+
+        final AbstractEnvironment env = new AbstractEnvironment();
+        final int threads = 8;
+        final int perThread = 200;
+        final XResource[][] resources = new XResource[threads][perThread];
+        final long[][] allocated = new long[threads][perThread];
+        for (int i = 0; i < threads; i++) {
+            for (int j = 0; j < perThread; j++) {
+                resources[i][j] = getPackageProvider("test" + i + "-" + j, "1.0");
+            }
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < threads; i++) {
+                final XResource[] batch = resources[i];
+                final long[] ids = allocated[i];
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        // Identifiers are allocated outside of installs too
+                        for (int j = 0; j < batch.length; j++) {
+                            env.installResources(batch[j]);
+                            ids[j] = env.nextResourceIdentifier(null, "other");
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Set<Long> ids = new HashSet<Long>();
+        for (XResource[] batch : resources) {
+            for (XResource res : batch) {
+                Long id = res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+                assertTrue("Unique id: " + id, ids.add(id));
+                assertSame(res, env.getResourceById(id));
+            }
+        }
+        for (long[] batch : allocated) {
+            for (long id : batch) {
+                assertTrue("Unique id: " + id, ids.add(id));
+            }
+        }
+        assertEquals(2 * threads * perThread, ids.size());
+
+        // Generated identifiers stay above a caller-supplied one
+        XResource resourceA = getPackageProvider("testA", "1.0");
+        resourceA.putAttachment(XResource.RESOURCE_IDENTIFIER_KEY, 10000L);
+        XResource resourceB = getPackageProvider("testB", "1.0");
+        env.installResources(resourceA, resourceB);
+        assertSame(resourceA, env.getResourceById(10000L));
+        assertTrue(resourceB.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY) > 10000L);
+    }
+
+    @Test
+    public void testSparseResourceIdentifiers() throws Exception {
+
+        // Identifiers that only differ in their high bits
+        long[] ids = new long[] { 1L, 33L, 1L + (1L << 35), 1L + (1L << 60), 1L + (1L << 62), Long.MAX_VALUE };
+        AbstractEnvironment env = new AbstractEnvironment();
+        XResource[] resources = new XResource[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            resources[i] = getPackageProvider("test" + i, "1.0");
+            resources[i].putAttachment(XResource.RESOURCE_IDENTIFIER_KEY, ids[i]);
+        }
+        env.installResources(resources);
+        for (int i = 0; i < ids.length; i++) {
+            assertSame(resources[i], env.getResourceById(ids[i]));
+        }
+        assertNull(env.getResourceById(1L + (1L << 40)));
+
+        env.uninstallResources(resources[0], resources[4]);
+        assertNull(env.getResourceById(ids[0]));
+        assertNull(env.getResourceById(ids[4]));
+        for (int i : new int[] { 1, 2, 3, 5 }) {
+            assertSame(resources[i], env.getResourceById(ids[i]));
+        }
+    }
+
+    @Test
+    public void testResourcesByType() throws Exception {
+
+        XResource bundleA = getTypedResource("bundleA", XResource.TYPE_BUNDLE);
+        XResource fragmentB = getTypedResource("fragmentB", XResource.TYPE_FRAGMENT);
+        XResource bundleC = getTypedResource("bundleC", XResource.TYPE_BUNDLE);
+        XResource unknownD = getTypedResource("unknownD", XResource.TYPE_UNKNOWN);
+        AbstractEnvironment env = (AbstractEnvironment) installResources(bundleA, fragmentB, bundleC, unknownD);
+
+        assertResources(env.getResources(Collections.singleton(XResource.TYPE_BUNDLE)), bundleA, bundleC);
+        assertResources(env.getResources(Arrays.asList(XResource.TYPE_FRAGMENT, XResource.TYPE_BUNDLE)), fragmentB, bundleA, bundleC);
+        assertResources(env.getResources(Collections.singleton("other")));
+
+        // All types, in no particular order of the types
+        Set<XResource> all = new HashSet<XResource>();
+        Iterator<XResource> itall = env.getResources(null);
+        while (itall.hasNext()) {
+            assertTrue(all.add(itall.next()));
+        }
+        assertEquals(new HashSet<XResource>(Arrays.asList(bundleA, fragmentB, bundleC, unknownD)), all);
+
+        // An iterator works on the snapshot that was current when it was created
+        Iterator<XResource> itres = env.getResources(Collections.singleton(XResource.TYPE_BUNDLE));
+        XResource bundleE = getTypedResource("bundleE", XResource.TYPE_BUNDLE);
+        env.installResources(bundleE);
+        env.uninstallResources(bundleA);
+        assertResources(itres, bundleA, bundleC);
+        assertResources(env.getResources(Collections.singleton(XResource.TYPE_BUNDLE)), bundleC, bundleE);
+
+        // Environments that share a snapshot append different resources
+        XEnvironment clone = env.clone();
+        XResource bundleF = getTypedResource("bundleF", XResource.TYPE_BUNDLE);
+        XResource bundleG = getTypedResource("bundleG", XResource.TYPE_BUNDLE);
+        env.installResources(bundleF);
+        clone.installResources(bundleG);
+        assertResources(env.getResources(Collections.singleton(XResource.TYPE_BUNDLE)), bundleC, bundleE, bundleF);
+        assertResources(clone.getResources(Collections.singleton(XResource.TYPE_BUNDLE)), bundleC, bundleE, bundleG);
+
+        // Updating the wirings keeps the resources
+        env.updateWiring(Collections.<Resource, List<Wire>> singletonMap(bundleC, Collections.<Wire> emptyList()));
+        assertResources(env.getResources(Collections.singleton(XResource.TYPE_BUNDLE)), bundleC, bundleE, bundleF);
+
+        itres = env.getResources(Collections.singleton(XResource.TYPE_BUNDLE));
+        itres.next();
+        try {
+            itres.remove();
+            fail("UnsupportedOperationException expected");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testWiringsView() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResource resourceB = getPackageProvider("testB", "1.0");
+        AbstractEnvironment env = (AbstractEnvironment) installResources(resourceA, resourceB);
+
+        // The view is obtained before any wiring exists
+        Map<Resource, Wiring> wirings = env.getWirings();
+        assertTrue(wirings.isEmpty());
+        assertNull(wirings.get(resourceA));
+
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Capability cap = env.findProviders(req).get(0);
+        Wire wire = new AbstractWire(cap, req, resourceB, resourceA) {};
+        env.updateWiring(Collections.<Resource, List<Wire>> singletonMap(resourceA, Collections.singletonList(wire)));
+
+        // Later updates are visible through the same view
+        assertEquals(2, wirings.size());
+        assertSame(resourceA.getWiringSupport().getWiring(true), wirings.get(resourceA));
+        assertTrue(wirings.containsKey(resourceB));
+        assertEquals(2, wirings.entrySet().size());
+
+        // Wiring a resource again does not count it twice
+        env.updateWiring(Collections.<Resource, List<Wire>> singletonMap(resourceB, Collections.<Wire> emptyList()));
+        assertEquals(2, wirings.size());
+
+        env.uninstallResources(resourceA);
+        assertEquals(1, wirings.size());
+        assertFalse(wirings.containsKey(resourceA));
+        assertTrue(wirings.containsKey(resourceB));
+
+        // Wirings that are refreshed or set through the wiring support are seen by lookups, size and iteration
+        XWiring wiringB = resourceB.getWiringSupport().getWiring(true);
+        resourceB.getWiringSupport().refresh();
+        assertNull(wirings.get(resourceB));
+        assertEquals(0, wirings.size());
+        assertTrue(wirings.isEmpty());
+
+        XResource resourceC = getPackageProvider("testC", "1.0");
+        env.installResources(resourceC);
+        resourceB.getWiringSupport().setWiring(wiringB);
+        resourceC.getWiringSupport().setWiring(new AbstractWiring(resourceC, null, null));
+        assertEquals(2, wirings.size());
+        assertSame(wiringB, wirings.get(resourceB));
+        assertTrue(wirings.containsKey(resourceC));
+        assertEquals(wirings, new HashMap<Resource, Wiring>(wirings));
+
+        try {
+            wirings.put(resourceA, null);
+            fail("UnsupportedOperationException expected");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSnapshotFile() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResource resourceB = getPackageProvider("testB", "1.0");
+        XResource resourceC = getPackageProvider("testC", "org.jboss.bar", "1.0");
+        XResource resourceD = getPackageProvider("testD", "org.jboss.bar", "1.0");
+        AbstractEnvironment env = (AbstractEnvironment) installResources(resourceA, resourceB, resourceC, resourceD);
+
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Capability cap = env.findProviders(req).get(0);
+        Wire wire = new AbstractWire(cap, req, resourceB, resourceA) {};
+        env.updateWiring(Collections.<Resource, List<Wire>> singletonMap(resourceA, Collections.singletonList(wire)));
+
+        // C is resolved without any wires, D is not resolved
+        env.updateWiring(Collections.<Resource, List<Wire>> singletonMap(resourceC, Collections.<Wire> emptyList()));
+
+        File file = File.createTempFile("environment", ".bin");
+        try {
+            env.writeSnapshot(file);
+            AbstractEnvironment restored = new AbstractEnvironment();
+            restored.readSnapshot(file, new XResourceBuilderFactory<XResource>());
+
+            long idA = resourceA.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+            long idB = resourceB.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+            XResource restoredA = restored.getResourceById(idA);
+            XResource restoredB = restored.getResourceById(idB);
+            assertEquals("testA", restoredA.getIdentityCapability().getName());
+            assertEquals("testB", restoredB.getIdentityCapability().getName());
+
+            Capability restoredCap = restoredB.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+            assertEquals(Version.parseVersion("1.0"), restoredCap.getAttributes().get(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE));
+            assertEquals(1, restored.findProviders(restoredA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0)).size());
+
+            List<Wire> wires = restored.getWirings().get(restoredA).getRequiredResourceWires(null);
+            assertEquals(1, wires.size());
+            assertSame(restoredB, wires.get(0).getProvider());
+            assertSame(restoredCap, wires.get(0).getCapability());
+            assertEquals(1, restored.getWirings().get(restoredB).getProvidedResourceWires(null).size());
+
+            long idC = resourceC.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+            long idD = resourceD.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+            Wiring wiringC = restored.getWirings().get(restored.getResourceById(idC));
+            assertTrue(wiringC.getRequiredResourceWires(null).isEmpty());
+            assertTrue(wiringC.getProvidedResourceWires(null).isEmpty());
+            assertNull(restored.getWirings().get(restored.getResourceById(idD)));
+            assertEquals(3, restored.getWirings().size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void assertResources(Iterator<XResource> itres, XResource... expected) {
+        for (XResource res : expected) {
+            assertTrue(itres.hasNext());
+            assertSame(res, itres.next());
+        }
+        assertFalse(itres.hasNext());
+        try {
+            itres.next();
+            fail("NoSuchElementException expected");
+        } catch (NoSuchElementException ex) {
+            // expected
+        }
+    }
+
+    private XResource getTypedResource(String symbolicName, String type) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        XCapability icap = builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, symbolicName);
+        icap.getAttributes().put(IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE, type);
+        return builder.getResource();
+    }
+
+    private XResource getPackageProvider(String symbolicName, String version) {
+        return getPackageProvider(symbolicName, "org.jboss.foo", version);
+    }
+
+    private XResource getPackageProvider(String symbolicName, String packageName, String version) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, symbolicName);
+        XCapability cap = builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, packageName);
+        cap.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, version);
+        return builder.getResource();
+    }
 }
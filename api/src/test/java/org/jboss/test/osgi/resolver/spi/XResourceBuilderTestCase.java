@@ -20,7 +20,12 @@ package org.jboss.test.osgi.resolver.spi;
  */
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.jboss.modules.ModuleIdentifier;
 import org.jboss.osgi.metadata.OSGiMetaDataBuilder;
@@ -28,16 +33,22 @@ import org.jboss.osgi.resolver.MavenCoordinates;
 import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XHostCapability;
 import org.jboss.osgi.resolver.XIdentityCapability;
+import org.jboss.osgi.resolver.XPackageCapability;
 import org.jboss.osgi.resolver.XPackageRequirement;
 import org.jboss.osgi.resolver.XRequirement;
 import org.jboss.osgi.resolver.XResource;
 import org.jboss.osgi.resolver.XResourceBuilder;
 import org.jboss.osgi.resolver.XResourceBuilderFactory;
 import org.jboss.osgi.resolver.spi.AbstractResourceBuilder;
+import org.jboss.osgi.resolver.spi.ResourceReader;
+import org.jboss.osgi.resolver.spi.ResourceValidationException;
+import org.jboss.osgi.resolver.spi.ResourceWriter;
 import org.junit.Assert;
 import org.junit.Test;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.Version;
 import org.osgi.framework.namespace.BundleNamespace;
 import org.osgi.framework.namespace.ExecutionEnvironmentNamespace;
@@ -89,6 +100,157 @@ public class XResourceBuilderTestCase extends AbstractTestBase {
         } catch (UnsupportedOperationException ex) {
             // expected
         }
+        try {
+            icap.getDirectives().put(BundleNamespace.CAPABILITY_EFFECTIVE_DIRECTIVE, "meta");
+            Assert.fail("UnsupportedOperationException expected");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+        // The frozen maps are returned as they are
+        Assert.assertSame(icap.getAttributes(), icap.getAttributes());
+        Assert.assertSame(icap.getDirectives(), icap.getDirectives());
+        Assert.assertSame(res.getAttributes(), res.getAttributes());
+    }
+
+    @Test
+    public void testAttributeSharing() throws Exception {
+        XResource res1 = getPackageProvider("test1", new String("org.jboss.foo"), new String("1.0.0"));
+        XResource res2 = getPackageProvider("test2", new String("org.jboss.foo"), new String("1.0.0"));
+        Capability cap1 = res1.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Capability cap2 = res2.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Assert.assertSame(cap1.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE), cap2.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE));
+        Assert.assertSame(cap1.getAttributes().get(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE), cap2.getAttributes().get(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE));
+        Assert.assertSame(cap1.getDirectives().get(PackageNamespace.CAPABILITY_USES_DIRECTIVE), cap2.getDirectives().get(PackageNamespace.CAPABILITY_USES_DIRECTIVE));
+        Assert.assertEquals(Version.parseVersion("1.0.0"), ((XPackageCapability) cap1).getVersion());
+    }
+
+    @Test
+    public void testVersionNormalisation() throws Exception {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        XCapability icap = builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "test1");
+        icap.getAttributes().put(IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE, "2.0");
+        XCapability bcap = builder.addCapability(BundleNamespace.BUNDLE_NAMESPACE, "test1");
+        bcap.getAttributes().put(BundleNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE, new String("2.0"));
+        builder.getResource();
+        Version version = Version.parseVersion("2.0");
+        Assert.assertEquals(version, icap.getAttribute(IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE));
+        Assert.assertSame(((XIdentityCapability) icap).getVersion(), icap.getAttribute(IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE));
+        Assert.assertSame(((XIdentityCapability) icap).getVersion(), bcap.getAttribute(BundleNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE));
+    }
+
+    @Test
+    public void testInvalidGeneratedFilter() throws Exception {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "test1");
+        XRequirement req = builder.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        // Generates the clause (attr~=), which is not a valid OSGi filter
+        req.getAttributes().put("attr~", "");
+        try {
+            builder.getResource();
+            Assert.fail("ResourceValidationException expected");
+        } catch (ResourceValidationException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFilterDirectiveSyntax() throws Exception {
+        String[] filters = new String[] { "(a=b)", " ( a = b ) ", "(a=)", "(a~=)", "(a>=)", "(a<=)", "(a>=1)", "(a~=\\))",
+                "(a=*)", "(a=* )", "(a=**)", "(a=b*c)", "(a=\\*)", "(a=b\\)", "(a=(b)", "(a)", "(=b)", "( =b)", "(a~b)",
+                "(&(a=b))", "(&(a=b)(c=d))", "(&)", "(&=b)", "(|=b)", "(!=b)", "(!(a=b))", "(!(a=b)(c=d))", "(& (a=b) )",
+                "(a=b)(c=d)", "(a=b", "a=b", "" };
+        for (String filter : filters) {
+            boolean valid = true;
+            try {
+                FrameworkUtil.createFilter(filter);
+            } catch (InvalidSyntaxException ex) {
+                valid = false;
+            }
+            XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+            builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "test1");
+            Map<String, String> dirs = new HashMap<String, String>();
+            dirs.put(Constants.FILTER_DIRECTIVE, filter);
+            builder.addRequirement("test.namespace", new HashMap<String, Object>(), dirs);
+            try {
+                XResource resource = builder.getResource();
+                Assert.assertTrue(filter, valid);
+                Requirement req = resource.getRequirements("test.namespace").get(0);
+                Assert.assertEquals(filter, FrameworkUtil.createFilter(filter), ((XRequirement) req).getFilter());
+            } catch (ResourceValidationException ex) {
+                Assert.assertFalse(filter, valid);
+            }
+        }
+    }
+
+    @Test
+    public void testCapabilityLists() throws Exception {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        XCapability icap = builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "test1");
+        XCapability pcapA = builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.a");
+        XCapability ccap = builder.addCapability("custom", "foo");
+        XCapability pcapB = builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.b");
+        XResource res = builder.getResource();
+        Assert.assertEquals(Arrays.asList(icap, pcapA, ccap, pcapB), res.getCapabilities(null));
+        Assert.assertEquals(Arrays.asList(pcapA, pcapB), res.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE));
+        Assert.assertEquals(Arrays.asList(ccap), res.getCapabilities("custom"));
+        Assert.assertTrue(res.getCapabilities("unknown").isEmpty());
+        Assert.assertTrue(res.getRequirements(null).isEmpty());
+        Assert.assertSame(res.getCapabilities(null), res.getCapabilities(null));
+        try {
+            res.getCapabilities(null).remove(0);
+            Assert.fail("UnsupportedOperationException expected");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testResourceStream() throws Exception {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addIdentityCapability("test1", Version.parseVersion("1.0.0"));
+        builder.addAttribute("location", "test1.jar");
+        XCapability cap = builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        cap.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, "1.2.0");
+        cap.getAttributes().put("size", Long.valueOf(10));
+        cap.getAttributes().put("tags", Arrays.asList("a", "b"));
+        cap.getDirectives().put(PackageNamespace.CAPABILITY_USES_DIRECTIVE, "org.jboss.bar");
+        builder.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.bar");
+        XResource res1 = builder.getResource();
+        XResource res2 = getPackageProvider("test2", "org.jboss.bar", "2.0.0");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ResourceWriter writer = new ResourceWriter(bytes);
+        writer.writeResource(res1);
+        writer.writeResource(res2);
+        writer.close();
+
+        ResourceReader reader = new ResourceReader(new ByteArrayInputStream(bytes.toByteArray()), new XResourceBuilderFactory<XResource>());
+        XResource read1 = reader.readResource();
+        XResource read2 = reader.readResource();
+        Assert.assertNull(reader.readResource());
+        reader.close();
+
+        Assert.assertEquals("test1", read1.getIdentityCapability().getName());
+        Assert.assertEquals(res1.getAttributes(), read1.getAttributes());
+        Assert.assertEquals(Version.parseVersion("1.0.0"), read1.getIdentityCapability().getVersion());
+        Capability readcap = read1.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Assert.assertEquals(cap.getAttributes(), readcap.getAttributes());
+        Assert.assertEquals(cap.getDirectives(), readcap.getDirectives());
+        XRequirement readreq = (XRequirement) read1.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Assert.assertTrue(readreq.matches(read2.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE).get(0)));
+        Assert.assertEquals("test2", read2.getIdentityCapability().getName());
+
+        // Resource attributes are restored through the builder, which takes string values only
+        res2.setMutable(true);
+        res2.getAttributes().put("size", Long.valueOf(10));
+        res2.setMutable(false);
+        writer = new ResourceWriter(new ByteArrayOutputStream());
+        try {
+            writer.writeResource(res2);
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
     }
 
     @Test
@@ -190,4 +352,13 @@ public class XResourceBuilderTestCase extends AbstractTestBase {
         Assert.assertEquals("test1", hcap.getName());
         Assert.assertEquals(Version.emptyVersion, hcap.getVersion());
     }
+
+    private XResource getPackageProvider(String symbolicName, String packageName, String version) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, symbolicName);
+        XCapability cap = builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, packageName);
+        cap.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, version);
+        cap.getDirectives().put(PackageNamespace.CAPABILITY_USES_DIRECTIVE, new String("org.jboss.bar"));
+        return builder.getResource();
+    }
 }
@@ -19,6 +19,10 @@
  */
 package org.jboss.test.osgi.resolver.spi;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XRequirement;
 import org.jboss.osgi.resolver.XResource;
@@ -26,10 +30,14 @@ import org.jboss.osgi.resolver.XResourceBuilder;
 import org.jboss.osgi.resolver.XResourceBuilderFactory;
 import org.junit.Assert;
 import org.junit.Test;
+import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.Version;
 import org.osgi.framework.namespace.BundleNamespace;
 import org.osgi.framework.namespace.IdentityNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Capability;
 
 /**
  * Unit tests for resource matching
@@ -70,4 +78,92 @@ public class XResourceMatchingTestCase extends AbstractTestBase {
 
         Assert.assertTrue("Match", req.matches(cap));
     }
+
+    @Test
+    public void testTypedAttributeMatch() throws Exception {
+        XResourceBuilder<XResource> cbuilder = XResourceBuilderFactory.create();
+        cbuilder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "res1");
+        XCapability cap = cbuilder.addCapability("custom", "foo");
+        cap.getAttributes().put("version", Version.parseVersion("1.5"));
+        cap.getAttributes().put("size", Long.valueOf(10));
+        cap.getAttributes().put("tags", Arrays.asList("a", "b"));
+        cap.getAttributes().put("enabled", Boolean.TRUE);
+        cbuilder.getResource();
+
+        XResourceBuilder<XResource> rbuilder = XResourceBuilderFactory.create();
+        rbuilder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "res2");
+        Filter filter = FrameworkUtil.createFilter("(&(custom=f*)(version>=1.0)(!(version>=2.0))(size<= 10)(tags=b)(enabled=true)(custom~=FOO))");
+        XRequirement req = rbuilder.addRequirement("custom", filter);
+        filter = FrameworkUtil.createFilter("(&(custom=foo)(|(size>=11)(tags=c)))");
+        XRequirement noreq = rbuilder.addRequirement("custom", filter);
+        rbuilder.getResource();
+
+        Assert.assertTrue("Match", req.matches(cap));
+        Assert.assertFalse("No match", noreq.matches(cap));
+    }
+
+    @Test
+    public void testMandatoryAttributeMatch() throws Exception {
+        XResourceBuilder<XResource> cbuilder = XResourceBuilderFactory.create();
+        cbuilder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "res1");
+        XCapability cap = cbuilder.addCapability(BundleNamespace.BUNDLE_NAMESPACE, "org.jboss.test.cases.repository.tb1");
+        cap.getAttributes().put("foo", "bar");
+        cap.getDirectives().put(Constants.MANDATORY_DIRECTIVE, "foo");
+        cbuilder.getResource();
+
+        XResourceBuilder<XResource> rbuilder = XResourceBuilderFactory.create();
+        rbuilder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "res2");
+        Filter filter = FrameworkUtil.createFilter("(&(osgi.wiring.bundle=org.jboss.test.cases.repository.tb1)(foo=bar))");
+        XRequirement req = rbuilder.addRequirement("osgi.wiring.bundle", filter);
+        filter = FrameworkUtil.createFilter("(&(osgi.wiring.bundle=org.jboss.test.cases.repository.tb1)(!(foobar=*)))");
+        XRequirement noreq = rbuilder.addRequirement("osgi.wiring.bundle", filter);
+        rbuilder.getResource();
+
+        Assert.assertTrue("Match", req.matches(cap));
+        Assert.assertFalse("No match", noreq.matches(cap));
+    }
+
+    @Test
+    public void testGeneratedFilterDirective() throws Exception {
+        XResourceBuilder<XResource> rbuilder = XResourceBuilderFactory.create();
+        rbuilder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "res1");
+        XRequirement req = rbuilder.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        req.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, "[1.0,2.0)");
+        req.getAttributes().put("foo", "b*r");
+        rbuilder.getResource();
+
+        String filterdir = "(&(&(osgi.wiring.package=org.jboss.foo)(&(version>=1.0.0)(!(version>=2.0.0))))(foo=b*r))";
+        Assert.assertEquals(filterdir, req.getDirective(Constants.FILTER_DIRECTIVE));
+        Assert.assertEquals(FrameworkUtil.createFilter(filterdir), req.getFilter());
+    }
+
+    @Test
+    public void testMatchAll() throws Exception {
+        List<Capability> caps = new ArrayList<Capability>();
+        for (String version : new String[] { "0.9", "1.0", "1.5", "2.0" }) {
+            XResourceBuilder<XResource> cbuilder = XResourceBuilderFactory.create();
+            cbuilder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "res" + version);
+            XCapability cap = cbuilder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+            cap.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, version);
+            caps.add(cap);
+            caps.add(cbuilder.getResource().getIdentityCapability());
+        }
+
+        XResourceBuilder<XResource> rbuilder = XResourceBuilderFactory.create();
+        rbuilder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "res");
+        XRequirement req = rbuilder.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        req.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, "[1.0,2.0)");
+        rbuilder.getResource();
+
+        List<Capability> expected = new ArrayList<Capability>();
+        for (Capability cap : caps) {
+            if (req.matches(cap)) {
+                expected.add(cap);
+            }
+        }
+        List<Capability> result = new ArrayList<Capability>();
+        req.matchAll(caps, result);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(expected, result);
+    }
 }
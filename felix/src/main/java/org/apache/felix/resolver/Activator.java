@@ -25,6 +25,11 @@ import org.osgi.service.resolver.Resolver;
 public class Activator implements BundleActivator
 {
     public static final String LOG_LEVEL = "felix.resolver.log.level";
+    public static final String PARALLELISM = "felix.resolver.parallelism";
+    public static final String EXECUTION_MODE = "felix.resolver.execution.mode";
+    public static final String LEARNING = "felix.resolver.learning";
+
+    private ResolverImpl m_resolver;
 
     public void start(BundleContext bc) throws Exception
     {
@@ -40,13 +45,40 @@ public class Activator implements BundleActivator
                 // Use default log level.
             }
         }
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        if (bc.getProperty(PARALLELISM) != null)
+        {
+            try
+            {
+                parallelism = Integer.parseInt(bc.getProperty(PARALLELISM));
+            }
+            catch (NumberFormatException ex)
+            {
+                // Use default parallelism.
+            }
+        }
+        Logger logger = new Logger(logLevel);
+        String modeName = bc.getProperty(EXECUTION_MODE);
+        ExecutionMode mode = ExecutionMode.parse(modeName);
+        if (modeName != null && mode == null)
+        {
+            logger.log(Logger.LOG_WARNING,
+                "Unknown execution mode " + modeName + ", using " + ExecutionMode.THREAD_POOL);
+        }
+        m_resolver = new ResolverImpl(logger, parallelism, mode);
+        m_resolver.setLearning(Boolean.parseBoolean(bc.getProperty(LEARNING)));
         bc.registerService(
             Resolver.class,
-            new ResolverImpl(new Logger(logLevel)),
+            m_resolver,
             null);
     }
 
     public void stop(BundleContext bc) throws Exception
     {
+        if (m_resolver != null)
+        {
+            m_resolver.shutdown();
+            m_resolver = null;
+        }
     }
 }
\ No newline at end of file
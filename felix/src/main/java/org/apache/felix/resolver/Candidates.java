@@ -38,6 +38,7 @@ import org.apache.felix.resolver.util.OpenHashMapList;
 import org.apache.felix.resolver.util.OpenHashMapSet;
 import org.apache.felix.resolver.util.ShadowList;
 import org.osgi.framework.Version;
+import org.osgi.framework.namespace.BundleNamespace;
 import org.osgi.framework.namespace.HostNamespace;
 import org.osgi.framework.namespace.IdentityNamespace;
 import org.osgi.framework.namespace.PackageNamespace;
@@ -289,9 +290,13 @@ class Candidates
     {
         for (Map.Entry<Resource, PopulateResult> populated : m_populateResultCache.fast())
         {
-            if (populated.getValue().success)
+            if (populated.getValue().success && !Util.isFragment(populated.getKey()))
             {
-                populateSubstitutables(populated.getKey());
+                // The candidates of a host with fragments refer to its wrapped capabilities
+                // and requirements, which also include the exports and imports of the fragments
+                Resource resource = populated.getKey();
+                WrappedResource wrapped = m_allWrappedHosts.get(resource);
+                populateSubstitutables(wrapped != null ? wrapped : resource);
             }
         }
     }
@@ -380,13 +385,14 @@ class Candidates
             {
                 for (Requirement dependent : dependents)
                 {
-                    List<Capability> candidates = m_candidateMap.get(dependent);
+                    List<Capability> candidates = m_candidateMap.getForUpdate(dependent);
                     if (candidates != null)
                     {
+                        // The candidate lists do not support removal through their iterators
                         candidates:
-                        for (Iterator<Capability> iCandidates = candidates.iterator(); iCandidates.hasNext();)
+                        while (!candidates.isEmpty())
                         {
-                            Capability candidate = iCandidates.next();
+                            Capability candidate = candidates.get(0);
                             Integer candidateStatus = substituteStatuses.get(candidate);
                             if (candidateStatus == null)
                             {
@@ -400,7 +406,7 @@ class Candidates
                                 case SUBSTITUTED:
                                 default:
                                     // Need to remove any substituted that comes before an exported candidate
-                                    iCandidates.remove();
+                                    candidates.remove(0);
                                     // continue to next candidate
                                     break;
                             }
@@ -697,6 +703,30 @@ class Candidates
         }
     }
 
+    /**
+     * Returns true if the package spaces only depend on the first candidates of
+     * the requirements. This is not the case if fragments are attached to hosts,
+     * if exports can be substituted or if bundles are required, since required
+     * bundles can split packages across their providers.
+     *
+     * @return true if the package spaces are determined by the first candidates.
+     */
+    public boolean hasSimplePackageSpaces()
+    {
+        if (!m_allWrappedHosts.isEmpty() || !m_subtitutableMap.isEmpty())
+        {
+            return false;
+        }
+        for (Requirement req : m_candidateMap.keySet())
+        {
+            if (BundleNamespace.BUNDLE_NAMESPACE.equals(req.getNamespace()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns the wrapped resource associated with the given resource. If the
      * resource was not wrapped, then the resource itself is returned. This is
@@ -741,7 +771,7 @@ class Candidates
 
     public void removeFirstCandidate(Requirement req)
     {
-        List<Capability> candidates = m_candidateMap.get(req);
+        List<Capability> candidates = m_candidateMap.getForUpdate(req);
         // Remove the conflicting candidate.
         Capability cap = candidates.remove(0);
         if (candidates.isEmpty())
@@ -755,7 +785,7 @@ class Candidates
 
     public List<Capability> clearCandidates(Requirement req, Collection<Capability> caps)
     {
-        List<Capability> l = m_candidateMap.get(req);
+        List<Capability> l = m_candidateMap.getForUpdate(req);
         l.removeAll(caps);
         // Update candidates delta with the removed capabilities.
         CopyOnWriteArraySet<Capability> capPath = m_delta.getOrCompute(req);
@@ -836,8 +866,8 @@ class Candidates
                         // unselected for later removal.
                         else
                         {
-                            m_dependentMap.get(hostCap).remove(hostReq);
-                            List<Capability> hosts = m_candidateMap.get(hostReq);
+                            m_dependentMap.getForUpdate(hostCap).remove(hostReq);
+                            List<Capability> hosts = m_candidateMap.getForUpdate(hostReq);
                             hosts.remove(hostCap);
                             if (hosts.isEmpty())
                             {
@@ -911,7 +941,7 @@ class Candidates
                             // matter if they come from the host or fragment,
                             // since we are completing replacing the declaring
                             // host and fragments with the wrapped host.
-                            List<Capability> cands = m_candidateMap.get(r);
+                            List<Capability> cands = m_candidateMap.getForUpdate(r);
                             if (!(cands instanceof ShadowList))
                             {
                                 ShadowList<Capability> shadow = new ShadowList<Capability>(cands);
@@ -960,7 +990,7 @@ class Candidates
                     m_candidateMap.put(r, new CopyOnWriteArrayList<Capability>(cands));
                     for (Capability cand : cands)
                     {
-                        Set<Requirement> dependents = m_dependentMap.get(cand);
+                        Set<Requirement> dependents = m_dependentMap.getForUpdate(cand);
                         dependents.remove(origReq);
                         dependents.add(r);
                     }
@@ -1099,7 +1129,7 @@ class Candidates
         {
             for (Capability cap : candidates)
             {
-                Set<Requirement> dependents = m_dependentMap.get(cap);
+                Set<Requirement> dependents = m_dependentMap.getForUpdate(cap);
                 if (dependents != null)
                 {
                     dependents.remove(req);
@@ -1124,7 +1154,7 @@ class Candidates
         {
             for (Requirement r : dependents)
             {
-                List<Capability> candidates = m_candidateMap.get(r);
+                List<Capability> candidates = m_candidateMap.getForUpdate(r);
                 candidates.remove(c);
                 if (candidates.isEmpty())
                 {
@@ -1153,15 +1183,17 @@ class Candidates
      */
     public Candidates copy()
     {
+        // The candidate lists and dependent sets are shared with the copy
+        // and are only copied when either Candidates object updates them
         return new Candidates(
                 m_mandatoryResources,
-                m_dependentMap.deepClone(),
-                m_candidateMap.deepClone(),
+                m_dependentMap.shallowClone(),
+                m_candidateMap.shallowClone(),
                 m_allWrappedHosts,
                 m_populateResultCache,
                 m_validOnDemandResources,
                 m_subtitutableMap,
-                m_delta.deepClone());
+                m_delta.shallowClone());
     }
 
     public void dump(ResolveContext rc)
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver;
+
+/**
+ * The strategies that a resolver can use to run the tasks that calculate the package spaces.
+ *
+ * Both modes run the same flat tasks, only the threads that run them differ.
+ */
+public enum ExecutionMode
+{
+    /**
+     * A fixed number of daemon threads that share a single task queue.
+     */
+    THREAD_POOL,
+
+    /**
+     * A new virtual thread for every task.
+     * Requires Java 21, otherwise the resolver uses a thread pool.
+     */
+    VIRTUAL_THREAD;
+
+    /**
+     * Get the mode with the given name, ignoring case.
+     *
+     * @return the mode or null if there is no such mode
+     */
+    public static ExecutionMode parse(String name)
+    {
+        for (ExecutionMode mode : values())
+        {
+            if (mode.name().equalsIgnoreCase(name))
+            {
+                return mode;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver;
+
+import java.lang.reflect.Method;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-lived executor that is shared by all resolves of a resolver.
+ *
+ * The pool is created on first use and its daemon threads terminate when they
+ * have been idle for a while, so an idle resolver does not hold any threads.
+ * After {@link #shutdown()} the next task creates a new pool.
+ *
+ * Virtual threads are looked up reflectively, so that the resolver still runs
+ * on older platforms, where it falls back to a thread pool.
+ */
+class ResolverExecutor implements Executor
+{
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    private final Logger m_logger;
+    private final int m_parallelism;
+    private final ExecutionMode m_mode;
+    private final AccessControlContext m_acc;
+    private ExecutorService m_pool;
+
+    ResolverExecutor(Logger logger, int parallelism, ExecutionMode mode, AccessControlContext acc)
+    {
+        m_logger = logger;
+        m_parallelism = parallelism;
+        m_mode = mode;
+        m_acc = acc;
+    }
+
+    public void execute(Runnable command)
+    {
+        while (true)
+        {
+            ExecutorService pool = getPool();
+            try
+            {
+                pool.execute(command);
+                return;
+            }
+            catch (RejectedExecutionException ex)
+            {
+                if (!pool.isShutdown())
+                {
+                    throw ex;
+                }
+                // The pool was shut down after it was looked up, the next pool runs the task
+            }
+        }
+    }
+
+    int getParallelism()
+    {
+        return m_parallelism;
+    }
+
+    ExecutionMode getMode()
+    {
+        return m_mode;
+    }
+
+    /**
+     * Stop the threads of this executor when they are done.
+     *
+     * Tasks that were already submitted still run, so that resolves in progress complete.
+     * Their later tasks go to a new pool.
+     */
+    synchronized void shutdown()
+    {
+        final ExecutorService pool = m_pool;
+        m_pool = null;
+        if (pool != null)
+        {
+            if (System.getSecurityManager() != null)
+            {
+                AccessController.doPrivileged(new PrivilegedAction<Void>()
+                {
+                    public Void run()
+                    {
+                        pool.shutdown();
+                        return null;
+                    }
+                }, m_acc);
+            }
+            else
+            {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private synchronized ExecutorService getPool()
+    {
+        if (m_pool == null)
+        {
+            m_pool = System.getSecurityManager() != null ?
+                AccessController.doPrivileged(
+                    new PrivilegedAction<ExecutorService>()
+                    {
+                        public ExecutorService run()
+                        {
+                            return createPool();
+                        }
+                    }, m_acc)
+                :
+                    createPool();
+        }
+        return m_pool;
+    }
+
+    private ExecutorService createPool()
+    {
+        try
+        {
+            if (m_mode == ExecutionMode.VIRTUAL_THREAD)
+            {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            }
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING,
+                "Execution mode " + m_mode + " is not available, using a thread pool: " + ex);
+        }
+        return createThreadPool();
+    }
+
+    private ExecutorService createThreadPool()
+    {
+        final String prefix = "felix-resolver-" + POOL_NUMBER.incrementAndGet() + "-thread-";
+        // The virtual thread mode accepts any parallelism, its fallback pool needs a thread
+        int threads = Math.max(1, m_parallelism);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                private final AtomicInteger m_threadNumber = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, prefix + m_threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
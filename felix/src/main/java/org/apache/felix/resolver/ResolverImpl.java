@@ -18,14 +18,15 @@
  */
 package org.apache.felix.resolver;
 
+import java.io.Closeable;
 import java.security.AccessControlContext;
 import java.security.AccessController;
-import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -34,8 +35,6 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.resolver.util.ArrayMap;
@@ -56,7 +55,7 @@ import org.osgi.service.resolver.ResolutionException;
 import org.osgi.service.resolver.ResolveContext;
 import org.osgi.service.resolver.Resolver;
 
-public class ResolverImpl implements Resolver
+public class ResolverImpl implements Resolver, Closeable
 {
     private final AccessControlContext m_acc =
         System.getSecurityManager() != null ?
@@ -69,6 +68,15 @@ public class ResolverImpl implements Resolver
 
     private final Executor m_executor;
 
+    // The executor that is shared by all resolves when no executor is given
+    private final ResolverExecutor m_sharedExecutor;
+
+    // Resolves with fewer resources calculate the package spaces in the calling thread,
+    // unless the caller has given an executor
+    private static final int PARALLEL_THRESHOLD = 16;
+
+    private volatile boolean m_learning;
+
     // Note this class is not thread safe.
     // Only use in the context of a single thread.
     class ResolveSession
@@ -88,6 +96,12 @@ public class ResolverImpl implements Resolver
         private Candidates m_multipleCardCandidates = null;
 
         private final ConcurrentMap<String, List<String>> m_usesCache = new ConcurrentHashMap<String, List<String>>();
+        // Maps the candidate choices that were found to violate uses constraints
+        // to the resulting error; null if this session does not learn from conflicts.
+        private Map<Map<Requirement, Capability>, ResolutionError> m_conflicts = null;
+        // Holds the candidate choices of the conflict found by the current package
+        // space check; null if there is none or it cannot be learned.
+        private Map<Requirement, Capability> m_conflict = null;
 
         ResolveSession(ResolveContext resolveContext)
         {
@@ -112,6 +126,44 @@ public class ResolverImpl implements Resolver
         public ConcurrentMap<String, List<String>> getUsesCache() {
             return m_usesCache;
         }
+
+        boolean isLearning()
+        {
+            return m_conflicts != null;
+        }
+
+        Map<Map<Requirement, Capability>, ResolutionError> getConflicts()
+        {
+            return m_conflicts;
+        }
+
+        void setLearning(boolean learning)
+        {
+            m_conflicts = learning ? new LinkedHashMap<Map<Requirement, Capability>, ResolutionError>() : null;
+            m_conflict = null;
+        }
+
+        void setConflict(Map<Requirement, Capability> conflict)
+        {
+            m_conflict = conflict;
+        }
+
+        void addConflictChoice(Requirement req, Capability cap)
+        {
+            if (m_conflict != null)
+            {
+                m_conflict.put(req, cap);
+            }
+        }
+
+        void learnConflict(ResolutionError error)
+        {
+            if (m_conflict != null)
+            {
+                m_conflicts.put(m_conflict, error);
+                m_conflict = null;
+            }
+        }
     }
 
     public ResolverImpl(Logger logger)
@@ -121,9 +173,24 @@ public class ResolverImpl implements Resolver
 
     public ResolverImpl(Logger logger, int parallelism)
     {
+        this(logger, parallelism, ExecutionMode.THREAD_POOL);
+    }
+
+    /**
+     * Create a resolver that calculates the package spaces with the given execution mode.
+     * The parallelism does not limit the number of virtual threads.
+     */
+    public ResolverImpl(Logger logger, int parallelism, ExecutionMode mode)
+    {
+        if (mode == null)
+        {
+            mode = ExecutionMode.THREAD_POOL;
+        }
         this.m_logger = logger;
         this.m_parallelism = parallelism;
         this.m_executor = null;
+        this.m_sharedExecutor = parallelism > 1 || mode == ExecutionMode.VIRTUAL_THREAD ?
+            new ResolverExecutor(logger, parallelism, mode, m_acc) : null;
     }
 
     public ResolverImpl(Logger logger, Executor executor)
@@ -131,6 +198,45 @@ public class ResolverImpl implements Resolver
         this.m_logger = logger;
         this.m_parallelism = -1;
         this.m_executor = executor;
+        this.m_sharedExecutor = null;
+    }
+
+    /**
+     * Stop the threads of the shared executor.
+     * Resolves in progress still complete. A resolver that is used after it has been shut down starts new threads.
+     */
+    public void shutdown()
+    {
+        if (m_sharedExecutor != null)
+        {
+            m_sharedExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Same as {@link #shutdown()}, so that users that only know the
+     * {@link Resolver} interface can release the shared threads.
+     */
+    public void close()
+    {
+        shutdown();
+    }
+
+    /**
+     * Enable or disable learning from uses constraint violations.
+     * A learning resolver records the candidate choices of every uses conflict it finds
+     * and skips the package space check of later permutations that make the same choices.
+     * Resolves with fragments, substitutable exports or required bundles do not learn,
+     * because the first candidates do not determine their package spaces.
+     */
+    public void setLearning(boolean learning)
+    {
+        m_learning = learning;
+    }
+
+    public boolean isLearning()
+    {
+        return m_learning;
     }
 
     public Map<Resource, List<Wire>> resolve(ResolveContext rc) throws ResolutionException
@@ -139,40 +245,9 @@ public class ResolverImpl implements Resolver
         {
             return resolve(rc, m_executor);
         }
-        else if (m_parallelism > 1)
+        else if (m_sharedExecutor != null)
         {
-            final ExecutorService executor =
-                System.getSecurityManager() != null ?
-                    AccessController.doPrivileged(
-                        new PrivilegedAction<ExecutorService>()
-                        {
-                            public ExecutorService run()
-                            {
-                                return Executors.newFixedThreadPool(m_parallelism);
-                            }
-                        }, m_acc)
-                :
-                    Executors.newFixedThreadPool(m_parallelism);
-            try
-            {
-                return resolve(rc, executor);
-            }
-            finally
-            {
-                if (System.getSecurityManager() != null)
-                {
-                    AccessController.doPrivileged(new PrivilegedAction<Void>(){
-                        public Void run() {
-                            executor.shutdownNow();
-                            return null;
-                        }
-                    }, m_acc);
-                }
-                else
-                {
-                    executor.shutdownNow();
-                }
-            }
+            return resolve(rc, m_sharedExecutor);
         }
         else
         {
@@ -275,6 +350,8 @@ public class ResolverImpl implements Resolver
                     }
                 }
 
+                session.setLearning(m_learning && allCandidates.hasSimplePackageSpaces());
+
                 Set<Object> processedDeltas = new HashSet<Object>();
                 Map<Resource, ResolutionError> faultyResources = null;
                 do
@@ -317,6 +394,26 @@ public class ResolverImpl implements Resolver
                         continue;
                     }
 
+                    // A permutation that makes all the candidate choices of a learned
+                    // conflict fails the same way, so only permutate those choices.
+                    Map<Requirement, Capability> conflict = findConflict(session, allCandidates);
+                    if (conflict != null)
+                    {
+                        List<Candidates> newImports = new ArrayList<Candidates>();
+                        for (Requirement req : conflict.keySet())
+                        {
+                            allCandidates.permutate(req, newImports);
+                        }
+                        importPermutations.addAll(0, newImports);
+                        rethrow = session.getConflicts().get(conflict);
+                        if (m_logger.isDebugEnabled())
+                        {
+                            m_logger.debug("Candidate permutation skipped due to a learned "
+                                    + "uses conflict; will try another if possible.");
+                        }
+                        continue;
+                    }
+
                     // Compute the list of hosts
                     Map<Resource, Resource> hosts = new OpenHashMap<Resource, Resource>();
                     for (Resource resource : allResources)
@@ -449,6 +546,7 @@ public class ResolverImpl implements Resolver
             {
                 // Always clear the state.
                 session.setMultipleCardCandidates(null);
+                session.setLearning(false);
             }
         }
         while (retry);
@@ -475,11 +573,13 @@ public class ResolverImpl implements Resolver
                 new OpenHashMap<Resource, Object>(resourcePkgMap.size());
         for (Entry<Resource, Resource> entry : hosts.entrySet())
         {
+            session.setConflict(null);
             ResolutionError rethrow = checkPackageSpaceConsistency(
                     session, usesPermutations, importPermutations, entry.getValue(),
                     allCandidates, dynamic, resourcePkgMap, resultCache);
             if (rethrow != null)
             {
+                session.learnConflict(rethrow);
                 Resource faultyResource = entry.getKey();
                 // check that the faulty requirement is not from a fragment
                 for (Requirement faultyReq : rethrow.getUnresolvedRequirements())
@@ -1122,7 +1222,12 @@ public class ResolverImpl implements Resolver
             final Candidates allCandidates,
             Collection<Resource> hosts)
     {
-        final EnhancedExecutor executor = new EnhancedExecutor(innerExecutor);
+        // Handing small graphs to the shared threads costs more than it saves,
+        // an executor that is given by the caller is always used
+        boolean inline = innerExecutor instanceof ResolverExecutor
+            && allCandidates.getNbResources() < PARALLEL_THRESHOLD;
+        final EnhancedExecutor executor = new EnhancedExecutor(
+            inline ? new DumbExecutor() : innerExecutor);
 
         // Parallel compute wire candidates
         final Map<Resource, List<WireCandidate>> allWireCandidates = new ConcurrentHashMap<Resource, List<WireCandidate>>();
@@ -1312,6 +1417,7 @@ public class ResolverImpl implements Resolver
         ResolutionError rethrow = null;
         Candidates permutation = null;
         Set<Requirement> mutated = null;
+        Map<Requirement, Capability> conflict = null;
 
         // Check for conflicting imports from fragments.
         // TODO: Is this only needed for imports or are generic and bundle requirements also needed?
@@ -1385,6 +1491,9 @@ public class ResolverImpl implements Resolver
                         {
                             rethrow = new UseConstraintError(
                                     session.getContext(), allCandidates, resource, pkgName, usedBlame);
+                            conflict = session.isLearning()
+                                ? getConflict(allCandidates, usedBlame)
+                                : null;
                         }
                         mutated = (mutated != null)
                             ? mutated
@@ -1425,6 +1534,7 @@ public class ResolverImpl implements Resolver
                 {
                     usesPermutations.add(permutation);
                 }
+                session.setConflict(conflict);
                 if (m_logger.isDebugEnabled())
                 {
                     m_logger.debug("Candidate permutation failed due to a conflict between "
@@ -1487,6 +1597,10 @@ public class ResolverImpl implements Resolver
                                     session.getContext(), allCandidates,
                                     resource, pkgName,
                                     requirementBlame, usedBlame);
+                            // The package sources of a split package are not learned
+                            conflict = session.isLearning() && (requirementBlames.size() == 1)
+                                ? getConflict(allCandidates, requirementBlame, usedBlame)
+                                : null;
                         }
 
                         mutated = (mutated != null)
@@ -1551,6 +1665,7 @@ public class ResolverImpl implements Resolver
                         }
                     }
 
+                    session.setConflict(conflict);
                     if (m_logger.isDebugEnabled())
                     {
                         m_logger.debug("Candidate permutation failed due to a conflict between "
@@ -1582,6 +1697,8 @@ public class ResolverImpl implements Resolver
                             allCandidates, false, resourcePkgMap, resultCache);
                     if (rethrow != null)
                     {
+                        // The conflict below also depends on the path to the failing resource
+                        session.addConflictChoice(req, cap);
                         // If the lower level check didn't create any permutations,
                         // then we should create an import permutation for the
                         // requirement with the dependency on the failing resource
@@ -1598,6 +1715,80 @@ public class ResolverImpl implements Resolver
         return null;
     }
 
+    /**
+     * Get the candidate choices that the given conflicting blames depend on,
+     * or null if the first candidates of their requirements do not determine them.
+     */
+    private static Map<Requirement, Capability> getConflict(Candidates allCandidates, Blame... blames)
+    {
+        Map<Requirement, Capability> conflict = new LinkedHashMap<Requirement, Capability>();
+        for (Blame blame : blames)
+        {
+            // An exported package is not blamed on any requirement
+            if (blame.m_reqs == null)
+            {
+                continue;
+            }
+            for (Requirement req : blame.m_reqs)
+            {
+                if (Util.isMultiple(req))
+                {
+                    return null;
+                }
+                // There is no candidate if the requirement is already wired
+                Capability cap = allCandidates.getFirstCandidate(req);
+                if (cap != null)
+                {
+                    conflict.put(req, cap);
+                }
+            }
+        }
+        return conflict;
+    }
+
+    /**
+     * Find a learned conflict whose candidate choices are all made by the given
+     * permutation. Prefer the conflict that leaves the fewest choices to permutate.
+     */
+    private static Map<Requirement, Capability> findConflict(
+        ResolveSession session, Candidates allCandidates)
+    {
+        Map<Map<Requirement, Capability>, ResolutionError> conflicts = session.getConflicts();
+        if (conflicts == null)
+        {
+            return null;
+        }
+        Map<Requirement, Capability> found = null;
+        int foundChoices = Integer.MAX_VALUE;
+        for (Map<Requirement, Capability> conflict : conflicts.keySet())
+        {
+            int choices = 0;
+            for (Entry<Requirement, Capability> choice : conflict.entrySet())
+            {
+                if (!choice.getValue().equals(allCandidates.getFirstCandidate(choice.getKey())))
+                {
+                    choices = -1;
+                    break;
+                }
+                if (!Util.isMultiple(choice.getKey())
+                    && allCandidates.canRemoveCandidate(choice.getKey()))
+                {
+                    choices++;
+                }
+            }
+            if (choices == 0)
+            {
+                return conflict;
+            }
+            else if (choices > 0 && choices < foundChoices)
+            {
+                found = conflict;
+                foundChoices = choices;
+            }
+        }
+        return found;
+    }
+
     private boolean checkMultiple(
         ResolveSession session,
         UsedBlames usedBlames,
@@ -2136,8 +2327,9 @@ public class ResolverImpl implements Resolver
         @Override
         public boolean equals(Object o)
         {
-            return (o instanceof Blame) && m_reqs.equals(((Blame) o).m_reqs)
-                && m_cap.equals(((Blame) o).m_cap);
+            // Compare the capability before the requirement lists, which is cheaper
+            return (o == this) || ((o instanceof Blame) && m_cap.equals(((Blame) o).m_cap)
+                && m_reqs.equals(((Blame) o).m_reqs));
         }
     }
 
@@ -2433,6 +2625,20 @@ public class ResolverImpl implements Resolver
         public void execute(final Runnable runnable)
         {
             count.incrementAndGet();
+            try
+            {
+                submit(runnable);
+            }
+            catch (RuntimeException ex)
+            {
+                // The task never runs, so it must not be waited for
+                done();
+                throw ex;
+            }
+        }
+
+        private void submit(final Runnable runnable)
+        {
             executor.execute(new Runnable()
             {
                 public void run()
@@ -2453,18 +2659,23 @@ public class ResolverImpl implements Resolver
                     }
                     finally
                     {
-                        if (count.decrementAndGet() == 0)
-                        {
-                            synchronized (count)
-                            {
-                                count.notifyAll();
-                            }
-                        }
+                        done();
                     }
                 }
             });
         }
 
+        private void done()
+        {
+            if (count.decrementAndGet() == 0)
+            {
+                synchronized (count)
+                {
+                    count.notifyAll();
+                }
+            }
+        }
+
         public void await()
         {
             synchronized (count)
@@ -29,6 +29,7 @@ class WireImpl implements Wire
     private final Requirement m_req;
     private final Resource m_provider;
     private final Capability m_cap;
+    private int m_hashCode;
 
     public WireImpl(
         Resource requirer, Requirement req,
@@ -106,11 +107,17 @@ class WireImpl implements Wire
     @Override
     public int hashCode()
     {
-        int hash = 5;
-        hash = 29 * hash + (this.m_requirer != null ? this.m_requirer.hashCode() : 0);
-        hash = 29 * hash + (this.m_req != null ? this.m_req.hashCode() : 0);
-        hash = 29 * hash + (this.m_provider != null ? this.m_provider.hashCode() : 0);
-        hash = 29 * hash + (this.m_cap != null ? this.m_cap.hashCode() : 0);
+        // Computed on first use, a race only computes the same value twice
+        int hash = m_hashCode;
+        if (hash == 0)
+        {
+            hash = 5;
+            hash = 29 * hash + (this.m_requirer != null ? this.m_requirer.hashCode() : 0);
+            hash = 29 * hash + (this.m_req != null ? this.m_req.hashCode() : 0);
+            hash = 29 * hash + (this.m_provider != null ? this.m_provider.hashCode() : 0);
+            hash = 29 * hash + (this.m_cap != null ? this.m_cap.hashCode() : 0);
+            m_hashCode = hash;
+        }
         return hash;
     }
 }
\ No newline at end of file
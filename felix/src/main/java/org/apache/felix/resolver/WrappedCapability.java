@@ -25,16 +25,26 @@ public class WrappedCapability implements HostedCapability
 {
     private final Resource m_host;
     private final Capability m_cap;
+    private final int m_hashCode;
 
     public WrappedCapability(Resource host, Capability cap)
     {
         m_host = host;
         m_cap = cap;
+        // The delegates do not change, so the hash code is only computed once
+        int hash = 7;
+        hash = 37 * hash + (m_host != null ? m_host.hashCode() : 0);
+        hash = 37 * hash + (m_cap != null ? m_cap.hashCode() : 0);
+        m_hashCode = hash;
     }
 
     @Override
     public boolean equals(Object obj)
     {
+        if (obj == this)
+        {
+            return true;
+        }
         if (obj == null)
         {
             return false;
@@ -44,6 +54,10 @@ public class WrappedCapability implements HostedCapability
             return false;
         }
         final WrappedCapability other = (WrappedCapability) obj;
+        if (m_hashCode != other.m_hashCode)
+        {
+            return false;
+        }
         if (m_host != other.m_host && (m_host == null || !m_host.equals(other.m_host)))
         {
             return false;
@@ -58,10 +72,7 @@ public class WrappedCapability implements HostedCapability
     @Override
     public int hashCode()
     {
-        int hash = 7;
-        hash = 37 * hash + (m_host != null ? m_host.hashCode() : 0);
-        hash = 37 * hash + (m_cap != null ? m_cap.hashCode() : 0);
-        return hash;
+        return m_hashCode;
     }
 
     public Capability getDeclaredCapability()
@@ -27,16 +27,26 @@ public class WrappedRequirement implements Requirement
 {
     private final Resource m_host;
     private final Requirement m_req;
+    private final int m_hashCode;
 
     public WrappedRequirement(Resource host, Requirement req)
     {
         m_host = host;
         m_req = req;
+        // The delegates do not change, so the hash code is only computed once
+        int hash = 7;
+        hash = 37 * hash + (m_host != null ? m_host.hashCode() : 0);
+        hash = 37 * hash + (m_req != null ? m_req.hashCode() : 0);
+        m_hashCode = hash;
     }
 
     @Override
     public boolean equals(Object obj)
     {
+        if (obj == this)
+        {
+            return true;
+        }
         if (obj == null)
         {
             return false;
@@ -46,6 +56,10 @@ public class WrappedRequirement implements Requirement
             return false;
         }
         final WrappedRequirement other = (WrappedRequirement) obj;
+        if (m_hashCode != other.m_hashCode)
+        {
+            return false;
+        }
         if (m_host != other.m_host && (m_host == null || !m_host.equals(other.m_host)))
         {
             return false;
@@ -60,10 +74,7 @@ public class WrappedRequirement implements Requirement
     @Override
     public int hashCode()
     {
-        int hash = 7;
-        hash = 37 * hash + (m_host != null ? m_host.hashCode() : 0);
-        hash = 37 * hash + (m_req != null ? m_req.hashCode() : 0);
-        return hash;
+        return m_hashCode;
     }
 
     public Requirement getDeclaredRequirement()
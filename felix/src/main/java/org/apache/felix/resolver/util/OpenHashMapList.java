@@ -18,10 +18,19 @@
  */
 package org.apache.felix.resolver.util;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 public class OpenHashMapList<K, V> extends OpenHashMap<K, CopyOnWriteArrayList<V>> {
 
+    // Whether this map shares values with a clone. If it does, it only updates the owned
+    // values in place, the other ones are copied on their first update.
+    private boolean shared;
+    // The values that were put into this map since it was last cloned, created on demand
+    private Set<Object> owned;
+
     public OpenHashMapList() {
         super();
     }
@@ -33,6 +42,8 @@ public class OpenHashMapList<K, V> extends OpenHashMap<K, CopyOnWriteArrayList<V
     @SuppressWarnings("unchecked")
     public OpenHashMapList<K, V> deepClone() {
         OpenHashMapList<K, V> copy = (OpenHashMapList<K, V>) super.clone();
+        copy.shared = false;
+        copy.owned = null;
         Object[] values = copy.value;
         for (int i = values.length; i-- > 0;) {
             if (values[i] != null) {
@@ -42,9 +53,90 @@ public class OpenHashMapList<K, V> extends OpenHashMap<K, CopyOnWriteArrayList<V
         return copy;
     }
 
+    /**
+     * Clone this map without copying its values.
+     *
+     * The values are shared by this map and the clone until either map updates a value
+     * through {@link #getOrCompute(Object)} or {@link #getForUpdate(Object)}, which replace
+     * a shared value with a private copy first.
+     */
+    @SuppressWarnings("unchecked")
+    public OpenHashMapList<K, V> shallowClone() {
+        OpenHashMapList<K, V> copy = (OpenHashMapList<K, V>) super.clone();
+        // Neither map owns any of the values at this point
+        shared = true;
+        owned = null;
+        copy.shared = true;
+        copy.owned = null;
+        return copy;
+    }
+
+    /**
+     * Get the value for the given key, which may be updated in place.
+     *
+     * @return the value or null if there is no value for the key
+     */
+    public CopyOnWriteArrayList<V> getForUpdate(K key) {
+        CopyOnWriteArrayList<V> value = get(key);
+        return value != null ? ensureOwned(key, value) : null;
+    }
+
+    @Override
+    public CopyOnWriteArrayList<V> getOrCompute(K key) {
+        return ensureOwned(key, super.getOrCompute(key));
+    }
+
+    @Override
+    public CopyOnWriteArrayList<V> put(K key, CopyOnWriteArrayList<V> value) {
+        // A map owns the values that are put into it
+        addOwned(value);
+        CopyOnWriteArrayList<V> previous = super.put(key, value);
+        removeOwned(previous);
+        return previous;
+    }
+
+    @Override
+    public CopyOnWriteArrayList<V> remove(Object key) {
+        CopyOnWriteArrayList<V> previous = super.remove(key);
+        removeOwned(previous);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        owned = null;
+    }
+
+    private CopyOnWriteArrayList<V> ensureOwned(K key, CopyOnWriteArrayList<V> value) {
+        if (!shared || (owned != null && owned.contains(value))) {
+            return value;
+        }
+        CopyOnWriteArrayList<V> copy = new CopyOnWriteArrayList<V>(value);
+        put(key, copy);
+        return copy;
+    }
+
+    private void addOwned(Object value) {
+        if (shared) {
+            if (owned == null) {
+                owned = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            }
+            owned.add(value);
+        }
+    }
+
+    private void removeOwned(Object value) {
+        if (owned != null && value != null) {
+            owned.remove(value);
+        }
+    }
+
     @Override
     protected CopyOnWriteArrayList<V> compute(K key) {
-        return new CopyOnWriteArrayList<V>();
+        CopyOnWriteArrayList<V> value = new CopyOnWriteArrayList<V>();
+        addOwned(value);
+        return value;
     }
 
 }
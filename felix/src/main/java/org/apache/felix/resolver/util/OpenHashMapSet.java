@@ -18,10 +18,19 @@
  */
 package org.apache.felix.resolver.util;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 public class OpenHashMapSet<K, V> extends OpenHashMap<K, CopyOnWriteArraySet<V>> {
 
+    // Whether this map shares values with a clone. If it does, it only updates the owned
+    // values in place, the other ones are copied on their first update.
+    private boolean shared;
+    // The values that were put into this map since it was last cloned, created on demand
+    private Set<Object> owned;
+
     public OpenHashMapSet() {
         super();
     }
@@ -32,6 +41,8 @@ public class OpenHashMapSet<K, V> extends OpenHashMap<K, CopyOnWriteArraySet<V>>
 
     public OpenHashMapSet<K, V> deepClone() {
         OpenHashMapSet<K, V> copy = (OpenHashMapSet<K, V>) super.clone();
+        copy.shared = false;
+        copy.owned = null;
         Object[] values = copy.value;
         for (int i = values.length; i-- > 0;) {
             if (values[i] != null) {
@@ -41,9 +52,90 @@ public class OpenHashMapSet<K, V> extends OpenHashMap<K, CopyOnWriteArraySet<V>>
         return copy;
     }
 
+    /**
+     * Clone this map without copying its values.
+     *
+     * The values are shared by this map and the clone until either map updates a value
+     * through {@link #getOrCompute(Object)} or {@link #getForUpdate(Object)}, which replace
+     * a shared value with a private copy first.
+     */
+    @SuppressWarnings("unchecked")
+    public OpenHashMapSet<K, V> shallowClone() {
+        OpenHashMapSet<K, V> copy = (OpenHashMapSet<K, V>) super.clone();
+        // Neither map owns any of the values at this point
+        shared = true;
+        owned = null;
+        copy.shared = true;
+        copy.owned = null;
+        return copy;
+    }
+
+    /**
+     * Get the value for the given key, which may be updated in place.
+     *
+     * @return the value or null if there is no value for the key
+     */
+    public CopyOnWriteArraySet<V> getForUpdate(K key) {
+        CopyOnWriteArraySet<V> value = get(key);
+        return value != null ? ensureOwned(key, value) : null;
+    }
+
+    @Override
+    public CopyOnWriteArraySet<V> getOrCompute(K key) {
+        return ensureOwned(key, super.getOrCompute(key));
+    }
+
+    @Override
+    public CopyOnWriteArraySet<V> put(K key, CopyOnWriteArraySet<V> value) {
+        // A map owns the values that are put into it
+        addOwned(value);
+        CopyOnWriteArraySet<V> previous = super.put(key, value);
+        removeOwned(previous);
+        return previous;
+    }
+
+    @Override
+    public CopyOnWriteArraySet<V> remove(Object key) {
+        CopyOnWriteArraySet<V> previous = super.remove(key);
+        removeOwned(previous);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        owned = null;
+    }
+
+    private CopyOnWriteArraySet<V> ensureOwned(K key, CopyOnWriteArraySet<V> value) {
+        if (!shared || (owned != null && owned.contains(value))) {
+            return value;
+        }
+        CopyOnWriteArraySet<V> copy = new CopyOnWriteArraySet<V>(value);
+        put(key, copy);
+        return copy;
+    }
+
+    private void addOwned(Object value) {
+        if (shared) {
+            if (owned == null) {
+                owned = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            }
+            owned.add(value);
+        }
+    }
+
+    private void removeOwned(Object value) {
+        if (owned != null && value != null) {
+            owned.remove(value);
+        }
+    }
+
     @Override
     protected CopyOnWriteArraySet<V> compute(K key) {
-        return new CopyOnWriteArraySet<V>();
+        CopyOnWriteArraySet<V> value = new CopyOnWriteArraySet<V>();
+        addOwned(value);
+        return value;
     }
 
 }
@@ -25,6 +25,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.felix.resolver.ExecutionMode;
 import org.apache.felix.resolver.ResolverImpl;
 import org.osgi.resource.Resource;
 import org.osgi.resource.Wire;
@@ -43,6 +44,21 @@ public final class LoggingResolver extends ResolverImpl {
         super(new LoggerDelegate());
     }
 
+    /**
+     * Create a resolver that calculates package spaces with the given number of shared threads.
+     * The threads are daemon threads, which are stopped by {@link #shutdown()}.
+     */
+    public LoggingResolver(int parallelism) {
+        super(new LoggerDelegate(), parallelism);
+    }
+
+    /**
+     * Create a resolver that calculates package spaces with the given execution mode.
+     */
+    public LoggingResolver(int parallelism, ExecutionMode mode) {
+        super(new LoggerDelegate(), parallelism, mode);
+    }
+
     @Override
     public Map<Resource, List<Wire>> resolve(ResolveContext context) throws ResolutionException {
         Collection<Resource> mandatory = context.getMandatoryResources();
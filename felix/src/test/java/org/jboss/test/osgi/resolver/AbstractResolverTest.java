@@ -19,13 +19,16 @@
  */
 package org.jboss.test.osgi.resolver;
 
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
+import org.jboss.osgi.metadata.OSGiManifestBuilder;
 import org.jboss.osgi.metadata.OSGiMetaData;
 import org.jboss.osgi.metadata.OSGiMetaDataBuilder;
 import org.jboss.osgi.resolver.XBundleRevisionBuilderFactory;
@@ -40,7 +43,12 @@ import org.jboss.osgi.resolver.spi.AbstractResolver;
 import org.jboss.osgi.testing.OSGiTest;
 import org.jboss.shrinkwrap.api.Archive;
 import org.jboss.shrinkwrap.api.Node;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
 import org.osgi.framework.Constants;
 import org.osgi.framework.namespace.IdentityNamespace;
 import org.osgi.resource.Resource;
@@ -48,25 +56,46 @@ import org.osgi.resource.Wire;
 import org.osgi.resource.Wiring;
 
 /**
- * The abstract resolver test.
+ * The abstract resolver test, which runs with every resolver engine.
  *
  * @author thomas.diesler@jboss.com
  * @since 31-May-2010
  */
+@RunWith(Parameterized.class)
 public abstract class AbstractResolverTest extends OSGiTest {
 
+    static final String FELIX_ENGINE = "LoggingResolver";
+    static final String SAT_ENGINE = "SatResolver";
+
+    @Parameter
+    public String engine;
+
     XResolver resolver;
     XEnvironment environment;
 
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> engines() {
+        return Arrays.asList(new Object[][] { { FELIX_ENGINE }, { SAT_ENGINE } });
+    }
+
     @Before
     public void setUp() throws Exception {
         super.setUp();
-        resolver = new AbstractResolver();
+        resolver = new AbstractResolver(engine);
         environment = new AbstractEnvironment();
         XResource sysres = createSystemResource();
         environment.installResources(sysres);
     }
 
+    @After
+    public void tearDown() throws Exception {
+        // Release the threads that the resolver engine shares between resolves
+        if (resolver instanceof Closeable) {
+            ((Closeable) resolver).close();
+        }
+        super.tearDown();
+    }
+
     protected XResource createSystemResource() {
         XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
         builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, Constants.SYSTEM_BUNDLE_SYMBOLICNAME);
@@ -80,6 +109,11 @@ public abstract class AbstractResolverTest extends OSGiTest {
         return XBundleRevisionBuilderFactory.create().loadFrom(metadata).getResource();
     }
 
+    XResource createResource(OSGiManifestBuilder builder) throws Exception {
+        OSGiMetaData metadata = OSGiMetaDataBuilder.load(builder.getManifest());
+        return XBundleRevisionBuilderFactory.create().loadFrom(metadata).getResource();
+    }
+
     XEnvironment installResources(XResource... resources) {
         environment.installResources(resources);
         return environment;
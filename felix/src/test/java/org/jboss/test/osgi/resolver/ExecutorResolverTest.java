@@ -0,0 +1,260 @@
+/*
+ * #%L
+ * JBossOSGi Resolver Felix
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.test.osgi.resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.resolver.ExecutionMode;
+import org.apache.felix.resolver.Logger;
+import org.apache.felix.resolver.ResolverImpl;
+import org.jboss.osgi.resolver.XCapability;
+import org.jboss.osgi.resolver.XRequirement;
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.jboss.osgi.resolver.felix.LoggingResolver;
+import org.jboss.osgi.resolver.spi.AbstractResolver;
+import org.junit.Test;
+import org.junit.runners.Parameterized.Parameters;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.HostNamespace;
+import org.osgi.framework.namespace.IdentityNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.resource.Wiring;
+import org.osgi.service.resolver.HostedCapability;
+import org.osgi.service.resolver.ResolveContext;
+
+/**
+ * Test the executors that calculate the package spaces.
+ */
+public class ExecutorResolverTest extends AbstractResolverTest {
+
+    private static final String THREAD_PREFIX = "felix-resolver-";
+
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> engines() {
+        // The executors belong to the Felix resolver
+        return Collections.singletonList(new Object[] { FELIX_ENGINE });
+    }
+
+    @Test
+    public void testCallerExecutor() throws Exception {
+        // A small graph still runs on the given executor
+        List<XResource> resources = installChain(4);
+        final AtomicInteger tasks = new AtomicInteger();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.incrementAndGet();
+                command.run();
+            }
+        };
+        ResolverImpl engine = new ResolverImpl(new Logger(Logger.LOG_ERROR), executor);
+        Map<Resource, List<Wire>> map = engine.resolve(getResolveContext(resources, null));
+        assertChainWired(resources, map);
+        assertTrue("Tasks executed: " + tasks, tasks.get() > 0);
+    }
+
+    @Test
+    public void testSharedExecutorShutdown() throws Exception {
+        List<XResource> resources = installChain(32);
+        Set<Thread> before = getResolverThreads();
+        LoggingResolver engine = new LoggingResolver(4);
+        try {
+            assertChainWired(resources, engine.resolve(getResolveContext(resources, null)));
+            Set<Thread> threads = getResolverThreads();
+            threads.removeAll(before);
+            assertFalse("Shared threads started", threads.isEmpty());
+
+            engine.shutdown();
+            assertTerminated(threads);
+
+            // A resolver that is used after shutdown starts new threads
+            assertChainWired(resources, engine.resolve(getResolveContext(resources, null)));
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdownDuringResolve() throws Exception {
+        List<XResource> resources = installChain(32);
+        final LoggingResolver engine = new LoggingResolver(4);
+        final AtomicBoolean shutdown = new AtomicBoolean();
+        final ResolveContext context = getResolveContext(resources, null);
+
+        // Shut the resolver down from the first package space task, while the other tasks are still queued
+        final ResolveContext shutdownContext = new ResolveContext() {
+            @Override
+            public Collection<Resource> getMandatoryResources() {
+                return context.getMandatoryResources();
+            }
+
+            @Override
+            public Collection<Resource> getOptionalResources() {
+                return context.getOptionalResources();
+            }
+
+            @Override
+            public List<Capability> findProviders(Requirement req) {
+                return context.findProviders(req);
+            }
+
+            @Override
+            public int insertHostedCapability(List<Capability> caps, HostedCapability hostedCapability) {
+                return context.insertHostedCapability(caps, hostedCapability);
+            }
+
+            @Override
+            public boolean isEffective(Requirement req) {
+                return context.isEffective(req);
+            }
+
+            @Override
+            public Map<Resource, Wiring> getWirings() {
+                if (Thread.currentThread().getName().startsWith(THREAD_PREFIX) && shutdown.compareAndSet(false, true)) {
+                    engine.shutdown();
+                }
+                return context.getWirings();
+            }
+        };
+
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            Future<Map<Resource, List<Wire>>> future = caller.submit(new Callable<Map<Resource, List<Wire>>>() {
+                @Override
+                public Map<Resource, List<Wire>> call() throws Exception {
+                    return engine.resolve(shutdownContext);
+                }
+            });
+            assertChainWired(resources, future.get(30, TimeUnit.SECONDS));
+            assertTrue("Shutdown during resolve", shutdown.get());
+        } finally {
+            caller.shutdownNow();
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testExecutionModes() throws Exception {
+        List<XResource> resources = installChain(32);
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            LoggingResolver engine = new LoggingResolver(4, mode);
+            try {
+                assertChainWired(resources, engine.resolve(getResolveContext(resources, null)));
+            } finally {
+                engine.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testVirtualThreadsWithoutParallelism() throws Exception {
+        // Before Java 21 the virtual threads fall back to a pool with at least one thread
+        List<XResource> resources = installChain(32);
+        LoggingResolver engine = new LoggingResolver(0, ExecutionMode.VIRTUAL_THREAD);
+        try {
+            assertChainWired(resources, engine.resolve(getResolveContext(resources, null)));
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testAbstractResolverClose() throws Exception {
+        List<XResource> resources = installChain(32);
+        Set<Thread> before = getResolverThreads();
+        AbstractResolver engine = new AbstractResolver(LoggingResolver.class.getSimpleName());
+        assertChainWired(resources, engine.resolve(getResolveContext(resources, null)));
+        Set<Thread> threads = getResolverThreads();
+        threads.removeAll(before);
+        engine.close();
+        assertTerminated(threads);
+    }
+
+    /**
+     * Install resources where each one imports the package that is exported by its predecessor.
+     */
+    List<XResource> installChain(int size) {
+        List<XResource> resources = new ArrayList<XResource>();
+        for (int i = 0; i < size; i++) {
+            XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+            XCapability icap = builder.addIdentityCapability("chain" + i, Version.emptyVersion);
+            icap.getAttributes().put(IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE, IdentityNamespace.TYPE_BUNDLE);
+            builder.addCapability(HostNamespace.HOST_NAMESPACE, "chain" + i);
+            builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.chain" + i);
+            if (i > 0) {
+                XRequirement req = builder.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.chain" + (i - 1));
+                req.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, "0.0.0");
+            }
+            resources.add(builder.getResource());
+        }
+        installResources(resources.toArray(new XResource[resources.size()]));
+        return resources;
+    }
+
+    void assertChainWired(List<XResource> resources, Map<Resource, List<Wire>> map) {
+        assertEquals(resources.size(), map.size());
+        for (int i = 1; i < resources.size(); i++) {
+            List<Wire> wires = map.get(resources.get(i));
+            assertEquals(1, wires.size());
+            assertEquals(resources.get(i - 1), wires.get(0).getProvider());
+        }
+    }
+
+    private Set<Thread> getResolverThreads() {
+        Set<Thread> result = new HashSet<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(THREAD_PREFIX)) {
+                result.add(thread);
+            }
+        }
+        return result;
+    }
+
+    private void assertTerminated(Set<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join(5000);
+            assertFalse("Thread terminated: " + thread, thread.isAlive());
+        }
+    }
+}
@@ -25,11 +25,13 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+import org.jboss.osgi.metadata.OSGiManifestBuilder;
 import org.jboss.osgi.resolver.XPackageCapability;
 import org.jboss.osgi.resolver.XResolveContext;
 import org.jboss.osgi.resolver.XResource;
@@ -302,4 +304,124 @@ public class FragmentResolverTest extends AbstractResolverTest {
         assertSame(resourceA, hwireB.getProvider());
     }
 
+    @Test
+    public void testFragmentSubstitutableExport() throws Exception {
+        // Substitution of the wrapped host is specific to the Felix resolver
+        assumeTrue(FELIX_ENGINE.equals(engine));
+
+        // Bundle-SymbolicName: host
+        OSGiManifestBuilder builderA = OSGiManifestBuilder.newInstance();
+        builderA.addBundleManifestVersion(2);
+        builderA.addBundleSymbolicName("host");
+        XResource resourceA = createResource(builderA);
+
+        // Bundle-SymbolicName: fragment
+        // Fragment-Host: host
+        // Export-Package: org.acme.foo;version=2.0
+        // Import-Package: org.acme.foo;version="[1.0,2.0)"
+        OSGiManifestBuilder builderB = OSGiManifestBuilder.newInstance();
+        builderB.addBundleManifestVersion(2);
+        builderB.addBundleSymbolicName("fragment");
+        builderB.addFragmentHost("host");
+        builderB.addExportPackages("org.acme.foo;version=2.0");
+        builderB.addImportPackages("org.acme.foo;version=\"[1.0,2.0)\"");
+        XResource resourceB = createResource(builderB);
+
+        // Bundle-SymbolicName: exporter
+        // Export-Package: org.acme.foo;version=1.0
+        OSGiManifestBuilder builderC = OSGiManifestBuilder.newInstance();
+        builderC.addBundleManifestVersion(2);
+        builderC.addBundleSymbolicName("exporter");
+        builderC.addExportPackages("org.acme.foo;version=1.0");
+        XResource resourceC = createResource(builderC);
+
+        // Bundle-SymbolicName: importer
+        // Import-Package: org.acme.foo
+        OSGiManifestBuilder builderD = OSGiManifestBuilder.newInstance();
+        builderD.addBundleManifestVersion(2);
+        builderD.addBundleSymbolicName("importer");
+        builderD.addImportPackages("org.acme.foo");
+        XResource resourceD = createResource(builderD);
+
+        // The host imports the package that the fragment exports, so the export is substituted
+        installResources(resourceA, resourceB, resourceC, resourceD);
+        List<XResource> mandatory = Arrays.asList(resourceA, resourceB, resourceC, resourceD);
+        Map<Resource, List<Wire>> map = resolver.resolve(getResolveContext(mandatory, null));
+        applyResolverResults(map);
+
+        Wiring wiringA = getWiring(resourceA);
+        assertEquals(1, wiringA.getRequiredResourceWires(PackageNamespace.PACKAGE_NAMESPACE).size());
+        assertSame(resourceC, wiringA.getRequiredResourceWires(PackageNamespace.PACKAGE_NAMESPACE).get(0).getProvider());
+
+        Wiring wiringD = getWiring(resourceD);
+        assertEquals(1, wiringD.getRequiredResourceWires(null).size());
+        assertSame(resourceC, wiringD.getRequiredResourceWires(null).get(0).getProvider());
+    }
+
+    @Test
+    public void testFragmentExportsToFragmentImport() throws Exception {
+        // The Felix resolver wraps the hosts of the hosted capabilities
+        assumeTrue(FELIX_ENGINE.equals(engine));
+
+        // Bundle-SymbolicName: hostA
+        OSGiManifestBuilder builderA = OSGiManifestBuilder.newInstance();
+        builderA.addBundleManifestVersion(2);
+        builderA.addBundleSymbolicName("hostA");
+        XResource resourceA = createResource(builderA);
+
+        // Bundle-SymbolicName: exporterA
+        // Fragment-Host: hostA
+        // Export-Package: org.acme.foo
+        OSGiManifestBuilder builderB = OSGiManifestBuilder.newInstance();
+        builderB.addBundleManifestVersion(2);
+        builderB.addBundleSymbolicName("exporterA");
+        builderB.addFragmentHost("hostA");
+        builderB.addExportPackages("org.acme.foo");
+        XResource resourceB = createResource(builderB);
+
+        // Bundle-SymbolicName: hostB
+        OSGiManifestBuilder builderC = OSGiManifestBuilder.newInstance();
+        builderC.addBundleManifestVersion(2);
+        builderC.addBundleSymbolicName("hostB");
+        XResource resourceC = createResource(builderC);
+
+        // Bundle-SymbolicName: importer
+        // Fragment-Host: hostB
+        // Import-Package: org.acme.foo
+        OSGiManifestBuilder builderD = OSGiManifestBuilder.newInstance();
+        builderD.addBundleManifestVersion(2);
+        builderD.addBundleSymbolicName("importer");
+        builderD.addFragmentHost("hostB");
+        builderD.addImportPackages("org.acme.foo");
+        XResource resourceD = createResource(builderD);
+
+        // Bundle-SymbolicName: hostC
+        OSGiManifestBuilder builderE = OSGiManifestBuilder.newInstance();
+        builderE.addBundleManifestVersion(2);
+        builderE.addBundleSymbolicName("hostC");
+        XResource resourceE = createResource(builderE);
+
+        // Bundle-SymbolicName: exporterC
+        // Fragment-Host: hostC
+        // Export-Package: org.acme.foo
+        OSGiManifestBuilder builderF = OSGiManifestBuilder.newInstance();
+        builderF.addBundleManifestVersion(2);
+        builderF.addBundleSymbolicName("exporterC");
+        builderF.addFragmentHost("hostC");
+        builderF.addExportPackages("org.acme.foo");
+        XResource resourceF = createResource(builderF);
+
+        // The candidates of the imported package already contain the capabilities of a host,
+        // when the hosted capabilities of another host are inserted
+        installResources(resourceA, resourceB, resourceC, resourceD, resourceE, resourceF);
+        List<XResource> mandatory = Arrays.asList(resourceA, resourceB, resourceC, resourceD, resourceE, resourceF);
+        Map<Resource, List<Wire>> map = resolver.resolve(getResolveContext(mandatory, null));
+        applyResolverResults(map);
+
+        Wiring wiringC = getWiring(resourceC);
+        assertEquals(1, wiringC.getRequiredResourceWires(PackageNamespace.PACKAGE_NAMESPACE).size());
+        Wire wireC = wiringC.getRequiredResourceWires(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        assertSame(resourceA, wireC.getProvider());
+        assertSame(resourceB, wireC.getCapability().getResource());
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * JBossOSGi Resolver Felix
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.test.osgi.resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.apache.felix.resolver.util.OpenHashMapList;
+import org.apache.felix.resolver.util.OpenHashMapSet;
+import org.junit.Test;
+
+/**
+ * Test that the maps behind the resolver candidates copy shared values on update.
+ */
+public class OpenHashMapCloneTest {
+
+    @Test
+    public void testListShallowClone() throws Exception {
+        OpenHashMapList<String, String> original = new OpenHashMapList<String, String>();
+        original.getOrCompute("a").addAll(Arrays.asList("a1", "a2"));
+        original.getOrCompute("b").add("b1");
+        original.getOrCompute("c").add("c1");
+
+        OpenHashMapList<String, String> clone = original.shallowClone();
+        assertSame(original.get("a"), clone.get("a"));
+
+        clone.getForUpdate("a").remove("a1");
+        clone.getOrCompute("b").add("b2");
+        clone.put("c", new CopyOnWriteArrayList<String>(Arrays.asList("c2")));
+        clone.getOrCompute("d").add("d1");
+        clone.remove("c");
+
+        assertEquals(Arrays.asList("a1", "a2"), original.get("a"));
+        assertEquals(Arrays.asList("b1"), original.get("b"));
+        assertEquals(Arrays.asList("c1"), original.get("c"));
+        assertEquals(null, original.get("d"));
+        assertEquals(Arrays.asList("a2"), clone.get("a"));
+        assertEquals(Arrays.asList("b1", "b2"), clone.get("b"));
+        assertEquals(null, clone.get("c"));
+
+        // An owned value is updated in place
+        CopyOnWriteArrayList<String> value = clone.getForUpdate("a");
+        assertSame(value, clone.getForUpdate("a"));
+
+        // A value owned before the clone is shared again afterwards
+        OpenHashMapList<String, String> other = clone.shallowClone();
+        other.getForUpdate("a").add("a3");
+        other.getForUpdate("d").clear();
+        assertEquals(Arrays.asList("a2"), clone.get("a"));
+        assertEquals(Arrays.asList("d1"), clone.get("d"));
+
+        // Updating the original does not change the clones
+        original.getForUpdate("b").clear();
+        assertEquals(Arrays.asList("b1", "b2"), clone.get("b"));
+        assertEquals(Arrays.asList("b1", "b2"), other.get("b"));
+        assertNotSame(original.get("a"), clone.get("a"));
+    }
+
+    @Test
+    public void testSetShallowClone() throws Exception {
+        OpenHashMapSet<String, String> original = new OpenHashMapSet<String, String>();
+        original.getOrCompute("a").addAll(Arrays.asList("a1", "a2"));
+        original.getOrCompute("b").add("b1");
+
+        OpenHashMapSet<String, String> clone = original.shallowClone();
+        assertSame(original.get("a"), clone.get("a"));
+
+        clone.getForUpdate("a").remove("a1");
+        clone.getOrCompute("b").add("b2");
+        clone.put("c", new CopyOnWriteArraySet<String>(Arrays.asList("c1")));
+        clone.getForUpdate("c").add("c2");
+
+        assertEquals(2, original.get("a").size());
+        assertEquals(1, original.get("b").size());
+        assertEquals(null, original.get("c"));
+        assertEquals(1, clone.get("a").size());
+        assertEquals(2, clone.get("b").size());
+        assertEquals(2, clone.get("c").size());
+
+        // A value owned before the clone is shared again afterwards
+        OpenHashMapSet<String, String> other = clone.shallowClone();
+        other.getForUpdate("c").clear();
+        assertEquals(2, clone.get("c").size());
+
+        // The deep clone owns all of its values
+        OpenHashMapSet<String, String> copy = original.deepClone();
+        CopyOnWriteArraySet<String> value = copy.getForUpdate("a");
+        assertSame(value, copy.get("a"));
+        value.clear();
+        assertEquals(2, original.get("a").size());
+    }
+}
@@ -24,12 +24,14 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+import org.jboss.osgi.metadata.OSGiManifestBuilder;
 import org.jboss.osgi.resolver.XPackageRequirement;
 import org.jboss.osgi.resolver.XResource;
 import org.jboss.shrinkwrap.api.Archive;
@@ -592,4 +594,50 @@ public class PackageImportResolverTest extends AbstractResolverTest {
             // expected;
         }
     }
+
+    @Test
+    public void testSubstitutedExportBeforeExportedCandidate() throws Exception {
+        // The candidate lists of the Felix resolver are shared copy-on-write lists
+        assumeTrue(FELIX_ENGINE.equals(engine));
+
+        // Bundle-SymbolicName: resourceA
+        // Export-Package: org.acme.foo;version=2.0
+        // Import-Package: org.acme.foo;version="[1.0,2.0)"
+        OSGiManifestBuilder builderA = OSGiManifestBuilder.newInstance();
+        builderA.addBundleManifestVersion(2);
+        builderA.addBundleSymbolicName("resourceA");
+        builderA.addExportPackages("org.acme.foo;version=2.0");
+        builderA.addImportPackages("org.acme.foo;version=\"[1.0,2.0)\"");
+        XResource resourceA = createResource(builderA);
+
+        // Bundle-SymbolicName: resourceB
+        // Export-Package: org.acme.foo;version=1.0
+        OSGiManifestBuilder builderB = OSGiManifestBuilder.newInstance();
+        builderB.addBundleManifestVersion(2);
+        builderB.addBundleSymbolicName("resourceB");
+        builderB.addExportPackages("org.acme.foo;version=1.0");
+        XResource resourceB = createResource(builderB);
+
+        // Bundle-SymbolicName: resourceC
+        // Import-Package: org.acme.foo
+        OSGiManifestBuilder builderC = OSGiManifestBuilder.newInstance();
+        builderC.addBundleManifestVersion(2);
+        builderC.addBundleSymbolicName("resourceC");
+        builderC.addImportPackages("org.acme.foo");
+        XResource resourceC = createResource(builderC);
+
+        // The substituted export of A is the first candidate of C and is removed
+        installResources(resourceA, resourceB, resourceC);
+        List<XResource> mandatory = Arrays.asList(resourceA, resourceB, resourceC);
+        Map<Resource, List<Wire>> map = resolver.resolve(getResolveContext(mandatory, null));
+        applyResolverResults(map);
+
+        Wiring wiringA = getWiring(resourceA);
+        assertEquals(1, wiringA.getRequiredResourceWires(null).size());
+        assertSame(resourceB, wiringA.getRequiredResourceWires(null).get(0).getProvider());
+
+        Wiring wiringC = getWiring(resourceC);
+        assertEquals(1, wiringC.getRequiredResourceWires(null).size());
+        assertSame(resourceB, wiringC.getRequiredResourceWires(null).get(0).getProvider());
+    }
 }
@@ -0,0 +1,310 @@
+/*
+ * #%L
+ * JBossOSGi Resolver Felix
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.test.osgi.resolver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.felix.resolver.Logger;
+import org.apache.felix.resolver.ResolverImpl;
+import org.jboss.osgi.resolver.XCapability;
+import org.jboss.osgi.resolver.XEnvironment;
+import org.jboss.osgi.resolver.XRequirement;
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.jboss.osgi.resolver.sat.SatResolver;
+import org.jboss.osgi.resolver.spi.AbstractEnvironment;
+import org.jboss.osgi.resolver.spi.AbstractResolveContext;
+import org.junit.Test;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.framework.namespace.HostNamespace;
+import org.osgi.framework.namespace.IdentityNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.resource.Wiring;
+import org.osgi.service.resolver.HostedCapability;
+import org.osgi.service.resolver.ResolutionException;
+import org.osgi.service.resolver.ResolveContext;
+
+/**
+ * Compare the wirings of the resolver engines for random resource graphs.
+ *
+ * The graphs use package exports with uses constraints, version ranges, optional and dynamic imports,
+ * substitutable exports, require-bundle and multiple fragments per host. All resources are optional.
+ * Singletons are not generated, because Felix leaves the singleton selection to the framework.
+ *
+ * Felix picks the first consistent candidate permutation. When it finds that permutation without
+ * backtracking both engines must produce the same wiring. In every case each engine must accept the
+ * wiring of the other engine when the candidates are pinned to it.
+ *
+ * Felix may give up on a graph, because the number of permutations grows exponentially with the
+ * conflicts or because it blames a conflict on a resource that is not optional. Then only the wiring
+ * of the SAT resolver is checked.
+ */
+public class ResolverEngineFuzzTest {
+
+    private static final int SEEDS = 300;
+    private static final int MAX_FAILED_PERMUTATIONS = 1000;
+
+    @Test
+    public void testRandomGraphs() throws Exception {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            Random random = new Random(seed);
+            List<XResource> resources = createResources(random);
+            XEnvironment environment = new AbstractEnvironment();
+            environment.installResources(resources.toArray(new XResource[resources.size()]));
+            ResolveContext context = getResolveContext(environment, resources);
+
+            Map<Resource, List<Wire>> satWires = new SatResolver().resolve(context);
+            Map<Resource, List<Wire>> pinned = new ResolverImpl(new PermutationLogger(), 1).resolve(getPinnedContext(context, satWires));
+            assertEquals("Seed " + seed, getWires(satWires), getWires(pinned));
+
+            PermutationLogger logger = new PermutationLogger();
+            Map<Resource, List<Wire>> felixWires;
+            try {
+                felixWires = new ResolverImpl(logger, 1).resolve(context);
+            } catch (ResolutionException ex) {
+                continue;
+            } catch (IllegalStateException ex) {
+                continue;
+            }
+            if (logger.failed == 0) {
+                assertEquals("Seed " + seed, getWires(felixWires), getWires(satWires));
+            }
+            pinned = new SatResolver().resolve(getPinnedContext(context, felixWires));
+            assertEquals("Seed " + seed, getWires(felixWires), getWires(pinned));
+        }
+    }
+
+    private List<XResource> createResources(Random random) {
+        List<XResource> resources = new ArrayList<XResource>();
+        List<String> symbolicNames = new ArrayList<String>();
+        int packages = 3 + random.nextInt(6);
+        int bundles = 5 + random.nextInt(15);
+        for (int i = 0; i < bundles; i++) {
+            String symbolicName = "b" + random.nextInt(bundles);
+            symbolicNames.add(symbolicName);
+            XResourceBuilder<XResource> builder = createBuilder(symbolicName, "1." + i, IdentityNamespace.TYPE_BUNDLE);
+            XCapability bcap = builder.addCapability(BundleNamespace.BUNDLE_NAMESPACE, symbolicName);
+            bcap.getAttributes().put(BundleNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE, Version.parseVersion("1." + i));
+            XCapability hcap = builder.addCapability(HostNamespace.HOST_NAMESPACE, symbolicName);
+            hcap.getAttributes().put(HostNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE, Version.parseVersion("1." + i));
+            Set<String> exported = addPackageCapabilities(builder, random, packages, 3);
+            Set<String> imported = new HashSet<String>();
+            for (String packageName : exported) {
+                // A substitutable export
+                if (random.nextInt(4) == 0 && imported.add(packageName)) {
+                    addPackageRequirement(builder, packageName, null, null);
+                }
+            }
+            for (int k = random.nextInt(4); k > 0; k--) {
+                String packageName = "p" + random.nextInt(packages);
+                if (imported.add(packageName)) {
+                    String range = random.nextBoolean() ? "[1." + random.nextInt(3) + ",2.0)" : null;
+                    int resolution = random.nextInt(8);
+                    if (resolution == 0) {
+                        addPackageRequirement(builder, packageName, range, Namespace.RESOLUTION_OPTIONAL);
+                    } else if (resolution == 1) {
+                        addPackageRequirement(builder, packageName, range, PackageNamespace.RESOLUTION_DYNAMIC);
+                    } else {
+                        addPackageRequirement(builder, packageName, range, null);
+                    }
+                }
+            }
+            if (random.nextInt(6) == 0) {
+                XRequirement req = builder.addRequirement(BundleNamespace.BUNDLE_NAMESPACE, "b" + random.nextInt(bundles));
+                if (random.nextBoolean()) {
+                    req.getAttributes().put(BundleNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE, "[1." + random.nextInt(bundles) + ",2.0)");
+                }
+            }
+            resources.add(builder.getResource());
+        }
+        for (int i = random.nextInt(5); i > 0; i--) {
+            // Fragments prefer the first few hosts, so that some hosts get more than one.
+            // Each fragment attaches to a single host, which makes the order of the hosted capabilities well defined.
+            int host = random.nextInt(random.nextBoolean() ? 3 : bundles);
+            XResourceBuilder<XResource> builder = createBuilder("f" + i, "1.0", IdentityNamespace.TYPE_FRAGMENT);
+            XRequirement req = builder.addRequirement(HostNamespace.HOST_NAMESPACE, symbolicNames.get(host));
+            req.getAttributes().put(HostNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE, "[1." + host + ",1." + host + "]");
+            addPackageCapabilities(builder, random, packages, 2);
+            if (random.nextBoolean()) {
+                addPackageRequirement(builder, "p" + random.nextInt(packages), null, null);
+            }
+            resources.add(builder.getResource());
+        }
+        return resources;
+    }
+
+    private XResourceBuilder<XResource> createBuilder(String symbolicName, String version, String type) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        XCapability icap = builder.addIdentityCapability(symbolicName, Version.parseVersion(version));
+        icap.getAttributes().put(IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE, type);
+        return builder;
+    }
+
+    private Set<String> addPackageCapabilities(XResourceBuilder<XResource> builder, Random random, int packages, int max) {
+        Set<String> result = new HashSet<String>();
+        for (int k = random.nextInt(max); k > 0; k--) {
+            String packageName = "p" + random.nextInt(packages);
+            if (result.add(packageName)) {
+                XCapability cap = builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, packageName);
+                cap.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, Version.parseVersion("1." + random.nextInt(4)));
+                if (random.nextBoolean()) {
+                    cap.getDirectives().put(Namespace.CAPABILITY_USES_DIRECTIVE, "p" + random.nextInt(packages));
+                }
+            }
+        }
+        return result;
+    }
+
+    private void addPackageRequirement(XResourceBuilder<XResource> builder, String packageName, String range, String resolution) {
+        Map<String, Object> atts = new HashMap<String, Object>();
+        atts.put(PackageNamespace.PACKAGE_NAMESPACE, packageName);
+        if (range != null) {
+            atts.put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, range);
+        }
+        Map<String, String> dirs = new HashMap<String, String>();
+        if (resolution != null) {
+            dirs.put(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE, resolution);
+        }
+        builder.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, atts, dirs);
+    }
+
+    private ResolveContext getResolveContext(XEnvironment environment, final List<XResource> resources) {
+        return new AbstractResolveContext(environment) {
+            @Override
+            public Collection<Resource> getOptionalResources() {
+                return new ArrayList<Resource>(resources);
+            }
+        };
+    }
+
+    /**
+     * Get a context that makes the resolved resources mandatory and only provides their wired capabilities.
+     */
+    private ResolveContext getPinnedContext(final ResolveContext context, final Map<Resource, List<Wire>> wiremap) {
+        final Map<Requirement, List<Capability>> providers = new HashMap<Requirement, List<Capability>>();
+        final Map<Resource, Resource> hosts = new HashMap<Resource, Resource>();
+        for (List<Wire> wires : wiremap.values()) {
+            for (Wire wire : wires) {
+                if (HostNamespace.HOST_NAMESPACE.equals(wire.getRequirement().getNamespace())) {
+                    hosts.put(wire.getRequirer(), wire.getProvider());
+                }
+                List<Capability> caps = providers.get(wire.getRequirement());
+                if (caps == null) {
+                    caps = new ArrayList<Capability>();
+                    providers.put(wire.getRequirement(), caps);
+                }
+                if (!caps.contains(wire.getCapability())) {
+                    caps.add(wire.getCapability());
+                }
+            }
+        }
+        return new ResolveContext() {
+            @Override
+            public Collection<Resource> getMandatoryResources() {
+                return new ArrayList<Resource>(wiremap.keySet());
+            }
+
+            @Override
+            public List<Capability> findProviders(Requirement req) {
+                List<Capability> caps = providers.get(req);
+                if (caps != null) {
+                    return new ArrayList<Capability>(caps);
+                }
+                if (!wiremap.containsKey(req.getResource())) {
+                    return context.findProviders(req);
+                }
+                // An unwired requirement can only be satisfied by its own host or the fragments attached to it
+                List<Capability> result = new ArrayList<Capability>();
+                for (Capability cap : context.findProviders(req)) {
+                    if (getHost(hosts, cap.getResource()) == getHost(hosts, req.getResource())) {
+                        result.add(cap);
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            public int insertHostedCapability(List<Capability> caps, HostedCapability hostedCapability) {
+                return context.insertHostedCapability(caps, hostedCapability);
+            }
+
+            @Override
+            public boolean isEffective(Requirement req) {
+                return context.isEffective(req);
+            }
+
+            @Override
+            public Map<Resource, Wiring> getWirings() {
+                return context.getWirings();
+            }
+        };
+    }
+
+    private Resource getHost(Map<Resource, Resource> hosts, Resource resource) {
+        Resource host = hosts.get(resource);
+        return host != null ? host : resource;
+    }
+
+    // Counts the failed candidate permutations and stops Felix when there are too many
+    static class PermutationLogger extends Logger {
+
+        int failed;
+
+        PermutationLogger() {
+            super(Logger.LOG_DEBUG);
+        }
+
+        @Override
+        protected void doLog(int level, String msg, Throwable throwable) {
+            if (msg.startsWith("Candidate permutation failed") && ++failed > MAX_FAILED_PERMUTATIONS) {
+                throw new IllegalStateException("Too many failed candidate permutations");
+            }
+        }
+    }
+
+    private Map<Resource, Set<List<Object>>> getWires(Map<Resource, List<Wire>> wiremap) {
+        Map<Resource, Set<List<Object>>> result = new HashMap<Resource, Set<List<Object>>>();
+        for (Map.Entry<Resource, List<Wire>> entry : wiremap.entrySet()) {
+            Set<List<Object>> wires = new HashSet<List<Object>>();
+            for (Wire wire : entry.getValue()) {
+                wires.add(Arrays.<Object> asList(wire.getRequirer(), wire.getRequirement(), wire.getProvider(), wire.getCapability()));
+            }
+            result.put(entry.getKey(), wires);
+        }
+        return result;
+    }
+}
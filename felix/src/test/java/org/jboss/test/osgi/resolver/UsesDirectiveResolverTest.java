@@ -20,6 +20,10 @@
 package org.jboss.test.osgi.resolver;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 import static org.osgi.framework.namespace.PackageNamespace.PACKAGE_NAMESPACE;
 
 import java.io.InputStream;
@@ -30,19 +34,30 @@ import java.util.Map;
 
 import org.junit.Assert;
 
+import org.apache.felix.resolver.Logger;
+import org.apache.felix.resolver.ResolverImpl;
 import org.jboss.osgi.metadata.OSGiManifestBuilder;
+import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XPackageCapability;
 import org.jboss.osgi.resolver.XPackageRequirement;
+import org.jboss.osgi.resolver.XRequirement;
 import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.asset.Asset;
 import org.jboss.shrinkwrap.api.spec.JavaArchive;
 import org.junit.Test;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.IdentityNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
 import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
 import org.osgi.resource.Requirement;
 import org.osgi.resource.Resource;
 import org.osgi.resource.Wire;
 import org.osgi.resource.Wiring;
+import org.osgi.service.resolver.ResolutionException;
 
 /**
  * Test the default resolver integration.
@@ -220,6 +235,150 @@ public class UsesDirectiveResolverTest extends AbstractResolverTest {
         Assert.assertEquals(0, wiringD.getResourceCapabilities(PACKAGE_NAMESPACE).size());
     }
 
+    @Test
+    public void testUsesConflict() throws Exception {
+        // Every importer prefers org.jboss.x from X2, which conflicts with the uses of org.jboss.y
+        List<XResource> mandatory = installUsesConflict(8, false);
+
+        Map<Resource, List<Wire>> map = resolver.resolve(getResolveContext(mandatory, null));
+        assertUsesConflictResolved(mandatory, map);
+    }
+
+    @Test
+    public void testUnresolvableUsesConflict() throws Exception {
+        // The importers also import org.jboss.z that uses org.jboss.x from X2, so the conflict cannot be resolved
+        List<XResource> mandatory = installUsesConflict(4, true);
+
+        try {
+            resolver.resolve(getResolveContext(mandatory, null));
+            fail("ResolutionException expected");
+        } catch (ResolutionException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLearningPrunesPermutations() throws Exception {
+        // Learning belongs to the Felix resolver
+        assumeTrue(FELIX_ENGINE.equals(engine));
+
+        List<XResource> mandatory = installUsesConflict(8, false);
+
+        CountingLogger logger = new CountingLogger();
+        ResolverImpl felix = new ResolverImpl(logger, 1);
+        assertFalse(felix.isLearning());
+        assertUsesConflictResolved(mandatory, felix.resolve(getResolveContext(mandatory, null)));
+        assertEquals(0, logger.skipped);
+        int failed = logger.failed;
+
+        logger = new CountingLogger();
+        felix = new ResolverImpl(logger, 1);
+        felix.setLearning(true);
+        assertUsesConflictResolved(mandatory, felix.resolve(getResolveContext(mandatory, null)));
+        assertTrue("Permutations skipped: " + logger.skipped, logger.skipped > 0);
+        assertTrue("Conflicts found: " + logger.failed + " < " + failed, logger.failed < failed);
+    }
+
+    @Test
+    public void testLearningPrunesUnresolvableConflict() throws Exception {
+        // Learning belongs to the Felix resolver
+        assumeTrue(FELIX_ENGINE.equals(engine));
+
+        // Without learning every subset of importers wired to X1 is checked
+        List<XResource> mandatory = installUsesConflict(8, true);
+
+        CountingLogger logger = new CountingLogger();
+        try {
+            new ResolverImpl(logger, 1).resolve(getResolveContext(mandatory, null));
+            fail("ResolutionException expected");
+        } catch (ResolutionException ex) {
+            // expected
+        }
+        int failed = logger.failed;
+
+        logger = new CountingLogger();
+        ResolverImpl felix = new ResolverImpl(logger, 1);
+        felix.setLearning(true);
+        try {
+            felix.resolve(getResolveContext(mandatory, null));
+            fail("ResolutionException expected");
+        } catch (ResolutionException ex) {
+            // expected
+        }
+        assertTrue("Permutations skipped: " + logger.skipped, logger.skipped > 0);
+        // Each importer conflicts at most once with each of the two exporters of org.jboss.x
+        assertTrue("Conflicts found: " + logger.failed, logger.failed <= 16);
+        assertTrue("Conflicts found: " + logger.failed + " < " + failed, logger.failed < failed);
+    }
+
+    /**
+     * Install X1 and X2 that export org.jboss.x 1.0 and 2.0, Y that exports org.jboss.y with
+     * a uses on org.jboss.x 1.0 and the given number of importers of org.jboss.x and org.jboss.y.
+     * If unresolvable, also install Z that exports org.jboss.z with a uses on org.jboss.x 2.0,
+     * which the importers also import.
+     */
+    private List<XResource> installUsesConflict(int importers, boolean unresolvable) {
+        List<XResource> resources = new ArrayList<XResource>();
+        XResourceBuilder<XResource> builder = createBuilder("X1");
+        addPackageCapability(builder, "org.jboss.x", "1.0", null);
+        resources.add(builder.getResource());
+        builder = createBuilder("X2");
+        addPackageCapability(builder, "org.jboss.x", "2.0", null);
+        resources.add(builder.getResource());
+        builder = createBuilder("Y");
+        addPackageCapability(builder, "org.jboss.y", "1.0", "org.jboss.x");
+        addPackageRequirement(builder, "org.jboss.x", "[1.0,2.0)");
+        resources.add(builder.getResource());
+        if (unresolvable) {
+            builder = createBuilder("Z");
+            addPackageCapability(builder, "org.jboss.z", "1.0", "org.jboss.x");
+            addPackageRequirement(builder, "org.jboss.x", "[2.0,3.0)");
+            resources.add(builder.getResource());
+        }
+        for (int i = 0; i < importers; i++) {
+            builder = createBuilder("B" + i);
+            addPackageRequirement(builder, "org.jboss.x", null);
+            addPackageRequirement(builder, "org.jboss.y", null);
+            if (unresolvable) {
+                addPackageRequirement(builder, "org.jboss.z", null);
+            }
+            resources.add(builder.getResource());
+        }
+        installResources(resources.toArray(new XResource[resources.size()]));
+        return resources;
+    }
+
+    private void assertUsesConflictResolved(List<XResource> mandatory, Map<Resource, List<Wire>> map) {
+        for (XResource importer : mandatory.subList(3, mandatory.size())) {
+            List<Wire> wires = map.get(importer);
+            assertEquals(2, wires.size());
+            Assert.assertSame(mandatory.get(0), wires.get(0).getProvider());
+            Assert.assertSame(mandatory.get(2), wires.get(1).getProvider());
+        }
+    }
+
+    private XResourceBuilder<XResource> createBuilder(String symbolicName) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        XCapability icap = builder.addIdentityCapability(symbolicName, Version.emptyVersion);
+        icap.getAttributes().put(IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE, IdentityNamespace.TYPE_BUNDLE);
+        return builder;
+    }
+
+    private void addPackageCapability(XResourceBuilder<XResource> builder, String packageName, String version, String uses) {
+        XCapability cap = builder.addCapability(PACKAGE_NAMESPACE, packageName);
+        cap.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, Version.parseVersion(version));
+        if (uses != null) {
+            cap.getDirectives().put(Namespace.CAPABILITY_USES_DIRECTIVE, uses);
+        }
+    }
+
+    private void addPackageRequirement(XResourceBuilder<XResource> builder, String packageName, String range) {
+        XRequirement req = builder.addRequirement(PACKAGE_NAMESPACE, packageName);
+        if (range != null) {
+            req.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, range);
+        }
+    }
+
     private String getPackageName(Capability cap) {
         return ((XPackageCapability)cap).getPackageName();
     }
@@ -227,4 +386,23 @@ public class UsesDirectiveResolverTest extends AbstractResolverTest {
     private String getPackageName(XPackageRequirement req) {
         return req.getPackageName();
     }
+
+    static class CountingLogger extends Logger {
+
+        int failed;
+        int skipped;
+
+        CountingLogger() {
+            super(Logger.LOG_DEBUG);
+        }
+
+        @Override
+        protected void doLog(int level, String msg, Throwable throwable) {
+            if (msg.startsWith("Candidate permutation failed")) {
+                failed++;
+            } else if (msg.startsWith("Candidate permutation skipped")) {
+                skipped++;
+            }
+        }
+    }
 }
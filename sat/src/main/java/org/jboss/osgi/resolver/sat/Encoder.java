@@ -0,0 +1,1430 @@
+/*
+ * #%L
+ * JBossOSGi Resolver SAT
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.sat;
+
+import static org.jboss.osgi.resolver.ResolverMessages.MESSAGES;
+import static org.jboss.osgi.resolver.sat.Solver.literal;
+import static org.jboss.osgi.resolver.sat.Solver.negate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.osgi.resolver.sat.Solver.IntList;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.framework.namespace.ExecutionEnvironmentNamespace;
+import org.osgi.framework.namespace.HostNamespace;
+import org.osgi.framework.namespace.IdentityNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.resource.Wiring;
+import org.osgi.service.resolver.ResolutionException;
+import org.osgi.service.resolver.ResolveContext;
+
+/**
+ * Encodes a resolve operation as a boolean satisfiability problem.
+ *
+ * The candidates of a requirement are found and ordered like the Felix resolver does. A variable
+ * per unresolved resource tells whether it resolves, a variable per candidate whether it is
+ * selected and a variable per fragment and host whether the fragment attaches to the host. The
+ * clauses make every resolving resource select a candidate for each mandatory requirement, only
+ * select available capabilities, attach fragments to all resolving hosts (only the highest
+ * version of a fragment per host), drop substituted exports and allow at most one revision of a
+ * singleton. Uses constraints are encoded through the package sources that each resolving host
+ * can see and use, which must be the same capability for every package.
+ */
+final class Encoder {
+
+    private final ResolveContext context;
+    private final Solver solver;
+    private final Map<Resource, Wiring> wirings;
+    private final int trueLit;
+    private final Map<Resource, ResourceNode> nodes = new LinkedHashMap<Resource, ResourceNode>();
+    private final LinkedList<ResourceNode> toPopulate = new LinkedList<ResourceNode>();
+    private final List<ResourceNode> roots = new ArrayList<ResourceNode>();
+    private final List<ReqNode> reqNodes = new ArrayList<ReqNode>();
+    private final Map<DeclaredReq, List<CapNode>> candidates = new HashMap<DeclaredReq, List<CapNode>>();
+    private final Map<String, List<String>> usesCache = new HashMap<String, List<String>>();
+    private final LinkedList<Object[]> usesQueue = new LinkedList<Object[]>();
+    private final Map<Integer, IntList> supports = new LinkedHashMap<Integer, IntList>();
+    private final IntList clause = new IntList();
+
+    Encoder(ResolveContext context, Solver solver) {
+        this.context = context;
+        this.solver = solver;
+        this.wirings = context.getWirings();
+        this.trueLit = literal(solver.newVar(), true);
+        solver.addClause(trueLit);
+    }
+
+    /**
+     * Find the candidates of all resources that may take part in the resolve and add the clauses.
+     */
+    void encode() {
+        for (Resource resource : context.getMandatoryResources()) {
+            addRoot(resource, true);
+        }
+        for (Resource resource : context.getOptionalResources()) {
+            addRoot(resource, false);
+        }
+        while (!toPopulate.isEmpty()) {
+            populate(toPopulate.removeFirst());
+        }
+        List<ResourceNode> populated = new ArrayList<ResourceNode>();
+        for (ResourceNode node : nodes.values()) {
+            if (node.declared != null) {
+                populated.add(node);
+            }
+        }
+        for (ResourceNode node : populated) {
+            if (node.fragment) {
+                addAttachments(node);
+            }
+        }
+        for (ResourceNode node : populated) {
+            addRequirements(node);
+        }
+        for (ResourceNode node : populated) {
+            if (!node.fragment) {
+                addExports(node);
+            }
+        }
+        for (ResourceNode node : populated) {
+            if (!node.fragment) {
+                addSubstitutions(node);
+            }
+        }
+        for (ReqNode req : reqNodes) {
+            addRequirementClauses(req);
+        }
+        for (ResourceNode node : populated) {
+            if (node.fragment) {
+                addFragmentClauses(node);
+            } else {
+                addHostClauses(node);
+            }
+        }
+        addSingletonClauses(populated);
+        addUsesClauses(populated);
+    }
+
+    /**
+     * The literals of the mandatory resources, which must all resolve.
+     */
+    int[] getMandatoryLiterals() {
+        IntList result = new IntList();
+        for (ResourceNode root : roots) {
+            if (root.mandatory) {
+                result.add(root.res);
+            }
+        }
+        return result.toArray();
+    }
+
+    /**
+     * The preferences in the order in which they are optimised.
+     *
+     * Optional resources should resolve. Requirements should select their candidates in the order
+     * given by the resolve context, which is the wiring the Felix resolver settles on when there is
+     * no conflict. Fragments should attach to the hosts that resolve.
+     * This adds auxiliary variables, so it must be called before the first solve.
+     */
+    List<Preference> getPreferences() {
+        List<Preference> result = new ArrayList<Preference>();
+        for (ResourceNode root : roots) {
+            if (!root.mandatory) {
+                result.add(new Preference(trueLit, new int[] { root.res }, false));
+            }
+        }
+        for (ReqNode req : reqNodes) {
+            if (req.sels.length > 0) {
+                result.add(new Preference(req.active, req.sels, !req.multiple));
+            }
+        }
+        for (ResourceNode node : nodes.values()) {
+            if (node.fragment && !node.root && !node.resolved && node.declared != null && !node.attachments.isEmpty()) {
+                int hostResolves = literal(solver.newVar(), true);
+                for (Attachment attachment : node.attachments) {
+                    addClause(negate(attachment.host.res), hostResolves);
+                }
+                result.add(new Preference(hostResolves, new int[] { node.res }, false));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Create the exception for a resolve that cannot resolve all mandatory resources.
+     */
+    ResolutionException createResolutionException(int[] conflict) {
+        ResourceNode failed = null;
+        for (ResourceNode root : roots) {
+            if (root.mandatory && (failed == null || contains(conflict, root.res))) {
+                failed = root;
+                if (contains(conflict, root.res)) {
+                    break;
+                }
+            }
+        }
+        List<Requirement> unresolved = new ArrayList<Requirement>();
+        for (ReqNode req : failed.reqs) {
+            if (req.optional || req.declaring != failed) {
+                continue;
+            }
+            boolean available = false;
+            for (CapNode cap : req.cands) {
+                // A requirement is only reported as missing when the solver did not give up
+                if (solver.solve(cap.avail) || solver.isLimitReached()) {
+                    available = true;
+                    break;
+                }
+            }
+            if (!available) {
+                String message = MESSAGES.unableToResolveMissingRequirement(failed.resource, req.requirement);
+                return new ResolutionException(message, null, Collections.singleton(req.requirement));
+            }
+            unresolved.add(req.requirement);
+        }
+        String message = MESSAGES.unableToResolveNoConsistentWiring(failed.resource, unresolved);
+        return new ResolutionException(message, null, unresolved);
+    }
+
+    /**
+     * Create the wire map from the current model of the solver.
+     */
+    Map<Resource, List<Wire>> createWireMap() {
+        Map<Resource, List<Wire>> wireMap = new HashMap<Resource, List<Wire>>();
+        for (ResourceNode root : roots) {
+            ResourceNode target = root;
+            if (root.fragment) {
+                target = null;
+                for (ReqNode req : root.reqs) {
+                    if (HostNamespace.HOST_NAMESPACE.equals(req.requirement.getNamespace())) {
+                        for (int i = 0; i < req.sels.length; i++) {
+                            if (solver.modelValue(req.sels[i])) {
+                                target = req.cands.get(i).host;
+                            }
+                        }
+                    }
+                }
+            }
+            if (target != null && solver.modelValue(target.res)) {
+                populateWireMap(target, wireMap);
+            }
+        }
+        return wireMap;
+    }
+
+    private void populateWireMap(ResourceNode node, Map<Resource, List<Wire>> wireMap) {
+        if (node.resolved || node.fragment || wireMap.containsKey(node.resource)) {
+            return;
+        }
+        wireMap.put(node.resource, Collections.<Wire> emptyList());
+
+        List<Wire> packageWires = new ArrayList<Wire>();
+        List<Wire> bundleWires = new ArrayList<Wire>();
+        List<Wire> capabilityWires = new ArrayList<Wire>();
+        for (ReqNode req : node.reqs) {
+            for (int i = 0; i < req.sels.length; i++) {
+                if (!solver.modelValue(req.sels[i])) {
+                    continue;
+                }
+                CapNode cap = req.cands.get(i);
+                // Do not create wires for the osgi.wiring.* namespaces if the provider and requirer are the same resource
+                if (cap.capability.getNamespace().startsWith("osgi.wiring.") && cap.host == node) {
+                    continue;
+                }
+                populateWireMap(cap.host, wireMap);
+                String namespace = req.requirement.getNamespace();
+                Resource provider = IdentityNamespace.IDENTITY_NAMESPACE.equals(namespace) ? cap.capability.getResource() : cap.host.resource;
+                Wire wire = new WireImpl(node.resource, req.requirement, provider, cap.capability);
+                if (PackageNamespace.PACKAGE_NAMESPACE.equals(namespace)) {
+                    packageWires.add(wire);
+                } else if (BundleNamespace.BUNDLE_NAMESPACE.equals(namespace)) {
+                    bundleWires.add(wire);
+                } else {
+                    capabilityWires.add(wire);
+                }
+            }
+        }
+        packageWires.addAll(bundleWires);
+        packageWires.addAll(capabilityWires);
+        wireMap.put(node.resource, packageWires);
+
+        // Add the host wires and the non-payload wires of the attached fragments
+        for (Attachment attachment : node.fragments) {
+            if (!solver.modelValue(attachment.lit)) {
+                continue;
+            }
+            ResourceNode fragment = attachment.fragment;
+            List<Wire> fragmentWires = wireMap.get(fragment.resource);
+            boolean first = fragmentWires == null;
+            fragmentWires = first ? new ArrayList<Wire>() : fragmentWires;
+            for (Requirement req : fragment.resource.getRequirements(null)) {
+                if (HostNamespace.HOST_NAMESPACE.equals(req.getNamespace())) {
+                    Capability hostCap = node.resource.getCapabilities(HostNamespace.HOST_NAMESPACE).get(0);
+                    fragmentWires.add(new WireImpl(fragment.resource, req, node.resource, hostCap));
+                } else if (!isPayload(req) && first && !fragment.resolved) {
+                    for (ReqNode reqNode : fragment.reqs) {
+                        if (reqNode.requirement == req) {
+                            for (int i = 0; i < reqNode.sels.length; i++) {
+                                if (solver.modelValue(reqNode.sels[i])) {
+                                    CapNode cap = reqNode.cands.get(i);
+                                    fragmentWires.add(new WireImpl(fragment.resource, req, cap.host.resource, cap.capability));
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            wireMap.put(fragment.resource, fragmentWires);
+        }
+    }
+
+    private void addRoot(Resource resource, boolean mandatory) {
+        if (!isFragment(resource) && wirings.containsKey(resource)) {
+            return;
+        }
+        ResourceNode node = getNode(resource);
+        if (!node.root) {
+            node.root = true;
+            node.mandatory = mandatory;
+            roots.add(node);
+            solver.setPhase(node.res >> 1, true);
+            if (node.resolved) {
+                toPopulate.add(node);
+            }
+        }
+    }
+
+    private ResourceNode getNode(Resource resource) {
+        ResourceNode node = nodes.get(resource);
+        if (node == null) {
+            node = new ResourceNode(resource, isFragment(resource), wirings.get(resource));
+            node.res = node.resolved ? trueLit : literal(solver.newVar(), true);
+            nodes.put(resource, node);
+            if (!node.resolved) {
+                toPopulate.add(node);
+            }
+        }
+        return node;
+    }
+
+    private void populate(ResourceNode node) {
+        if (node.declared != null) {
+            return;
+        }
+        node.declared = new ArrayList<DeclaredReq>();
+        for (Requirement req : node.resource.getRequirements(null)) {
+            if (!isEffective(req)) {
+                continue;
+            }
+            boolean hostReq = HostNamespace.HOST_NAMESPACE.equals(req.getNamespace());
+            if (hostReq && !node.fragment) {
+                continue;
+            }
+            List<Capability> providers = new ArrayList<Capability>(context.findProviders(req));
+            List<Capability> matching = new ArrayList<Capability>(providers.size());
+            for (Capability cap : providers) {
+                Resource provider = cap.getResource();
+                if (hostReq && isFragment(provider)) {
+                    continue;
+                }
+                matching.add(cap);
+                if (!provider.equals(node.resource)) {
+                    getNode(provider);
+                }
+            }
+            node.declared.add(new DeclaredReq(node, req, matching));
+        }
+    }
+
+    private void addAttachments(ResourceNode fragment) {
+        for (DeclaredReq declared : fragment.declared) {
+            if (HostNamespace.HOST_NAMESPACE.equals(declared.requirement.getNamespace())) {
+                for (Capability cap : declared.providers) {
+                    ResourceNode host = nodes.get(cap.getResource());
+                    if (!host.resolved && fragment.getAttachment(host) == null) {
+                        Attachment attachment = new Attachment(fragment, host, literal(solver.newVar(), true));
+                        solver.setPhase(attachment.lit >> 1, true);
+                        fragment.attachments.add(attachment);
+                        host.fragments.add(attachment);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addRequirements(ResourceNode node) {
+        for (DeclaredReq declared : node.declared) {
+            String namespace = declared.requirement.getNamespace();
+            if (!node.fragment) {
+                addReqNode(node, declared, node.res, null);
+            } else if (HostNamespace.HOST_NAMESPACE.equals(namespace)) {
+                if (node.root) {
+                    addReqNode(node, declared, node.res, null);
+                }
+            } else if (!isPayload(declared.requirement)) {
+                addReqNode(node, declared, node.res, null);
+            }
+        }
+        if (!node.fragment) {
+            for (Attachment attachment : node.fragments) {
+                for (DeclaredReq declared : attachment.fragment.declared) {
+                    if (isPayload(declared.requirement)) {
+                        addReqNode(node, declared, attachment.lit, attachment);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addReqNode(ResourceNode owner, DeclaredReq declared, int active, Attachment attachment) {
+        Requirement requirement = declared.requirement;
+        ReqNode req = new ReqNode(owner, declared.owner, requirement, getCandidates(declared), active);
+        req.optional = isOptional(requirement) || (declared.owner.fragment && declared.owner.resolved);
+        req.multiple = Namespace.CARDINALITY_MULTIPLE.equals(requirement.getDirectives().get(Namespace.REQUIREMENT_CARDINALITY_DIRECTIVE));
+        req.sels = new int[req.cands.size()];
+        for (int i = 0; i < req.sels.length; i++) {
+            req.sels[i] = literal(solver.newVar(), true);
+            solver.setPhase(req.sels[i] >> 1, i == 0 || req.multiple);
+            CapNode cap = req.cands.get(i);
+            if (cap.host != owner) {
+                cap.host.support.add(req.sels[i]);
+            }
+        }
+        owner.reqs.add(req);
+        reqNodes.add(req);
+    }
+
+    // Get the candidates of a declared requirement, with the capabilities of fragments replaced
+    // by the capabilities hosted by each host the fragment may attach to
+    private List<CapNode> getCandidates(DeclaredReq declared) {
+        List<CapNode> result = candidates.get(declared);
+        if (result != null) {
+            return result;
+        }
+        boolean hostReq = HostNamespace.HOST_NAMESPACE.equals(declared.requirement.getNamespace());
+        List<Capability> original = new ArrayList<Capability>(declared.providers);
+        List<CapNode> shadow = new ArrayList<CapNode>();
+        List<Capability> fragmentCaps = new ArrayList<Capability>();
+        for (Capability cap : original) {
+            ResourceNode provider = nodes.get(cap.getResource());
+            if (provider.fragment && !hostReq && !IdentityNamespace.IDENTITY_NAMESPACE.equals(cap.getNamespace())) {
+                fragmentCaps.add(cap);
+                shadow.add(null);
+            } else {
+                shadow.add(getCapNode(provider, cap, provider.res));
+            }
+        }
+        for (Capability cap : fragmentCaps) {
+            ResourceNode fragment = nodes.get(cap.getResource());
+            int index = original.indexOf(cap);
+            original.remove(index);
+            shadow.remove(index);
+            if (fragment.wiring != null) {
+                for (Wire wire : fragment.wiring.getRequiredResourceWires(HostNamespace.HOST_NAMESPACE)) {
+                    Resource host = wire.getProvider();
+                    Wiring hostWiring = wirings.get(host);
+                    if (!PackageNamespace.PACKAGE_NAMESPACE.equals(cap.getNamespace())
+                            || (hostWiring != null && hostWiring.getResourceCapabilities(null).contains(cap))) {
+                        int insert = context.insertHostedCapability(original, new HostedCapabilityImpl(host, cap));
+                        shadow.add(insert, getCapNode(getNode(host), cap, trueLit));
+                    }
+                }
+            }
+            for (Attachment attachment : fragment.attachments) {
+                int insert = context.insertHostedCapability(original, new HostedCapabilityImpl(attachment.host.resource, cap));
+                shadow.add(insert, getCapNode(attachment.host, cap, attachment.lit));
+            }
+        }
+        result = new ArrayList<CapNode>(shadow.size());
+        for (CapNode cap : shadow) {
+            if (cap != null && !result.contains(cap)) {
+                result.add(cap);
+            }
+        }
+        candidates.put(declared, result);
+        return result;
+    }
+
+    private CapNode getCapNode(ResourceNode host, Capability capability, int base) {
+        CapNode cap = host.caps.get(capability);
+        if (cap == null) {
+            cap = new CapNode(host, capability, base);
+            host.caps.put(capability, cap);
+        }
+        return cap;
+    }
+
+    private void addExports(ResourceNode host) {
+        for (Capability cap : host.resource.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
+            addExport(host, getCapNode(host, cap, host.res));
+        }
+        for (Attachment attachment : host.fragments) {
+            for (Capability cap : attachment.fragment.resource.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
+                addExport(host, getCapNode(host, cap, attachment.lit));
+            }
+        }
+        for (ReqNode req : host.reqs) {
+            String namespace = req.requirement.getNamespace();
+            if (PackageNamespace.PACKAGE_NAMESPACE.equals(namespace)) {
+                for (int i = 0; i < req.sels.length; i++) {
+                    String pkg = req.cands.get(i).getPackageName();
+                    List<Selection> list = host.imports.get(pkg);
+                    if (list == null) {
+                        list = new ArrayList<Selection>();
+                        host.imports.put(pkg, list);
+                    }
+                    list.add(new Selection(req, i));
+                }
+            } else if (BundleNamespace.BUNDLE_NAMESPACE.equals(namespace)) {
+                host.bundleReqs.add(req);
+            }
+        }
+    }
+
+    private void addExport(ResourceNode host, CapNode cap) {
+        List<CapNode> list = host.exports.get(cap.getPackageName());
+        if (list == null) {
+            list = new ArrayList<CapNode>();
+            host.exports.put(cap.getPackageName(), list);
+        }
+        list.add(cap);
+    }
+
+    // An export is substituted when the host imports the package from another resource
+    private void addSubstitutions(ResourceNode host) {
+        Map<CapNode, List<Integer>> substitutes = new LinkedHashMap<CapNode, List<Integer>>();
+        for (ReqNode req : host.reqs) {
+            if (!PackageNamespace.PACKAGE_NAMESPACE.equals(req.requirement.getNamespace()) || req.cands.isEmpty()) {
+                continue;
+            }
+            List<CapNode> exports = host.exports.get(req.cands.get(0).getPackageName());
+            if (exports == null || exports.containsAll(req.cands)) {
+                continue;
+            }
+            for (CapNode export : exports) {
+                List<Integer> sels = substitutes.get(export);
+                if (sels == null) {
+                    sels = new ArrayList<Integer>();
+                    substitutes.put(export, sels);
+                }
+                for (int i = 0; i < req.sels.length; i++) {
+                    if (req.cands.get(i).host != host) {
+                        sels.add(req.sels[i]);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<CapNode, List<Integer>> entry : substitutes.entrySet()) {
+            CapNode export = entry.getKey();
+            export.avail = literal(solver.newVar(), true);
+            addClause(negate(export.avail), export.base);
+            for (Integer sel : entry.getValue()) {
+                addClause(negate(export.avail), negate(sel));
+            }
+        }
+    }
+
+    private void addRequirementClauses(ReqNode req) {
+        clause.clear();
+        clause.add(negate(req.active));
+        for (int i = 0; i < req.sels.length; i++) {
+            int sel = req.sels[i];
+            CapNode cap = req.cands.get(i);
+            addClause(negate(sel), req.active);
+            addClause(negate(sel), cap.avail);
+            clause.add(sel);
+            // The primary host of a fragment pulls in the host and attaches the fragment
+            if (HostNamespace.HOST_NAMESPACE.equals(req.requirement.getNamespace())) {
+                Attachment attachment = req.owner.getAttachment(cap.host);
+                if (attachment != null) {
+                    addClause(negate(sel), attachment.lit);
+                }
+            }
+        }
+        if (!req.optional) {
+            solver.addClause(clause.toArray());
+        }
+        if (!req.multiple) {
+            addAtMostOne(req.sels);
+        }
+    }
+
+    private void addFragmentClauses(ResourceNode fragment) {
+        if (!fragment.root && !fragment.resolved) {
+            clause.clear();
+            clause.add(negate(fragment.res));
+            for (Attachment attachment : fragment.attachments) {
+                clause.add(attachment.lit);
+            }
+            solver.addClause(clause.toArray());
+        }
+        for (Attachment attachment : fragment.attachments) {
+            addClause(negate(attachment.lit), fragment.res);
+            addClause(negate(attachment.lit), attachment.host.res);
+        }
+    }
+
+    private void addHostClauses(ResourceNode host) {
+        // A resource that is not resolved for its own sake only resolves when it provides a capability
+        if (!host.root) {
+            clause.clear();
+            clause.add(negate(host.res));
+            for (Integer sel : host.support) {
+                clause.add(sel);
+            }
+            solver.addClause(clause.toArray());
+        }
+
+        // A fragment attaches to every resolving host, unless a higher version of it attaches
+        Map<String, List<Attachment>> byName = new LinkedHashMap<String, List<Attachment>>();
+        for (Attachment attachment : host.fragments) {
+            String name = getSymbolicName(attachment.fragment.resource);
+            List<Attachment> list = byName.get(name);
+            if (list == null) {
+                list = new ArrayList<Attachment>();
+                byName.put(name, list);
+            }
+            list.add(attachment);
+        }
+        for (List<Attachment> list : byName.values()) {
+            Collections.sort(list, new Comparator<Attachment>() {
+                @Override
+                public int compare(Attachment a1, Attachment a2) {
+                    return getVersion(a2.fragment.resource).compareTo(getVersion(a1.fragment.resource));
+                }
+            });
+            int[] lits = new int[list.size()];
+            for (int i = 0; i < lits.length; i++) {
+                Attachment attachment = list.get(i);
+                lits[i] = attachment.lit;
+                clause.clear();
+                clause.add(negate(attachment.fragment.res));
+                clause.add(negate(host.res));
+                for (int k = 0; k <= i; k++) {
+                    clause.add(lits[k]);
+                }
+                solver.addClause(clause.toArray());
+            }
+            addAtMostOne(lits);
+        }
+    }
+
+    private void addSingletonClauses(List<ResourceNode> populated) {
+        Map<String, List<Integer>> singletons = new LinkedHashMap<String, List<Integer>>();
+        for (ResourceNode node : populated) {
+            if (node.resolved) {
+                continue;
+            }
+            for (Capability cap : node.resource.getCapabilities(IdentityNamespace.IDENTITY_NAMESPACE)) {
+                if (Boolean.parseBoolean(cap.getDirectives().get(IdentityNamespace.CAPABILITY_SINGLETON_DIRECTIVE))) {
+                    String name = getSymbolicName(node.resource);
+                    List<Integer> list = singletons.get(name);
+                    if (list == null) {
+                        list = new ArrayList<Integer>();
+                        singletons.put(name, list);
+                    }
+                    list.add(node.res);
+                }
+            }
+        }
+        for (List<Integer> list : singletons.values()) {
+            int[] lits = new int[list.size()];
+            for (int i = 0; i < lits.length; i++) {
+                lits[i] = list.get(i);
+            }
+            addAtMostOne(lits);
+        }
+    }
+
+    private void addUsesClauses(List<ResourceNode> populated) {
+        List<ResourceNode> hosts = new ArrayList<ResourceNode>();
+        for (ResourceNode node : populated) {
+            if (!node.fragment && !node.resolved) {
+                hosts.add(node);
+            }
+        }
+
+        // The bundles whose exports each host can see through require-bundle
+        for (ResourceNode host : hosts) {
+            for (ReqNode req : host.bundleReqs) {
+                for (int i = 0; i < req.sels.length; i++) {
+                    requireBundle(host, req.cands.get(i).host, req.sels[i]);
+                }
+            }
+        }
+        while (!usesQueue.isEmpty()) {
+            Object[] item = usesQueue.removeFirst();
+            ResourceNode host = (ResourceNode) item[0];
+            ResourceNode bundle = (ResourceNode) item[1];
+            int required = (Integer) item[2];
+            if (bundle.resolved) {
+                for (Wire wire : bundle.wiring.getRequiredResourceWires(BundleNamespace.BUNDLE_NAMESPACE)) {
+                    if (isReexport(wire.getRequirement())) {
+                        requireBundle(host, getNode(wire.getProvider()), required);
+                    }
+                }
+            } else {
+                for (ReqNode req : bundle.bundleReqs) {
+                    if (isReexport(req.requirement)) {
+                        for (int i = 0; i < req.sels.length; i++) {
+                            requireBundle(host, req.cands.get(i).host, required, req.sels[i]);
+                        }
+                    }
+                }
+            }
+        }
+
+        // The capabilities whose uses each host merges into its package space
+        for (ResourceNode host : hosts) {
+            for (Map.Entry<ResourceNode, Integer> entry : host.requiredBundles.entrySet()) {
+                ResourceNode bundle = entry.getKey();
+                for (Map.Entry<String, List<CapNode>> exports : getExports(bundle).entrySet()) {
+                    String pkg = exports.getKey();
+                    int[] imported = getImportLiterals(bundle, pkg);
+                    for (CapNode export : exports.getValue()) {
+                        int[] conditions = new int[] { entry.getValue(), export.base };
+                        int required = getVar(host.requiredPkgs, pkg, export);
+                        addImplication(conditions, imported, required);
+                        addSupport(required, conditions, imported);
+                        reach(host, export, conditions, imported);
+                    }
+                }
+            }
+            for (ReqNode req : host.reqs) {
+                String namespace = req.requirement.getNamespace();
+                if (BundleNamespace.BUNDLE_NAMESPACE.equals(namespace) || HostNamespace.HOST_NAMESPACE.equals(namespace)) {
+                    continue;
+                }
+                for (int i = 0; i < req.sels.length; i++) {
+                    reach(host, req.cands.get(i), new int[] { req.sels[i] }, new int[0]);
+                }
+            }
+        }
+        while (!usesQueue.isEmpty()) {
+            Object[] item = usesQueue.removeFirst();
+            mergeUses((ResourceNode) item[0], (CapNode) item[1], (Integer) item[2]);
+        }
+
+        // Every source of a used package must be compatible with the sources the host sees
+        for (ResourceNode host : hosts) {
+            for (Map.Entry<String, Map<CapNode, Integer>> entry : host.usedPkgs.entrySet()) {
+                String pkg = entry.getKey();
+                List<CapNode> exports = host.exports.get(pkg);
+                List<Selection> imports = host.imports.get(pkg);
+                Map<CapNode, Integer> required = host.requiredPkgs.get(pkg);
+                int[] imported = getImportLiterals(host, pkg);
+                for (Map.Entry<CapNode, Integer> used : entry.getValue().entrySet()) {
+                    CapNode source = used.getKey();
+                    int usedLit = used.getValue();
+                    if (exports != null) {
+                        for (CapNode export : exports) {
+                            addConflict(new int[] { usedLit, export.base }, imported, export, source);
+                        }
+                    }
+                    if (imports != null) {
+                        for (Selection imp : imports) {
+                            addConflict(new int[] { usedLit, imp.getLiteral() }, new int[0], imp.getCapNode(), source);
+                        }
+                    }
+                    if (required != null) {
+                        // Imports hide the required sources, which are compatible together
+                        IntList alternatives = new IntList();
+                        for (int lit : imported) {
+                            alternatives.add(lit);
+                        }
+                        for (Map.Entry<CapNode, Integer> req : required.entrySet()) {
+                            if (req.getKey().host == source.host) {
+                                alternatives.add(req.getValue());
+                            }
+                        }
+                        for (Map.Entry<CapNode, Integer> req : required.entrySet()) {
+                            addConflict(new int[] { usedLit, req.getValue() }, alternatives.toArray(), req.getKey(), source);
+                        }
+                    }
+                }
+            }
+
+            // A host and its fragments cannot import a package from different resources
+            for (List<Selection> imports : host.imports.values()) {
+                for (int i = 0; i < imports.size(); i++) {
+                    for (int k = i + 1; k < imports.size(); k++) {
+                        Selection s1 = imports.get(i);
+                        Selection s2 = imports.get(k);
+                        if (s1.req != s2.req && s1.getCapNode().host != s2.getCapNode().host) {
+                            addClause(negate(s1.getLiteral()), negate(s2.getLiteral()));
+                        }
+                    }
+                }
+            }
+        }
+
+        // The required bundles and packages make sources compatible, so they must not be set freely
+        for (Map.Entry<Integer, IntList> entry : supports.entrySet()) {
+            IntList alternatives = entry.getValue();
+            if (!contains(alternatives.toArray(), trueLit)) {
+                clause.clear();
+                clause.add(negate(entry.getKey()));
+                for (int i = 0; i < alternatives.size; i++) {
+                    clause.add(alternatives.data[i]);
+                }
+                solver.addClause(clause.toArray());
+            }
+        }
+    }
+
+    // Two package sources are compatible when they come from the same resource, or when one is a
+    // source of the other's split package through a chain of required bundles that export it
+    private void addConflict(int[] conditions, int[] alternatives, CapNode cap1, CapNode cap2) {
+        if (cap1.host == cap2.host) {
+            return;
+        }
+        IntList compatible = new IntList();
+        for (int lit : alternatives) {
+            compatible.add(lit);
+        }
+        String pkg = cap1.getPackageName();
+        for (int lit : new int[] { getSourceLiteral(cap1.host, cap2.host, pkg), getSourceLiteral(cap2.host, cap1.host, pkg) }) {
+            if (lit == trueLit) {
+                return;
+            } else if (lit >= 0) {
+                compatible.add(lit);
+            }
+        }
+        addImplication(conditions, compatible.toArray(), -1);
+    }
+
+    // A literal that can only be true when the package of the target is a source of the package of the
+    // node, or -1 if it can never be
+    private int getSourceLiteral(ResourceNode node, ResourceNode target, String pkg) {
+        Map<ResourceNode, Integer> sourceLits = node.sourceLits.get(pkg);
+        if (sourceLits == null) {
+            sourceLits = new HashMap<ResourceNode, Integer>();
+            node.sourceLits.put(pkg, sourceLits);
+        }
+        Integer result = sourceLits.get(target);
+        if (result != null) {
+            return result;
+        }
+        // Break cycles in the chain of required bundles
+        sourceLits.put(target, -1);
+        IntList alternatives = new IntList();
+        for (Map.Entry<ResourceNode, Integer> entry : getRequiredBundles(node).entrySet()) {
+            ResourceNode bundle = entry.getKey();
+            int exported = bundle.resolved ? (getExports(bundle).containsKey(pkg) ? trueLit : -1) : getExportedLiteral(bundle, pkg);
+            if (exported < 0) {
+                continue;
+            }
+            if (bundle == target) {
+                alternatives.add(getConjunction(entry.getValue(), exported));
+            } else {
+                int source = getSourceLiteral(bundle, target, pkg);
+                if (source >= 0) {
+                    alternatives.add(getConjunction(entry.getValue(), exported, source));
+                }
+            }
+        }
+        result = -1;
+        if (alternatives.size == 1) {
+            result = alternatives.data[0];
+        } else if (alternatives.size > 1) {
+            result = literal(solver.newVar(), true);
+            clause.clear();
+            clause.add(negate(result));
+            for (int i = 0; i < alternatives.size; i++) {
+                if (alternatives.data[i] == trueLit) {
+                    result = trueLit;
+                    break;
+                }
+                clause.add(alternatives.data[i]);
+            }
+            if (result != trueLit) {
+                solver.addClause(clause.toArray());
+            }
+        }
+        sourceLits.put(target, result);
+        return result;
+    }
+
+    private Map<ResourceNode, Integer> getRequiredBundles(ResourceNode node) {
+        if (!node.resolved) {
+            return node.requiredBundles;
+        }
+        getResolvedSources(node, null);
+        Map<ResourceNode, Integer> result = new LinkedHashMap<ResourceNode, Integer>();
+        for (Resource resource : node.resolvedRequired) {
+            result.put(getNode(resource), trueLit);
+        }
+        return result;
+    }
+
+    // A literal that can only be true when all the given literals are true
+    private int getConjunction(int... lits) {
+        IntList conjuncts = new IntList();
+        for (int lit : lits) {
+            if (lit != trueLit) {
+                conjuncts.add(lit);
+            }
+        }
+        if (conjuncts.size == 0) {
+            return trueLit;
+        } else if (conjuncts.size == 1) {
+            return conjuncts.data[0];
+        }
+        int result = literal(solver.newVar(), true);
+        for (int i = 0; i < conjuncts.size; i++) {
+            addClause(negate(result), conjuncts.data[i]);
+        }
+        return result;
+    }
+
+    private void requireBundle(ResourceNode host, ResourceNode bundle, int... conditions) {
+        if (bundle == host) {
+            return;
+        }
+        Integer var = host.requiredBundles.get(bundle);
+        if (var == null) {
+            var = literal(solver.newVar(), true);
+            host.requiredBundles.put(bundle, var);
+            usesQueue.add(new Object[] { host, bundle, var });
+        }
+        addImplication(conditions, new int[0], var);
+        addSupport(var, conditions, new int[0]);
+    }
+
+    // Record that the variable is implied when the conditions hold and none of the alternatives do
+    private void addSupport(int var, int[] conditions, int[] alternatives) {
+        IntList lits = new IntList();
+        for (int lit : conditions) {
+            lits.add(lit);
+        }
+        for (int lit : alternatives) {
+            lits.add(negate(lit));
+        }
+        IntList alternativeSupports = supports.get(var);
+        if (alternativeSupports == null) {
+            alternativeSupports = new IntList();
+            supports.put(var, alternativeSupports);
+        }
+        alternativeSupports.add(getConjunction(lits.toArray()));
+    }
+
+    private void reach(ResourceNode host, CapNode cap, int[] conditions, int[] alternatives) {
+        boolean packageCap = PackageNamespace.PACKAGE_NAMESPACE.equals(cap.capability.getNamespace());
+        if (cap.host == host || (!packageCap && getUses(cap.capability).isEmpty())) {
+            return;
+        }
+        Integer var = host.reached.get(cap);
+        if (var == null) {
+            var = literal(solver.newVar(), true);
+            host.reached.put(cap, var);
+            usesQueue.add(new Object[] { host, cap, var });
+        }
+        addImplication(conditions, alternatives, var);
+    }
+
+    // Merge the packages used by a capability that the host can reach into the host's package space
+    private void mergeUses(ResourceNode host, CapNode cap, int reached) {
+        ResourceNode provider = cap.host;
+        int[] conditions = new int[] { reached };
+
+        // The other sources of a split package are merged like the capability itself
+        if (PackageNamespace.PACKAGE_NAMESPACE.equals(cap.capability.getNamespace())) {
+            String pkg = cap.getPackageName();
+            if (provider.resolved) {
+                getResolvedSources(provider, null);
+                List<CapNode> exports = provider.resolvedExports.get(pkg);
+                if (exports != null) {
+                    for (CapNode export : exports) {
+                        reach(host, export, conditions, new int[0]);
+                    }
+                }
+                List<CapNode> requiredPkgs = provider.resolvedRequiredPkgs.get(pkg);
+                if (requiredPkgs != null) {
+                    for (CapNode source : requiredPkgs) {
+                        reach(host, source, conditions, new int[0]);
+                    }
+                }
+            } else {
+                List<CapNode> exports = provider.exports.get(pkg);
+                if (exports != null) {
+                    for (CapNode export : exports) {
+                        reach(host, export, new int[] { reached, export.base }, new int[0]);
+                    }
+                }
+                for (Map.Entry<ResourceNode, Integer> entry : provider.requiredBundles.entrySet()) {
+                    ResourceNode bundle = entry.getKey();
+                    List<CapNode> bundleExports = getExports(bundle).get(pkg);
+                    if (bundleExports != null) {
+                        for (CapNode export : bundleExports) {
+                            reach(host, export, new int[] { reached, entry.getValue(), export.base }, getImportLiterals(bundle, pkg));
+                        }
+                    }
+                }
+            }
+        }
+
+        for (String pkg : getUses(cap.capability)) {
+            if (provider.resolved) {
+                for (CapNode source : getResolvedSources(provider, pkg)) {
+                    addImplication(conditions, new int[0], getVar(host.usedPkgs, pkg, source));
+                    reach(host, source, conditions, new int[0]);
+                }
+                continue;
+            }
+            int[] imported = getImportLiterals(provider, pkg);
+            List<CapNode> exports = provider.exports.get(pkg);
+            if (exports != null) {
+                for (CapNode export : exports) {
+                    int[] exported = new int[] { reached, export.base };
+                    addImplication(exported, imported, getVar(host.usedPkgs, pkg, export));
+                    reach(host, export, exported, imported);
+                }
+            }
+            for (Map.Entry<ResourceNode, Integer> entry : provider.requiredBundles.entrySet()) {
+                ResourceNode bundle = entry.getKey();
+                List<CapNode> bundleExports = getExports(bundle).get(pkg);
+                if (bundleExports != null) {
+                    int[] bundleImported = getImportLiterals(bundle, pkg);
+                    int exported = getExportedLiteral(provider, pkg);
+                    if (exported >= 0) {
+                        bundleImported = Arrays.copyOf(bundleImported, bundleImported.length + 1);
+                        bundleImported[bundleImported.length - 1] = exported;
+                    }
+                    for (CapNode export : bundleExports) {
+                        int[] required = new int[] { reached, entry.getValue(), export.base };
+                        addImplication(required, bundleImported, getVar(host.usedPkgs, pkg, export));
+                        reach(host, export, required, bundleImported);
+                    }
+                }
+            }
+            List<Selection> imports = provider.imports.get(pkg);
+            if (imports != null) {
+                for (Selection imp : imports) {
+                    int[] selected = new int[] { reached, imp.getLiteral() };
+                    addImplication(selected, new int[0], getVar(host.usedPkgs, pkg, imp.getCapNode()));
+                    reach(host, imp.getCapNode(), selected, new int[0]);
+                }
+            }
+        }
+    }
+
+    // A literal that can only be true when the resource exports the package, which then hides
+    // the package sources from required bundles
+    private int getExportedLiteral(ResourceNode node, String pkg) {
+        List<CapNode> exports = node.exports.get(pkg);
+        if (exports == null) {
+            return -1;
+        }
+        Integer lit = node.exportedPkgs.get(pkg);
+        if (lit == null) {
+            lit = literal(solver.newVar(), true);
+            node.exportedPkgs.put(pkg, lit);
+            clause.clear();
+            clause.add(negate(lit));
+            for (CapNode export : exports) {
+                clause.add(export.base);
+            }
+            solver.addClause(clause.toArray());
+            for (int imp : getImportLiterals(node, pkg)) {
+                addClause(negate(lit), negate(imp));
+            }
+        }
+        return lit;
+    }
+
+    private Map<String, List<CapNode>> getExports(ResourceNode node) {
+        if (node.resolved) {
+            getResolvedSources(node, null);
+            return node.resolvedExports;
+        }
+        return node.exports;
+    }
+
+    // The package sources of a resolved resource, taken from its wiring
+    private List<CapNode> getResolvedSources(ResourceNode node, String pkg) {
+        if (node.resolvedSources == null) {
+            node.resolvedExports = new HashMap<String, List<CapNode>>();
+            node.resolvedSources = new HashMap<String, List<CapNode>>();
+            for (Capability cap : node.wiring.getResourceCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
+                CapNode export = getCapNode(node, cap, trueLit);
+                addSource(node.resolvedExports, export);
+                addSource(node.resolvedSources, export);
+            }
+            Map<String, List<CapNode>> required = new HashMap<String, List<CapNode>>();
+            node.resolvedRequired = new HashSet<Resource>();
+            node.resolvedRequiredPkgs = required;
+            addRequiredSources(node.wiring, false, required, node.resolvedRequired);
+            for (Map.Entry<String, List<CapNode>> entry : required.entrySet()) {
+                if (!node.resolvedSources.containsKey(entry.getKey())) {
+                    node.resolvedSources.put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (Wire wire : node.wiring.getRequiredResourceWires(PackageNamespace.PACKAGE_NAMESPACE)) {
+                CapNode source = getCapNode(getNode(wire.getProvider()), wire.getCapability(), trueLit);
+                if (!node.resolvedSources.containsKey(source.getPackageName())) {
+                    addSource(node.resolvedSources, source);
+                }
+            }
+        }
+        List<CapNode> result = pkg != null ? node.resolvedSources.get(pkg) : null;
+        return result != null ? result : Collections.<CapNode> emptyList();
+    }
+
+    private void addRequiredSources(Wiring wiring, boolean reexportOnly, Map<String, List<CapNode>> sources, Set<Resource> visited) {
+        for (Wire wire : wiring.getRequiredResourceWires(BundleNamespace.BUNDLE_NAMESPACE)) {
+            if (reexportOnly && !isReexport(wire.getRequirement())) {
+                continue;
+            }
+            Resource provider = wire.getProvider();
+            Wiring providerWiring = wirings.get(provider);
+            if (visited.add(provider) && providerWiring != null) {
+                ResourceNode node = getNode(provider);
+                for (Capability cap : providerWiring.getResourceCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
+                    addSource(sources, getCapNode(node, cap, trueLit));
+                }
+                addRequiredSources(providerWiring, true, sources, visited);
+            }
+        }
+    }
+
+    private static void addSource(Map<String, List<CapNode>> sources, CapNode cap) {
+        List<CapNode> list = sources.get(cap.getPackageName());
+        if (list == null) {
+            list = new ArrayList<CapNode>();
+            sources.put(cap.getPackageName(), list);
+        }
+        if (!list.contains(cap)) {
+            list.add(cap);
+        }
+    }
+
+    private int[] getImportLiterals(ResourceNode node, String pkg) {
+        List<Selection> imports = node.resolved ? null : node.imports.get(pkg);
+        if (imports == null) {
+            return new int[0];
+        }
+        int[] result = new int[imports.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = imports.get(i).getLiteral();
+        }
+        return result;
+    }
+
+    private int getVar(Map<String, Map<CapNode, Integer>> vars, String pkg, CapNode cap) {
+        Map<CapNode, Integer> map = vars.get(pkg);
+        if (map == null) {
+            map = new LinkedHashMap<CapNode, Integer>();
+            vars.put(pkg, map);
+        }
+        Integer var = map.get(cap);
+        if (var == null) {
+            var = literal(solver.newVar(), true);
+            map.put(cap, var);
+        }
+        return var;
+    }
+
+    private List<String> getUses(Capability cap) {
+        String uses = cap.getDirectives().get(Namespace.CAPABILITY_USES_DIRECTIVE);
+        if (uses == null || uses.length() == 0) {
+            return Collections.emptyList();
+        }
+        List<String> result = usesCache.get(uses);
+        if (result == null) {
+            result = new ArrayList<String>();
+            for (String pkg : uses.split(",")) {
+                pkg = pkg.trim();
+                if (pkg.length() > 0) {
+                    result.add(pkg);
+                }
+            }
+            usesCache.put(uses, result);
+        }
+        return result;
+    }
+
+    // Add the clause: all conditions imply the target or one of the alternatives.
+    // A negative target adds the clause without target.
+    private void addImplication(int[] conditions, int[] alternatives, int target) {
+        clause.clear();
+        for (int lit : conditions) {
+            clause.add(negate(lit));
+        }
+        for (int lit : alternatives) {
+            clause.add(lit);
+        }
+        if (target >= 0) {
+            clause.add(target);
+        }
+        solver.addClause(clause.toArray());
+    }
+
+    private static boolean contains(int[] lits, int lit) {
+        for (int value : lits) {
+            if (value == lit) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addClause(int lit1, int lit2) {
+        solver.addClause(lit1, lit2);
+    }
+
+    private void addAtMostOne(int[] lits) {
+        if (lits.length <= 5) {
+            for (int i = 0; i < lits.length; i++) {
+                for (int k = i + 1; k < lits.length; k++) {
+                    addClause(negate(lits[i]), negate(lits[k]));
+                }
+            }
+            return;
+        }
+        // Sequential counter encoding, where aux[i] tells that one of the first i + 1 literals is true
+        int[] aux = new int[lits.length - 1];
+        for (int i = 0; i < aux.length; i++) {
+            aux[i] = literal(solver.newVar(), true);
+        }
+        addClause(negate(lits[0]), aux[0]);
+        for (int i = 1; i < aux.length; i++) {
+            addClause(negate(lits[i]), aux[i]);
+            addClause(negate(aux[i - 1]), aux[i]);
+            addClause(negate(lits[i]), negate(aux[i - 1]));
+        }
+        addClause(negate(lits[lits.length - 1]), negate(aux[aux.length - 1]));
+    }
+
+    private boolean isEffective(Requirement req) {
+        if (!context.isEffective(req)) {
+            return false;
+        }
+        String resolution = req.getDirectives().get(PackageNamespace.REQUIREMENT_RESOLUTION_DIRECTIVE);
+        return !PackageNamespace.RESOLUTION_DYNAMIC.equals(resolution);
+    }
+
+    private static boolean isOptional(Requirement req) {
+        String resolution = req.getDirectives().get(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE);
+        return Namespace.RESOLUTION_OPTIONAL.equalsIgnoreCase(resolution);
+    }
+
+    private static boolean isReexport(Requirement req) {
+        return BundleNamespace.VISIBILITY_REEXPORT.equals(req.getDirectives().get(BundleNamespace.REQUIREMENT_VISIBILITY_DIRECTIVE));
+    }
+
+    private static boolean isPayload(Requirement req) {
+        String namespace = req.getNamespace();
+        return !HostNamespace.HOST_NAMESPACE.equals(namespace) && !ExecutionEnvironmentNamespace.EXECUTION_ENVIRONMENT_NAMESPACE.equals(namespace);
+    }
+
+    private static boolean isFragment(Resource resource) {
+        for (Capability cap : resource.getCapabilities(IdentityNamespace.IDENTITY_NAMESPACE)) {
+            return IdentityNamespace.TYPE_FRAGMENT.equals(cap.getAttributes().get(IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE));
+        }
+        return false;
+    }
+
+    private static String getSymbolicName(Resource resource) {
+        for (Capability cap : resource.getCapabilities(IdentityNamespace.IDENTITY_NAMESPACE)) {
+            return (String) cap.getAttributes().get(IdentityNamespace.IDENTITY_NAMESPACE);
+        }
+        return null;
+    }
+
+    private static Version getVersion(Resource resource) {
+        for (Capability cap : resource.getCapabilities(IdentityNamespace.IDENTITY_NAMESPACE)) {
+            Object version = cap.getAttributes().get(IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE);
+            if (version instanceof Version) {
+                return (Version) version;
+            } else if (version != null) {
+                return Version.parseVersion(version.toString());
+            }
+        }
+        return Version.emptyVersion;
+    }
+
+    /**
+     * Prefer that one of the literals is true when the condition is true. The literals of an
+     * exclusive preference are alternatives, only the first of them that can be true is taken.
+     */
+    static final class Preference {
+        final int condition;
+        final int[] literals;
+        final boolean exclusive;
+
+        Preference(int condition, int[] literals, boolean exclusive) {
+            this.condition = condition;
+            this.literals = literals;
+            this.exclusive = exclusive;
+        }
+    }
+
+    private static final class ResourceNode {
+        final Resource resource;
+        final boolean fragment;
+        final boolean resolved;
+        final Wiring wiring;
+        boolean root;
+        boolean mandatory;
+        int res;
+        List<DeclaredReq> declared;
+        final List<ReqNode> reqs = new ArrayList<ReqNode>();
+        final List<ReqNode> bundleReqs = new ArrayList<ReqNode>();
+        final List<Attachment> attachments = new ArrayList<Attachment>();
+        final List<Attachment> fragments = new ArrayList<Attachment>();
+        final List<Integer> support = new ArrayList<Integer>();
+        final Map<Capability, CapNode> caps = new HashMap<Capability, CapNode>();
+        final Map<String, List<CapNode>> exports = new LinkedHashMap<String, List<CapNode>>();
+        final Map<String, List<Selection>> imports = new HashMap<String, List<Selection>>();
+        final Map<ResourceNode, Integer> requiredBundles = new LinkedHashMap<ResourceNode, Integer>();
+        final Map<CapNode, Integer> reached = new HashMap<CapNode, Integer>();
+        final Map<String, Map<CapNode, Integer>> usedPkgs = new LinkedHashMap<String, Map<CapNode, Integer>>();
+        final Map<String, Map<CapNode, Integer>> requiredPkgs = new HashMap<String, Map<CapNode, Integer>>();
+        final Map<String, Integer> exportedPkgs = new HashMap<String, Integer>();
+        final Map<String, Map<ResourceNode, Integer>> sourceLits = new HashMap<String, Map<ResourceNode, Integer>>();
+        Map<String, List<CapNode>> resolvedExports;
+        Map<String, List<CapNode>> resolvedSources;
+        Map<String, List<CapNode>> resolvedRequiredPkgs;
+        Set<Resource> resolvedRequired;
+
+        ResourceNode(Resource resource, boolean fragment, Wiring wiring) {
+            this.resource = resource;
+            this.fragment = fragment;
+            this.resolved = wiring != null;
+            this.wiring = wiring;
+        }
+
+        Attachment getAttachment(ResourceNode host) {
+            for (Attachment attachment : attachments) {
+                if (attachment.host == host) {
+                    return attachment;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return resource.toString();
+        }
+    }
+
+    private static final class DeclaredReq {
+        final ResourceNode owner;
+        final Requirement requirement;
+        final List<Capability> providers;
+
+        DeclaredReq(ResourceNode owner, Requirement requirement, List<Capability> providers) {
+            this.owner = owner;
+            this.requirement = requirement;
+            this.providers = providers;
+        }
+    }
+
+    private static final class ReqNode {
+        final ResourceNode owner;
+        final ResourceNode declaring;
+        final Requirement requirement;
+        final List<CapNode> cands;
+        final int active;
+        boolean optional;
+        boolean multiple;
+        int[] sels;
+
+        ReqNode(ResourceNode owner, ResourceNode declaring, Requirement requirement, List<CapNode> cands, int active) {
+            this.owner = owner;
+            this.declaring = declaring;
+            this.requirement = requirement;
+            this.cands = cands;
+            this.active = active;
+        }
+    }
+
+    private static final class CapNode {
+        final ResourceNode host;
+        final Capability capability;
+        final int base;
+        int avail;
+
+        CapNode(ResourceNode host, Capability capability, int base) {
+            this.host = host;
+            this.capability = capability;
+            this.base = base;
+            this.avail = base;
+        }
+
+        String getPackageName() {
+            return (String) capability.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE);
+        }
+
+        @Override
+        public String toString() {
+            return "[" + host + "] " + capability;
+        }
+    }
+
+    private static final class Attachment {
+        final ResourceNode fragment;
+        final ResourceNode host;
+        final int lit;
+
+        Attachment(ResourceNode fragment, ResourceNode host, int lit) {
+            this.fragment = fragment;
+            this.host = host;
+            this.lit = lit;
+        }
+    }
+
+    private static final class Selection {
+        final ReqNode req;
+        final int index;
+
+        Selection(ReqNode req, int index) {
+            this.req = req;
+            this.index = index;
+        }
+
+        int getLiteral() {
+            return req.sels[index];
+        }
+
+        CapNode getCapNode() {
+            return req.cands.get(index);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * #%L
+ * JBossOSGi Resolver SAT
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.sat;
+
+import java.util.Map;
+
+import org.osgi.resource.Capability;
+import org.osgi.resource.Resource;
+import org.osgi.service.resolver.HostedCapability;
+
+/**
+ * A fragment capability that is hosted by a given host.
+ */
+final class HostedCapabilityImpl implements HostedCapability {
+
+    private final Resource host;
+    private final Capability capability;
+
+    HostedCapabilityImpl(Resource host, Capability capability) {
+        this.host = host;
+        this.capability = capability;
+    }
+
+    @Override
+    public Resource getResource() {
+        return host;
+    }
+
+    @Override
+    public Capability getDeclaredCapability() {
+        return capability;
+    }
+
+    @Override
+    public String getNamespace() {
+        return capability.getNamespace();
+    }
+
+    @Override
+    public Map<String, String> getDirectives() {
+        return capability.getDirectives();
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return capability.getAttributes();
+    }
+
+    @Override
+    public String toString() {
+        return "[" + host + "] " + capability;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * #%L
+ * JBossOSGi Resolver SAT
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.sat;
+
+import static org.jboss.osgi.resolver.ResolverLogger.LOGGER;
+import static org.jboss.osgi.resolver.ResolverMessages.MESSAGES;
+import static org.jboss.osgi.resolver.sat.Solver.literal;
+import static org.jboss.osgi.resolver.sat.Solver.negate;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.osgi.resolver.sat.Encoder.Preference;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.service.resolver.ResolutionException;
+import org.osgi.service.resolver.ResolveContext;
+import org.osgi.service.resolver.Resolver;
+
+/**
+ * A resolver that encodes the resolve operation as a satisfiability problem and solves it with an
+ * embedded CDCL solver.
+ *
+ * The solver first finds a wiring for the mandatory resources. The preferences of the encoding
+ * are then accepted one by one when they are consistent with the ones accepted before. This finds
+ * the same wiring as the Felix resolver when it does not have to backtrack, and a predictable
+ * wiring when uses constraints rule out the preferred candidates.
+ *
+ * The number of conflicts of all solves of a resolve operation is limited by {@link #MAX_CONFLICTS},
+ * because the search is exponential in the worst case. A resolve operation that reaches the limit
+ * fails with a {@link ResolutionException}.
+ *
+ * The resolver is selected with the {@code org.jboss.osgi.resolver.engine} system property.
+ */
+public final class SatResolver implements Resolver {
+
+    /**
+     * The system property that sets the conflict limit of a resolve operation. The
+     * {@link #DEFAULT_MAX_CONFLICTS} are used when it is not set.
+     */
+    public static final String MAX_CONFLICTS = "org.jboss.osgi.resolver.sat.maxConflicts";
+
+    public static final long DEFAULT_MAX_CONFLICTS = 100000;
+
+    private final long maxConflicts;
+
+    public SatResolver() {
+        this(Long.getLong(MAX_CONFLICTS, DEFAULT_MAX_CONFLICTS));
+    }
+
+    /**
+     * Create a resolver that gives up after the given number of conflicts.
+     */
+    public SatResolver(long maxConflicts) {
+        if (maxConflicts <= 0)
+            throw MESSAGES.illegalArgumentInvalidConflictLimit(maxConflicts);
+        this.maxConflicts = maxConflicts;
+    }
+
+    @Override
+    public Map<Resource, List<Wire>> resolve(ResolveContext context) throws ResolutionException {
+        Collection<Resource> mandatory = context.getMandatoryResources();
+        Collection<Resource> optional = context.getOptionalResources();
+        LOGGER.debugf("Resolve: %s, %s", mandatory, optional);
+
+        Solver solver = new Solver();
+        solver.setConflictLimit(maxConflicts);
+        Encoder encoder = new Encoder(context, solver);
+        encoder.encode();
+        List<Preference> preferences = encoder.getPreferences();
+
+        int[] mandatoryLits = encoder.getMandatoryLiterals();
+        if (!solve(solver, mandatoryLits)) {
+            throw encoder.createResolutionException(solver.getConflict());
+        }
+        for (int lit : mandatoryLits) {
+            solver.addClause(lit);
+        }
+        int solves = 1;
+        for (Preference pref : preferences) {
+            for (int lit : pref.literals) {
+                boolean accepted;
+                if (!solver.modelValue(pref.condition) || solver.modelValue(lit)) {
+                    accepted = true;
+                } else {
+                    // Test the preference under an assumption, so that a rejected preference leaves no clause behind
+                    int test = literal(solver.newVar(), true);
+                    solver.addClause(negate(test), negate(pref.condition), lit);
+                    accepted = solve(solver, test);
+                    solver.addClause(accepted ? test : negate(test));
+                    solves++;
+                }
+                if (accepted) {
+                    solver.addClause(negate(pref.condition), lit);
+                    if (pref.exclusive) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        Map<Resource, List<Wire>> result = encoder.createWireMap();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debugf("Resolution result: %d", result.size());
+            LOGGER.debugf("   %d variables, %d clauses, %d solves, %d conflicts", solver.getNumVars(), solver.getNumClauses(), solves, solver.getConflicts());
+            for (Map.Entry<Resource, List<Wire>> entry : result.entrySet()) {
+                Resource res = entry.getKey();
+                List<Wire> wires = entry.getValue();
+                LOGGER.debugf("   %s: %d wires", res, wires.size());
+                for (Wire wire : wires) {
+                    LOGGER.debugf("      %s", wire);
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean solve(Solver solver, int... assumptions) throws ResolutionException {
+        if (solver.solve(assumptions)) {
+            return true;
+        }
+        if (solver.isLimitReached()) {
+            throw new ResolutionException(MESSAGES.unableToResolveConflictLimit(maxConflicts));
+        }
+        return false;
+    }
+}
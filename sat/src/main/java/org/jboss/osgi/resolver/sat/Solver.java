@@ -0,0 +1,655 @@
+/*
+ * #%L
+ * JBossOSGi Resolver SAT
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.sat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A conflict driven clause learning SAT solver.
+ *
+ * Variables are numbered from zero. A literal is {@code 2 * var} for the positive and
+ * {@code 2 * var + 1} for the negative phase. Clauses are added between solves, which may be
+ * given assumptions. The solver uses two watched literals, first UIP learning, activity based
+ * branching with phase saving and Luby restarts. The total number of conflicts of all solves can
+ * be limited.
+ */
+final class Solver {
+
+    private static final byte UNDEF = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+
+    private static final double VAR_DECAY = 0.95;
+    private static final double CLAUSE_DECAY = 0.999;
+    private static final int RESTART_BASE = 100;
+
+    private int numVars;
+    private byte[] assigns = new byte[64];
+    private int[] level = new int[64];
+    private Clause[] reason = new Clause[64];
+    private boolean[] polarity = new boolean[64];
+    private boolean[] seen = new boolean[64];
+    private double[] activity = new double[64];
+    private ClauseList[] watches = new ClauseList[128];
+
+    private final IntList trail = new IntList();
+    private final IntList trailLimits = new IntList();
+    private int propagationHead;
+
+    private final List<Clause> clauses = new ArrayList<Clause>();
+    private final List<Clause> learnts = new ArrayList<Clause>();
+    private final VarHeap heap = new VarHeap();
+    private double varIncrement = 1.0;
+    private double clauseIncrement = 1.0;
+    private double maxLearnts;
+
+    private boolean ok = true;
+    private boolean[] model;
+    private int[] conflict;
+    private long conflicts;
+    private long conflictLimit = Long.MAX_VALUE;
+    private long decisions;
+    private long propagations;
+
+    static int literal(int var, boolean positive) {
+        return positive ? var << 1 : (var << 1) | 1;
+    }
+
+    static int negate(int lit) {
+        return lit ^ 1;
+    }
+
+    int newVar() {
+        int var = numVars++;
+        if (var == assigns.length) {
+            int size = var * 2;
+            assigns = Arrays.copyOf(assigns, size);
+            level = Arrays.copyOf(level, size);
+            reason = Arrays.copyOf(reason, size);
+            polarity = Arrays.copyOf(polarity, size);
+            seen = Arrays.copyOf(seen, size);
+            activity = Arrays.copyOf(activity, size);
+            watches = Arrays.copyOf(watches, size * 2);
+        }
+        watches[var << 1] = new ClauseList();
+        watches[(var << 1) | 1] = new ClauseList();
+        heap.insert(var);
+        return var;
+    }
+
+    int getNumVars() {
+        return numVars;
+    }
+
+    int getNumClauses() {
+        return clauses.size();
+    }
+
+    long getConflicts() {
+        return conflicts;
+    }
+
+    /**
+     * Limit the total number of conflicts of all solves, including the ones before.
+     */
+    void setConflictLimit(long limit) {
+        conflictLimit = limit;
+    }
+
+    /**
+     * True if the conflict limit was reached, then every solve fails without a conflict.
+     */
+    boolean isLimitReached() {
+        return conflicts >= conflictLimit;
+    }
+
+    long getDecisions() {
+        return decisions;
+    }
+
+    long getPropagations() {
+        return propagations;
+    }
+
+    /**
+     * Set the phase that is tried first when the solver branches on the given variable.
+     */
+    void setPhase(int var, boolean positive) {
+        polarity[var] = positive;
+    }
+
+    /**
+     * Add a clause. Returns false if the clause set became unsatisfiable.
+     */
+    boolean addClause(int... lits) {
+        if (!ok) {
+            return false;
+        }
+        int[] sorted = lits.clone();
+        Arrays.sort(sorted);
+        int size = 0;
+        int last = -1;
+        for (int lit : sorted) {
+            byte value = value(lit);
+            if (value == TRUE || lit == negate(last)) {
+                return true;
+            }
+            if (value != FALSE && lit != last) {
+                sorted[size++] = lit;
+                last = lit;
+            }
+        }
+        if (size == 0) {
+            ok = false;
+        } else if (size == 1) {
+            enqueue(sorted[0], null);
+            ok = propagate() == null;
+        } else {
+            Clause clause = new Clause(Arrays.copyOf(sorted, size), false);
+            attach(clause);
+            clauses.add(clause);
+        }
+        return ok;
+    }
+
+    /**
+     * Solve the clause set under the given assumptions.
+     *
+     * On success the model is available through {@link #modelValue(int)}. On failure
+     * {@link #getConflict()} holds the assumptions that could not be satisfied together, or null
+     * if the solve gave up at the conflict limit. A failed solve keeps the model of the last
+     * successful one.
+     */
+    boolean solve(int... assumptions) {
+        conflict = null;
+        if (!ok) {
+            conflict = new int[0];
+            return false;
+        }
+        if (maxLearnts == 0) {
+            maxLearnts = Math.max(clauses.size() / 3.0, 1000);
+        }
+        Boolean status = null;
+        for (int restarts = 0; status == null && !isLimitReached(); restarts++) {
+            status = search((int) (luby(restarts) * RESTART_BASE), assumptions);
+            maxLearnts *= 1.05;
+        }
+        cancelUntil(0);
+        return status == Boolean.TRUE;
+    }
+
+    boolean modelValue(int lit) {
+        return model[lit >> 1] ^ ((lit & 1) != 0);
+    }
+
+    int[] getConflict() {
+        return conflict;
+    }
+
+    private Boolean search(int maxConflicts, int[] assumptions) {
+        int conflictCount = 0;
+        IntList learnt = new IntList();
+        while (true) {
+            Clause confl = propagate();
+            if (confl != null) {
+                conflicts++;
+                conflictCount++;
+                if (trailLimits.size == 0) {
+                    ok = false;
+                    conflict = new int[0];
+                    return Boolean.FALSE;
+                }
+                int backtrackLevel = analyze(confl, learnt);
+                cancelUntil(backtrackLevel);
+                if (learnt.size == 1) {
+                    enqueue(learnt.data[0], null);
+                } else {
+                    Clause clause = new Clause(learnt.toArray(), true);
+                    attach(clause);
+                    learnts.add(clause);
+                    bumpClause(clause);
+                    enqueue(clause.lits[0], clause);
+                }
+                varIncrement /= VAR_DECAY;
+                clauseIncrement /= CLAUSE_DECAY;
+            } else {
+                if (conflictCount >= maxConflicts || isLimitReached()) {
+                    cancelUntil(0);
+                    return null;
+                }
+                if (learnts.size() - trail.size >= maxLearnts) {
+                    reduceLearnts();
+                }
+                int next = -1;
+                while (trailLimits.size < assumptions.length) {
+                    int lit = assumptions[trailLimits.size];
+                    byte value = value(lit);
+                    if (value == TRUE) {
+                        trailLimits.add(trail.size);
+                    } else if (value == FALSE) {
+                        analyzeFinal(lit, assumptions);
+                        return Boolean.FALSE;
+                    } else {
+                        next = lit;
+                        break;
+                    }
+                }
+                if (next == -1) {
+                    next = pickBranchLiteral();
+                    if (next == -1) {
+                        model = new boolean[numVars];
+                        for (int var = 0; var < numVars; var++) {
+                            model[var] = assigns[var] == TRUE;
+                        }
+                        return Boolean.TRUE;
+                    }
+                    decisions++;
+                }
+                trailLimits.add(trail.size);
+                enqueue(next, null);
+            }
+        }
+    }
+
+    private byte value(int lit) {
+        byte value = assigns[lit >> 1];
+        if (value == UNDEF || (lit & 1) == 0) {
+            return value;
+        }
+        return value == TRUE ? FALSE : TRUE;
+    }
+
+    private void enqueue(int lit, Clause from) {
+        int var = lit >> 1;
+        assigns[var] = (lit & 1) == 0 ? TRUE : FALSE;
+        level[var] = trailLimits.size;
+        reason[var] = from;
+        trail.add(lit);
+    }
+
+    private void attach(Clause clause) {
+        watches[clause.lits[0]].add(clause);
+        watches[clause.lits[1]].add(clause);
+    }
+
+    private Clause propagate() {
+        while (propagationHead < trail.size) {
+            int falseLit = negate(trail.data[propagationHead++]);
+            ClauseList list = watches[falseLit];
+            Clause[] data = list.data;
+            int i = 0;
+            int j = 0;
+            int size = list.size;
+            propagations++;
+            while (i < size) {
+                Clause clause = data[i++];
+                if (clause.removed) {
+                    continue;
+                }
+                int[] lits = clause.lits;
+                if (lits[0] == falseLit) {
+                    lits[0] = lits[1];
+                    lits[1] = falseLit;
+                }
+                if (value(lits[0]) == TRUE) {
+                    data[j++] = clause;
+                    continue;
+                }
+                boolean moved = false;
+                for (int k = 2; k < lits.length; k++) {
+                    if (value(lits[k]) != FALSE) {
+                        lits[1] = lits[k];
+                        lits[k] = falseLit;
+                        watches[lits[1]].add(clause);
+                        moved = true;
+                        break;
+                    }
+                }
+                if (moved) {
+                    continue;
+                }
+                data[j++] = clause;
+                if (value(lits[0]) == FALSE) {
+                    while (i < size) {
+                        data[j++] = data[i++];
+                    }
+                    list.size = j;
+                    propagationHead = trail.size;
+                    return clause;
+                }
+                enqueue(lits[0], clause);
+            }
+            list.size = j;
+        }
+        return null;
+    }
+
+    private int analyze(Clause confl, IntList learnt) {
+        learnt.clear();
+        learnt.add(-1);
+        int pathCount = 0;
+        int lit = -1;
+        int index = trail.size - 1;
+        do {
+            if (confl.learnt) {
+                bumpClause(confl);
+            }
+            int[] lits = confl.lits;
+            for (int j = (lit == -1) ? 0 : 1; j < lits.length; j++) {
+                int q = lits[j];
+                int var = q >> 1;
+                if (!seen[var] && level[var] > 0) {
+                    bumpVar(var);
+                    seen[var] = true;
+                    if (level[var] >= trailLimits.size) {
+                        pathCount++;
+                    } else {
+                        learnt.add(q);
+                    }
+                }
+            }
+            while (!seen[trail.data[index] >> 1]) {
+                index--;
+            }
+            lit = trail.data[index--];
+            confl = reason[lit >> 1];
+            seen[lit >> 1] = false;
+            pathCount--;
+        } while (pathCount > 0);
+        learnt.data[0] = negate(lit);
+
+        // Drop literals that are implied by the other literals of the clause
+        int size = 1;
+        for (int i = 1; i < learnt.size; i++) {
+            int q = learnt.data[i];
+            Clause from = reason[q >> 1];
+            boolean redundant = from != null;
+            if (from != null) {
+                for (int k = 1; k < from.lits.length; k++) {
+                    int var = from.lits[k] >> 1;
+                    if (!seen[var] && level[var] > 0) {
+                        redundant = false;
+                        break;
+                    }
+                }
+            }
+            if (!redundant) {
+                learnt.data[size++] = q;
+            }
+        }
+        for (int i = 1; i < learnt.size; i++) {
+            seen[learnt.data[i] >> 1] = false;
+        }
+        learnt.size = size;
+
+        int backtrackLevel = 0;
+        if (size > 1) {
+            int max = 1;
+            for (int i = 2; i < size; i++) {
+                if (level[learnt.data[i] >> 1] > level[learnt.data[max] >> 1]) {
+                    max = i;
+                }
+            }
+            int q = learnt.data[max];
+            learnt.data[max] = learnt.data[1];
+            learnt.data[1] = q;
+            backtrackLevel = level[q >> 1];
+        }
+        return backtrackLevel;
+    }
+
+    private void analyzeFinal(int failed, int[] assumptions) {
+        IntList result = new IntList();
+        result.add(failed);
+        if (trailLimits.size > 0) {
+            seen[failed >> 1] = true;
+            for (int i = trail.size - 1; i >= trailLimits.data[0]; i--) {
+                int var = trail.data[i] >> 1;
+                if (seen[var]) {
+                    Clause from = reason[var];
+                    if (from == null) {
+                        result.add(trail.data[i]);
+                    } else {
+                        for (int k = 1; k < from.lits.length; k++) {
+                            if (level[from.lits[k] >> 1] > 0) {
+                                seen[from.lits[k] >> 1] = true;
+                            }
+                        }
+                    }
+                    seen[var] = false;
+                }
+            }
+            seen[failed >> 1] = false;
+        }
+        conflict = result.toArray();
+    }
+
+    private void cancelUntil(int targetLevel) {
+        if (trailLimits.size > targetLevel) {
+            int limit = trailLimits.data[targetLevel];
+            for (int i = trail.size - 1; i >= limit; i--) {
+                int lit = trail.data[i];
+                int var = lit >> 1;
+                assigns[var] = UNDEF;
+                reason[var] = null;
+                polarity[var] = (lit & 1) == 0;
+                if (!heap.contains(var)) {
+                    heap.insert(var);
+                }
+            }
+            trail.size = limit;
+            trailLimits.size = targetLevel;
+            propagationHead = limit;
+        }
+    }
+
+    private int pickBranchLiteral() {
+        while (!heap.isEmpty()) {
+            int var = heap.removeMax();
+            if (assigns[var] == UNDEF) {
+                return literal(var, polarity[var]);
+            }
+        }
+        return -1;
+    }
+
+    private void bumpVar(int var) {
+        if ((activity[var] += varIncrement) > 1e100) {
+            for (int i = 0; i < numVars; i++) {
+                activity[i] *= 1e-100;
+            }
+            varIncrement *= 1e-100;
+        }
+        if (heap.contains(var)) {
+            heap.increased(var);
+        }
+    }
+
+    private void bumpClause(Clause clause) {
+        if ((clause.activity += clauseIncrement) > 1e20) {
+            for (Clause learnt : learnts) {
+                learnt.activity *= 1e-20;
+            }
+            clauseIncrement *= 1e-20;
+        }
+    }
+
+    private void reduceLearnts() {
+        Collections.sort(learnts, new Comparator<Clause>() {
+            @Override
+            public int compare(Clause c1, Clause c2) {
+                if (c1.lits.length == 2 || c2.lits.length == 2) {
+                    return (c1.lits.length == 2 ? 1 : 0) - (c2.lits.length == 2 ? 1 : 0);
+                }
+                return Double.compare(c1.activity, c2.activity);
+            }
+        });
+        int half = learnts.size() / 2;
+        List<Clause> kept = new ArrayList<Clause>(learnts.size());
+        for (int i = 0; i < learnts.size(); i++) {
+            Clause clause = learnts.get(i);
+            boolean locked = reason[clause.lits[0] >> 1] == clause && value(clause.lits[0]) == TRUE;
+            if (i < half && clause.lits.length > 2 && !locked) {
+                clause.removed = true;
+            } else {
+                kept.add(clause);
+            }
+        }
+        learnts.clear();
+        learnts.addAll(kept);
+    }
+
+    private static double luby(int x) {
+        int size = 1;
+        int seq = 0;
+        while (size < x + 1) {
+            seq++;
+            size = 2 * size + 1;
+        }
+        while (size - 1 != x) {
+            size = (size - 1) >> 1;
+            seq--;
+            x = x % size;
+        }
+        return Math.pow(2, seq);
+    }
+
+    private static final class Clause {
+        private final int[] lits;
+        private final boolean learnt;
+        private double activity;
+        private boolean removed;
+
+        Clause(int[] lits, boolean learnt) {
+            this.lits = lits;
+            this.learnt = learnt;
+        }
+    }
+
+    private static final class ClauseList {
+        private Clause[] data = new Clause[4];
+        private int size;
+
+        void add(Clause clause) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = clause;
+        }
+    }
+
+    static final class IntList {
+        int[] data = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+
+    /**
+     * A binary max heap of variables ordered by activity.
+     */
+    private final class VarHeap {
+        private int[] heap = new int[64];
+        private int[] indices = new int[64];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        boolean contains(int var) {
+            return var < indices.length && indices[var] > 0;
+        }
+
+        void insert(int var) {
+            if (var >= indices.length) {
+                indices = Arrays.copyOf(indices, Math.max(var + 1, indices.length * 2));
+            }
+            if (size + 1 == heap.length) {
+                heap = Arrays.copyOf(heap, heap.length * 2);
+            }
+            heap[++size] = var;
+            indices[var] = size;
+            up(size);
+        }
+
+        void increased(int var) {
+            up(indices[var]);
+        }
+
+        int removeMax() {
+            int var = heap[1];
+            indices[var] = 0;
+            heap[1] = heap[size];
+            size--;
+            if (size > 0) {
+                indices[heap[1]] = 1;
+                down(1);
+            }
+            return var;
+        }
+
+        private void up(int pos) {
+            int var = heap[pos];
+            while (pos > 1 && activity[heap[pos >> 1]] < activity[var]) {
+                heap[pos] = heap[pos >> 1];
+                indices[heap[pos]] = pos;
+                pos >>= 1;
+            }
+            heap[pos] = var;
+            indices[var] = pos;
+        }
+
+        private void down(int pos) {
+            int var = heap[pos];
+            while (pos * 2 <= size) {
+                int child = pos * 2;
+                if (child < size && activity[heap[child + 1]] > activity[heap[child]]) {
+                    child++;
+                }
+                if (activity[heap[child]] <= activity[var]) {
+                    break;
+                }
+                heap[pos] = heap[child];
+                indices[heap[pos]] = pos;
+                pos = child;
+            }
+            heap[pos] = var;
+            indices[var] = pos;
+        }
+    }
+}
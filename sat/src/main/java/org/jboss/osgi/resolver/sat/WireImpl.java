@@ -0,0 +1,88 @@
+/*
+ * #%L
+ * JBossOSGi Resolver SAT
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.sat;
+
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+
+/**
+ * A {@link Wire} with value semantics, so that wire maps of different resolver engines compare equal.
+ */
+final class WireImpl implements Wire {
+
+    private final Resource requirer;
+    private final Requirement requirement;
+    private final Resource provider;
+    private final Capability capability;
+
+    WireImpl(Resource requirer, Requirement requirement, Resource provider, Capability capability) {
+        this.requirer = requirer;
+        this.requirement = requirement;
+        this.provider = provider;
+        this.capability = capability;
+    }
+
+    @Override
+    public Resource getRequirer() {
+        return requirer;
+    }
+
+    @Override
+    public Requirement getRequirement() {
+        return requirement;
+    }
+
+    @Override
+    public Resource getProvider() {
+        return provider;
+    }
+
+    @Override
+    public Capability getCapability() {
+        return capability;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Wire)) {
+            return false;
+        }
+        Wire other = (Wire) obj;
+        return requirer.equals(other.getRequirer()) && requirement.equals(other.getRequirement())
+                && provider.equals(other.getProvider()) && capability.equals(other.getCapability());
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 5;
+        hash = 29 * hash + requirer.hashCode();
+        hash = 29 * hash + requirement.hashCode();
+        hash = 29 * hash + provider.hashCode();
+        hash = 29 * hash + capability.hashCode();
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return requirement + " -> [" + provider + "]";
+    }
+}
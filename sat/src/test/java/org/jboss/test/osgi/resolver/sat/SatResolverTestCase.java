@@ -0,0 +1,423 @@
+/*
+ * #%L
+ * JBossOSGi Resolver SAT
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.test.osgi.resolver.sat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.osgi.resolver.XCapability;
+import org.jboss.osgi.resolver.XEnvironment;
+import org.jboss.osgi.resolver.XRequirement;
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.jboss.osgi.resolver.sat.SatResolver;
+import org.jboss.osgi.resolver.spi.AbstractEnvironment;
+import org.jboss.osgi.resolver.spi.AbstractResolveContext;
+import org.jboss.osgi.resolver.spi.AbstractResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.framework.namespace.HostNamespace;
+import org.osgi.framework.namespace.IdentityNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Namespace;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.service.resolver.ResolutionException;
+import org.osgi.service.resolver.ResolveContext;
+
+/**
+ * Unit tests for the {@link SatResolver}
+ */
+public class SatResolverTestCase {
+
+    private XEnvironment environment;
+
+    @Before
+    public void setUp() throws Exception {
+        environment = new AbstractEnvironment();
+    }
+
+    @Test
+    public void testPackageImport() throws Exception {
+        XResourceBuilder<XResource> builderA = createBuilder("resA", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addExport(builderA, "org.jboss.foo", "1.0.0", null);
+        XResource resourceA = builderA.getResource();
+
+        XResourceBuilder<XResource> builderB = createBuilder("resB", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addImport(builderB, "org.jboss.foo", null);
+        XResource resourceB = builderB.getResource();
+
+        environment.installResources(resourceA, resourceB);
+        Map<Resource, List<Wire>> wiremap = new SatResolver().resolve(getResolveContext(resourceB));
+        assertEquals(2, wiremap.size());
+        assertTrue(wiremap.get(resourceA).isEmpty());
+
+        List<Wire> wires = wiremap.get(resourceB);
+        assertEquals(1, wires.size());
+        assertEquals(resourceA, wires.get(0).getProvider());
+        assertEquals(resourceB, wires.get(0).getRequirer());
+    }
+
+    @Test
+    public void testUsesConstraint() throws Exception {
+        XResourceBuilder<XResource> builderX1 = createBuilder("resX1", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addExport(builderX1, "org.jboss.x", "1.0.0", null);
+        XResource resourceX1 = builderX1.getResource();
+
+        XResourceBuilder<XResource> builderX2 = createBuilder("resX2", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addExport(builderX2, "org.jboss.x", "2.0.0", null);
+        XResource resourceX2 = builderX2.getResource();
+
+        XResourceBuilder<XResource> builderY = createBuilder("resY", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addExport(builderY, "org.jboss.y", "1.0.0", "org.jboss.x");
+        addImport(builderY, "org.jboss.x", "[1.0,2.0)");
+        XResource resourceY = builderY.getResource();
+
+        // The preferred candidate for org.jboss.x is resX2, which conflicts with the uses of org.jboss.y
+        XResourceBuilder<XResource> builderC = createBuilder("resC", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addImport(builderC, "org.jboss.x", null);
+        addImport(builderC, "org.jboss.y", null);
+        XResource resourceC = builderC.getResource();
+
+        environment.installResources(resourceX1, resourceX2, resourceY, resourceC);
+        Map<Resource, List<Wire>> wiremap = new SatResolver().resolve(getResolveContext(resourceC));
+        assertFalse(wiremap.containsKey(resourceX2));
+
+        List<Wire> wires = wiremap.get(resourceC);
+        assertEquals(2, wires.size());
+        assertEquals(resourceX1, wires.get(0).getProvider());
+        assertEquals(resourceY, wires.get(1).getProvider());
+    }
+
+    @Test
+    public void testFragmentAttachment() throws Exception {
+        XResourceBuilder<XResource> builderH = createBuilder("resH", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        XResource resourceH = builderH.getResource();
+
+        XResourceBuilder<XResource> builderF = createBuilder("resF", "1.0.0", IdentityNamespace.TYPE_FRAGMENT);
+        builderF.addRequirement(HostNamespace.HOST_NAMESPACE, "resH");
+        addExport(builderF, "org.jboss.foo", "1.0.0", null);
+        XResource resourceF = builderF.getResource();
+
+        XResourceBuilder<XResource> builderB = createBuilder("resB", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addImport(builderB, "org.jboss.foo", null);
+        XResource resourceB = builderB.getResource();
+
+        environment.installResources(resourceH, resourceF, resourceB);
+        Map<Resource, List<Wire>> wiremap = new SatResolver().resolve(getResolveContext(resourceB));
+        assertEquals(3, wiremap.size());
+
+        List<Wire> wires = wiremap.get(resourceF);
+        assertEquals(1, wires.size());
+        assertEquals(HostNamespace.HOST_NAMESPACE, wires.get(0).getRequirement().getNamespace());
+        assertEquals(resourceH, wires.get(0).getProvider());
+
+        wires = wiremap.get(resourceB);
+        assertEquals(1, wires.size());
+        assertEquals(resourceH, wires.get(0).getProvider());
+        assertEquals(resourceF, wires.get(0).getCapability().getResource());
+    }
+
+    @Test
+    public void testMultipleFragments() throws Exception {
+        XResourceBuilder<XResource> builderH = createBuilder("resH", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        XResource resourceH = builderH.getResource();
+
+        XResourceBuilder<XResource> builderF1 = createBuilder("resF1", "1.0.0", IdentityNamespace.TYPE_FRAGMENT);
+        builderF1.addRequirement(HostNamespace.HOST_NAMESPACE, "resH");
+        addExport(builderF1, "org.jboss.foo", "1.0.0", null);
+        XResource resourceF1 = builderF1.getResource();
+
+        XResourceBuilder<XResource> builderF2 = createBuilder("resF2", "1.0.0", IdentityNamespace.TYPE_FRAGMENT);
+        builderF2.addRequirement(HostNamespace.HOST_NAMESPACE, "resH");
+        addExport(builderF2, "org.jboss.bar", "1.0.0", null);
+        XResource resourceF2 = builderF2.getResource();
+
+        XResourceBuilder<XResource> builderB = createBuilder("resB", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addImport(builderB, "org.jboss.foo", null);
+        addImport(builderB, "org.jboss.bar", null);
+        XResource resourceB = builderB.getResource();
+
+        environment.installResources(resourceH, resourceF1, resourceF2, resourceB);
+        Map<Resource, List<Wire>> wiremap = new SatResolver().resolve(getResolveContext(resourceB));
+        assertEquals(4, wiremap.size());
+        assertEquals(resourceH, wiremap.get(resourceF1).get(0).getProvider());
+        assertEquals(resourceH, wiremap.get(resourceF2).get(0).getProvider());
+
+        List<Wire> wires = wiremap.get(resourceB);
+        assertEquals(2, wires.size());
+        assertEquals(resourceH, wires.get(0).getProvider());
+        assertEquals(resourceF1, wires.get(0).getCapability().getResource());
+        assertEquals(resourceH, wires.get(1).getProvider());
+        assertEquals(resourceF2, wires.get(1).getCapability().getResource());
+    }
+
+    @Test
+    public void testSubstitutableExport() throws Exception {
+        XResourceBuilder<XResource> builderA = createBuilder("resA", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addExport(builderA, "org.jboss.foo", "2.0.0", null);
+        XResource resourceA = builderA.getResource();
+
+        // The export of resB is substituted by the preferred export of resA
+        XResourceBuilder<XResource> builderB = createBuilder("resB", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addExport(builderB, "org.jboss.foo", "1.0.0", null);
+        addImport(builderB, "org.jboss.foo", null);
+        XResource resourceB = builderB.getResource();
+
+        // Only the export of resB matches the import of resC
+        XResourceBuilder<XResource> builderC = createBuilder("resC", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addImport(builderC, "org.jboss.foo", "[1.0,2.0)");
+        XResource resourceC = builderC.getResource();
+
+        environment.installResources(resourceA, resourceB, resourceC);
+        Map<Resource, List<Wire>> wiremap = new SatResolver().resolve(getResolveContext(resourceB));
+        List<Wire> wires = wiremap.get(resourceB);
+        assertEquals(1, wires.size());
+        assertEquals(resourceA, wires.get(0).getProvider());
+
+        // The export of resB is not substituted when resC needs it
+        wiremap = new SatResolver().resolve(getResolveContext(resourceC, resourceB));
+        assertTrue(wiremap.get(resourceB).isEmpty());
+        wires = wiremap.get(resourceC);
+        assertEquals(1, wires.size());
+        assertEquals(resourceB, wires.get(0).getProvider());
+    }
+
+    @Test
+    public void testSingletons() throws Exception {
+        XResource resourceA1 = createSingleton("resA", "1.0.0");
+        XResource resourceA2 = createSingleton("resA", "2.0.0");
+        environment.installResources(resourceA1, resourceA2);
+
+        // Only one revision of a singleton resolves
+        Map<Resource, List<Wire>> wiremap = new SatResolver().resolve(getResolveContext(null, resourceA1, resourceA2));
+        assertEquals(1, wiremap.size());
+
+        wiremap = new SatResolver().resolve(getResolveContext(resourceA1, resourceA2));
+        assertEquals(1, wiremap.size());
+        assertTrue(wiremap.containsKey(resourceA1));
+    }
+
+    @Test
+    public void testRequiredBundleSplitPackage() throws Exception {
+        XResourceBuilder<XResource> builderX1 = createBuilder("resX", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addExport(builderX1, "org.jboss.x", "2.0.0", null);
+        XResource resourceX1 = builderX1.getResource();
+
+        // The required bundle resX 2.0 does not reexport resX 1.0
+        XResourceBuilder<XResource> builderX2 = createBuilder("resX", "2.0.0", IdentityNamespace.TYPE_BUNDLE);
+        XRequirement req = builderX2.addRequirement(BundleNamespace.BUNDLE_NAMESPACE, "resX");
+        req.getAttributes().put(BundleNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE, "[1.0,1.0]");
+        XResource resourceX2 = builderX2.getResource();
+
+        XResourceBuilder<XResource> builderY = createBuilder("resY", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addExport(builderY, "org.jboss.y", "1.0.0", "org.jboss.x");
+        addImport(builderY, "org.jboss.x", null);
+        XResource resourceY = builderY.getResource();
+
+        // The export of org.jboss.x by resA is only compatible with the one of resX 1.0 when resA requires resX 1.0
+        XResourceBuilder<XResource> builderA = createBuilder("resA", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addExport(builderA, "org.jboss.x", "1.0.0", null);
+        addImport(builderA, "org.jboss.y", null);
+        builderA.addRequirement(BundleNamespace.BUNDLE_NAMESPACE, "resX");
+        XResource resourceA = builderA.getResource();
+
+        environment.installResources(resourceX1, resourceX2, resourceY, resourceA);
+        Map<Resource, List<Wire>> wiremap = new SatResolver().resolve(getResolveContext(resourceA));
+        List<Wire> wiresA = wiremap.get(resourceA);
+        List<Wire> wiresY = wiremap.get(resourceY);
+        assertEquals(2, wiresA.size());
+        assertEquals(1, wiresY.size());
+        assertEquals(BundleNamespace.BUNDLE_NAMESPACE, wiresA.get(1).getRequirement().getNamespace());
+        assertTrue(wiresY.get(0).getProvider() == resourceA || wiresA.get(1).getProvider() == resourceX1);
+    }
+
+    @Test
+    public void testMissingRequirement() throws Exception {
+        XResourceBuilder<XResource> builderA = createBuilder("resA", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addImport(builderA, "org.jboss.foo", null);
+        XResource resourceA = builderA.getResource();
+
+        XResourceBuilder<XResource> builderB = createBuilder("resB", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        addImport(builderB, "org.jboss.bar", null);
+        XResource resourceB = builderB.getResource();
+
+        environment.installResources(resourceA, resourceB);
+        try {
+            new SatResolver().resolve(getResolveContext(resourceA));
+            fail("ResolutionException expected");
+        } catch (ResolutionException ex) {
+            assertEquals(1, ex.getUnresolvedRequirements().size());
+            assertEquals(resourceA, ex.getUnresolvedRequirements().iterator().next().getResource());
+        }
+
+        // An optional resource that does not resolve is left out
+        Map<Resource, List<Wire>> wiremap = new SatResolver().resolve(getResolveContext(null, resourceB));
+        assertTrue(wiremap.isEmpty());
+    }
+
+    @Test
+    public void testConflictLimit() throws Exception {
+        // resA imports org.jboss.p0..p8 and org.jboss.s0..s7. Each export of org.jboss.pi uses one of
+        // org.jboss.s0..s7 and is wired to its own version of it, so that no two of the pi imports can use
+        // the same sj. This is the pigeonhole problem, which the solver refutes with a few hundred conflicts.
+        int holes = 8;
+        XResourceBuilder<XResource> builderA = createBuilder("resA", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        for (int i = 0; i <= holes; i++) {
+            addImport(builderA, "org.jboss.p" + i, null);
+        }
+        for (int j = 0; j < holes; j++) {
+            addImport(builderA, "org.jboss.s" + j, null);
+        }
+        List<XResource> resources = new ArrayList<XResource>();
+        XResource resourceA = builderA.getResource();
+        resources.add(resourceA);
+        for (int i = 0; i <= holes; i++) {
+            for (int j = 0; j < holes; j++) {
+                XResourceBuilder<XResource> builderP = createBuilder("resP" + i + "." + j, "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+                addExport(builderP, "org.jboss.p" + i, "1.0.0", "org.jboss.s" + j);
+                addImport(builderP, "org.jboss.s" + j, "[1." + i + ",1." + i + "]");
+                resources.add(builderP.getResource());
+                XResourceBuilder<XResource> builderS = createBuilder("resS" + j + "." + i, "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+                addExport(builderS, "org.jboss.s" + j, "1." + i, null);
+                resources.add(builderS.getResource());
+            }
+        }
+        environment.installResources(resources.toArray(new XResource[resources.size()]));
+
+        try {
+            new SatResolver().resolve(getResolveContext(resourceA));
+            fail("ResolutionException expected");
+        } catch (ResolutionException ex) {
+            assertFalse(ex.getUnresolvedRequirements().isEmpty());
+        }
+        Map<Resource, List<Wire>> wiremap = new SatResolver().resolve(getResolveContext(null, resourceA));
+        assertTrue(wiremap.isEmpty());
+
+        // The limit applies to the mandatory resources and to the preferences
+        try {
+            new SatResolver(100).resolve(getResolveContext(resourceA));
+            fail("ResolutionException expected");
+        } catch (ResolutionException ex) {
+            assertTrue(ex.getUnresolvedRequirements().isEmpty());
+        }
+        try {
+            new SatResolver(100).resolve(getResolveContext(null, resourceA));
+            fail("ResolutionException expected");
+        } catch (ResolutionException ex) {
+            assertTrue(ex.getUnresolvedRequirements().isEmpty());
+        }
+
+        try {
+            new SatResolver(0);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testResolverEngine() throws Exception {
+        XResourceBuilder<XResource> builderA = createBuilder("resA", "1.0.0", IdentityNamespace.TYPE_BUNDLE);
+        XResource resourceA = builderA.getResource();
+        environment.installResources(resourceA);
+
+        AbstractResolver resolver = new AbstractResolver(SatResolver.class.getSimpleName());
+        Map<Resource, List<Wire>> wiremap = resolver.resolve(getResolveContext(resourceA));
+        assertNotNull(wiremap.get(resourceA));
+
+        // The default engine is not on the class path of this module, so the SAT engine is used
+        resolver = new AbstractResolver((String) null);
+        wiremap = resolver.resolve(getResolveContext(resourceA));
+        assertNotNull(wiremap.get(resourceA));
+
+        try {
+            new AbstractResolver("NoSuchResolver");
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    private ResolveContext getResolveContext(XResource mandatory, XResource... optional) {
+        final List<Resource> manres = mandatory != null ? Collections.<Resource> singletonList(mandatory) : Collections.<Resource> emptyList();
+        final List<Resource> optres = new ArrayList<Resource>(Arrays.asList(optional));
+        return new AbstractResolveContext(environment) {
+
+            @Override
+            public Collection<Resource> getMandatoryResources() {
+                return manres;
+            }
+
+            @Override
+            public Collection<Resource> getOptionalResources() {
+                return optres;
+            }
+        };
+    }
+
+    private XResourceBuilder<XResource> createBuilder(String symbolicName, String version, String type) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        XCapability icap = builder.addIdentityCapability(symbolicName, Version.parseVersion(version));
+        icap.getAttributes().put(IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE, type);
+        if (IdentityNamespace.TYPE_BUNDLE.equals(type)) {
+            XCapability hcap = builder.addCapability(HostNamespace.HOST_NAMESPACE, symbolicName);
+            hcap.getAttributes().put(HostNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE, Version.parseVersion(version));
+            XCapability bcap = builder.addCapability(BundleNamespace.BUNDLE_NAMESPACE, symbolicName);
+            bcap.getAttributes().put(BundleNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE, Version.parseVersion(version));
+        }
+        return builder;
+    }
+
+    private XResource createSingleton(String symbolicName, String version) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        XCapability icap = builder.addIdentityCapability(symbolicName, Version.parseVersion(version));
+        icap.getDirectives().put(IdentityNamespace.CAPABILITY_SINGLETON_DIRECTIVE, "true");
+        return builder.getResource();
+    }
+
+    private void addExport(XResourceBuilder<XResource> builder, String packageName, String version, String uses) {
+        XCapability cap = builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, packageName);
+        cap.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, Version.parseVersion(version));
+        if (uses != null) {
+            cap.getDirectives().put(Namespace.CAPABILITY_USES_DIRECTIVE, uses);
+        }
+    }
+
+    private void addImport(XResourceBuilder<XResource> builder, String packageName, String range) {
+        XRequirement req = builder.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, packageName);
+        if (range != null) {
+            req.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, range);
+        }
+    }
+}